@@ -0,0 +1,16 @@
+package condensation;
+
+import android.util.Log;
+
+// Logs to the Android log, with the tag "Condensation".
+public final class AndroidLogger implements Logger {
+	@Override
+	public void log(String text) {
+		Log.i("Condensation", text);
+	}
+
+	@Override
+	public void logError(String text, Throwable throwable) {
+		Log.e("Condensation", text, throwable);
+	}
+}
@@ -1,12 +1,8 @@
 package condensation;
 
-import android.os.Handler;
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
-import java.util.concurrent.Executors;
 
 import condensation.actors.BC;
 import condensation.actors.PublicKey;
@@ -15,10 +11,14 @@ import condensation.serialization.Hash;
 import condensation.serialization.Record;
 import condensation.stores.MissingObjectReporter;
 import condensation.tasks.BackgroundExecutor;
+import condensation.tasks.EventLoop;
+import condensation.tasks.EventLoopGroup;
+import condensation.tasks.HandlerEventLoop;
 
 public final class Condensation {
 	public static long mainThreadId = 0L;
-	public static Handler mainThread = null;
+	public static EventLoop mainThread = null;
+	private static final ThreadLocal<EventLoop> eventLoopOfThread = new ThreadLocal<>();
 
 	public static BackgroundExecutor computationExecutor = null;
 	public static BackgroundExecutor fileSystemExecutor = null;
@@ -27,24 +27,78 @@ public final class Condensation {
 	public static final java.util.Random secureRandom = new SecureRandom();
 	public static final MissingObjectReporter missingObjectReporter = new MissingObjectReporter();
 	public static final Hash emptyBytesHash = Hash.from("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+	public static Logger logger = platformLogger();
 
 	// Call this once from the main thread when your app is starting.
 	public static void initialize() {
 		if (mainThread != null) return;
-		mainThreadId = Thread.currentThread().getId();
-		mainThread = new Handler();
-		computationExecutor = new BackgroundExecutor(Executors.newSingleThreadExecutor());
-		fileSystemExecutor = new BackgroundExecutor(Executors.newSingleThreadExecutor());
+		initialize(HandlerEventLoop.forCurrentThread());
+	}
+
+	// Call this once to run Condensation on the given event loop, e.g. initialize(new JVMEventLoop("Condensation")) on a plain JVM.
+	public static void initialize(EventLoop eventLoop) {
+		initialize(eventLoop, BackgroundExecutor.singleThread(), BackgroundExecutor.singleThread());
+	}
+
+	// Call this once to choose the executors, e.g.
+	//   initialize(eventLoop, BackgroundExecutor.workStealing(cores), BackgroundExecutor.io(16, true))
+	// The computation executor runs decryption, hashing and serialization, while the file system executor runs all FolderStore operations.
+	public static void initialize(EventLoop eventLoop, BackgroundExecutor computationExecutor, BackgroundExecutor fileSystemExecutor) {
+		if (mainThread != null) return;
+		mainThreadId = eventLoop.thread().getId();
+		mainThread = eventLoop;
+		Condensation.computationExecutor = computationExecutor;
+		Condensation.fileSystemExecutor = fileSystemExecutor;
+	}
+
+	// Same as above, but logs to the given logger instead of the platform's log.
+	public static void initialize(EventLoop eventLoop, BackgroundExecutor computationExecutor, BackgroundExecutor fileSystemExecutor, Logger logger) {
+		if (mainThread != null) return;
+		Condensation.logger = logger;
+		initialize(eventLoop, computationExecutor, fileSystemExecutor);
+	}
+
+	// Call this once to run Condensation on several event loops. The first loop of the group is the main thread.
+	// Actors (with their PrivateRoot, MessagingStore and DataTrees) should be created on group.loopFor(actorHash), and then stay on that loop.
+	public static void initialize(EventLoopGroup eventLoopGroup) {
+		initialize(eventLoopGroup.loops[0]);
+	}
+
+	public static void initialize(EventLoopGroup eventLoopGroup, BackgroundExecutor computationExecutor, BackgroundExecutor fileSystemExecutor) {
+		initialize(eventLoopGroup.loops[0], computationExecutor, fileSystemExecutor);
+	}
+
+	// *** Event loops
+
+	// Event loop threads call this once to announce themselves.
+	public static void attachEventLoop(EventLoop eventLoop) {
+		eventLoopOfThread.set(eventLoop);
+	}
+
+	// Returns the event loop the current thread belongs to, or the main thread if the current thread is not an event loop thread.
+	// Callbacks are posted onto this loop, so that an actor never leaves the loop it lives on.
+	public static EventLoop currentLoop() {
+		EventLoop eventLoop = eventLoopOfThread.get();
+		return eventLoop == null ? mainThread : eventLoop;
+	}
+
+	public static boolean isEventLoopThread() {
+		return Thread.currentThread().getId() == mainThreadId || eventLoopOfThread.get() != null;
 	}
 
 	public static void assertMainThread() {
-		if (Thread.currentThread().getId() == mainThreadId) return;
+		if (isEventLoopThread()) return;
 		logError("Running on asynchronous (instead of the main thread)");
-		Log.e("Twelve", "assertAsynchronous", new Throwable());
+	}
+
+	// Objects living on one event loop (such as the PrivateRoot, MessagingStore and DataTrees of an actor) call this.
+	public static void assertOnLoop(EventLoop owner) {
+		if (currentLoop() == owner) return;
+		logError("Running on another event loop (instead of the loop owning the object)");
 	}
 
 	public static void assertAsynchronous() {
-		if (Thread.currentThread().getId() != mainThreadId) return;
+		if (!isEventLoopThread()) return;
 		logError("Running on the main thread (instead of asynchronous)");
 	}
 
@@ -93,16 +147,21 @@ public final class Condensation {
 
 	// *** Logging (only for debugging)
 
+	// The Android log on Android, and java.util.logging elsewhere
+	static Logger platformLogger() {
+		return "Dalvik".equals(System.getProperty("java.vm.name")) ? new AndroidLogger() : new JVMLogger();
+	}
+
 	public static void log(final String text) {
-		Log.i("Condensation", text);
+		logger.log(text);
 	}
 
 	public static void logError(String text) {
-		Log.e("Condensation", text, new Throwable());
+		logger.logError(text, new Throwable());
 	}
 
 	public static void logError(String text, Throwable throwable) {
-		Log.e("Condensation", text, throwable);
+		logger.logError(text, throwable);
 	}
 
 	private static long performanceStart = 0L;
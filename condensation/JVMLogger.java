@@ -0,0 +1,18 @@
+package condensation;
+
+import java.util.logging.Level;
+
+// Logs to java.util.logging (by default on stderr), for use on a plain JVM.
+public final class JVMLogger implements Logger {
+	private final java.util.logging.Logger logger = java.util.logging.Logger.getLogger("Condensation");
+
+	@Override
+	public void log(String text) {
+		logger.info(text);
+	}
+
+	@Override
+	public void logError(String text, Throwable throwable) {
+		logger.log(Level.SEVERE, text, throwable);
+	}
+}
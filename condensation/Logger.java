@@ -0,0 +1,9 @@
+package condensation;
+
+// Receives the debugging output of Condensation (see Condensation.log and Condensation.logError).
+public interface Logger {
+	void log(String text);
+
+	// The throwable may be null.
+	void logError(String text, Throwable throwable);
+}
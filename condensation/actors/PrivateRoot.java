@@ -19,11 +19,13 @@ import condensation.stores.BoxRemoval;
 import condensation.stores.MissingObject;
 import condensation.stores.Store;
 import condensation.stores.Transfer;
+import condensation.tasks.EventLoop;
 
 public class PrivateRoot {
 	public final PrivateBoxReader privateBoxReader;
 	public final Unsaved unsaved;
 	private final HashMap<Bytes, MergeableData> dataHandlers = new HashMap<>();
+	public final EventLoop loop = Condensation.currentLoop();
 
 	// State
 	private long procured = 0;
@@ -48,6 +50,7 @@ public class PrivateRoot {
 	// *** Procurement
 
 	public void procure(long interval, ProcureDone done) {
+		Condensation.assertOnLoop(loop);
 		new Procure(interval, done);
 	}
 
@@ -97,6 +100,7 @@ public class PrivateRoot {
 	// *** Saving
 
 	public void dataChanged() {
+		Condensation.assertOnLoop(loop);
 		hasChanges = true;
 	}
 
@@ -109,8 +113,9 @@ public class PrivateRoot {
 	}
 
 	public void save(EntrustedKeysProvider entrustedKeysProvider, final SavingDone done) {
+		Condensation.assertOnLoop(loop);
 		if (unsaved.isSaving()) {
-			Condensation.mainThread.post(new Runnable() {
+			Condensation.currentLoop().post(new Runnable() {
 				@Override
 				public void run() {
 					done.onPrivateRootSavingFailed();
@@ -139,7 +144,7 @@ public class PrivateRoot {
 			unsaved.startSaving();
 
 			if (!hasChanges) {
-				Condensation.mainThread.post(this);
+				Condensation.currentLoop().post(this);
 				return;
 			}
 
@@ -78,7 +78,7 @@ public class Unsaved extends Store {
 	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final GetDone done) {
 		final CondensationObject stateObject = state.objects.get(hash);
 		if (stateObject != null) {
-			Condensation.mainThread.post(new Runnable() {
+			Condensation.currentLoop().post(new Runnable() {
 				@Override
 				public void run() {
 					done.onGetDone(stateObject);
@@ -90,7 +90,7 @@ public class Unsaved extends Store {
 		if (savingState != null) {
 			final CondensationObject savingStateObject = savingState.objects.get(hash);
 			if (savingStateObject != null) {
-				Condensation.mainThread.post(new Runnable() {
+				Condensation.currentLoop().post(new Runnable() {
 					@Override
 					public void run() {
 						done.onGetDone(savingStateObject);
@@ -14,6 +14,7 @@ import condensation.serialization.Record;
 import condensation.stores.GetAndDecryptRecord;
 import condensation.stores.Store;
 import condensation.tasks.AwaitCounter;
+import condensation.tasks.EventLoop;
 
 // This class is optimized for rather small data sets, i.e. a few 1000 entries max. It reads and deserializes all data into memory, and notifies listeners upon change.
 // With more elements, it would be preferable to deserialize on demand.
@@ -21,6 +22,7 @@ public abstract class DataTree {
 	// Configuration
 	public final KeyPair keyPair;
 	public final Unsaved unsaved;
+	public final EventLoop loop = Condensation.currentLoop();
 
 	// Root selector
 	public final Selector root = new Selector(this);
@@ -65,6 +67,7 @@ public abstract class DataTree {
 
 	// TODO: perhaps we should accept Sources and DataSaveHandlers here (?), to be propagated when the merge is done
 	public void merge(ArrayList<HashAndKey> hashesAndKeys) {
+		Condensation.assertOnLoop(loop);
 		for (HashAndKey hashAndKey : hashesAndKeys) {
 			if (hashAndKey == null) continue;
 			if (parts.containsKey(hashAndKey.hash)) continue;
@@ -80,6 +83,7 @@ public abstract class DataTree {
 	}
 
 	public void read(ReadDone done) {
+		Condensation.assertOnLoop(loop);
 		new Read(done);
 	}
 
@@ -201,8 +205,9 @@ public abstract class DataTree {
 	}
 
 	public void save(final SaveDone done) {
+		Condensation.assertOnLoop(loop);
 		if (unsaved.isSaving()) {
-			Condensation.mainThread.post(new Runnable() {
+			Condensation.currentLoop().post(new Runnable() {
 				@Override
 				public void run() {
 					done.onDataTreeSaveFailed();
@@ -91,7 +91,7 @@ final class Item implements Comparable<Item> {
 
 		if (this.notifyFlags == 0) {
 			if (dataTree.notifier.count == 0)
-				Condensation.mainThread.postDelayed(dataTree.notifier, 10);
+				Condensation.currentLoop().postDelayed(dataTree.notifier, 10);
 
 			dataTree.notifier.count += 1;
 			if (parent != null) {
@@ -70,7 +70,7 @@ public final class SubDataTree extends DataTree implements BranchListener, DataT
 	@Override
 	public void onDataTreeReadFailed() {
 		// This is not ideal, but reading sub data trees from the local store should not fail.
-		Condensation.mainThread.postDelayed(new Runnable() {
+		Condensation.currentLoop().postDelayed(new Runnable() {
 			@Override
 			public void run() {
 				read(SubDataTree.this);
@@ -12,6 +12,7 @@ import condensation.serialization.Bytes;
 import condensation.serialization.Hash;
 import condensation.stores.BoxLabel;
 import condensation.stores.Store;
+import condensation.tasks.EventLoop;
 import condensation.unionList.UnionList;
 
 public class MessagingStore {
@@ -22,6 +23,7 @@ public class MessagingStore {
 
 	public final PrivateRoot privateRoot;
 	public final SentList sentList;
+	public final EventLoop loop = Condensation.currentLoop();
 
 	public MessagingStore(Actor actor, Store store, String storeUrl, EntrustedKeysProvider entrustedKeysProvider) {
 		this.actor = actor;
@@ -39,6 +41,7 @@ public class MessagingStore {
 	public ProcureSentList runningProdureSentList = null;
 
 	public void procureSentList(ProcureSentListDone done) {
+		Condensation.assertOnLoop(loop);
 		if (sentListReady) {
 			done.onProcureSentListDone();
 			return;
@@ -101,8 +104,9 @@ public class MessagingStore {
 	}
 
 	public void sendMessages(final SendMessagesDone done) {
+		Condensation.assertOnLoop(loop);
 		if (!sentList.hasChanges()) {
-			Condensation.mainThread.post(new Runnable() {
+			Condensation.currentLoop().post(new Runnable() {
 				@Override
 				public void run() {
 					done.onSendMessagesDone();
@@ -8,10 +8,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 
-import condensation.Condensation;
-
 public class Bytes implements Comparable<Bytes> {
 	// *** Static ***
 	public static final Bytes empty = new Bytes(new byte[0], 0, 0);
@@ -113,13 +113,39 @@ public class Bytes implements Comparable<Bytes> {
 		return bytes;
 	}
 
+	// Files (or file ranges) of at least this size are memory-mapped, and copied onto the heap in one go. Smaller ones are
+	// read directly, since mapping is comparatively expensive to set up.
+	public static int mapThreshold = 256 * 1024;
+
 	public static Bytes from(File file) throws IOException {
-		int size = (int) file.length();
 		FileInputStream stream = new FileInputStream(file);
-		byte[] bytes = Condensation.read(stream, size);
-		if (bytes == null) return null;
-		stream.close();
-		return new Bytes(bytes);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("The file " + file + " is too large.");
+			return from(channel, 0L, (int) size);
+		} finally {
+			stream.close();
+		}
+	}
+
+	// Reads length bytes at the indicated position, without moving the channel's position. Returns null if the file is
+	// shorter.
+	public static Bytes from(FileChannel channel, long position, int length) throws IOException {
+		if (position + length > channel.size()) return null;
+
+		Bytes bytes = new Bytes(length);
+		if (length >= mapThreshold) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			mapped.get(bytes.buffer);
+			return bytes;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.buffer);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0) return null;
+
+		return bytes;
 	}
 
 	public static Bytes concatenate(Bytes... chunks) {
@@ -0,0 +1,84 @@
+package condensation.serialization;
+
+// A thread-safe set of hashes, which stores each hash as 4 longs in an open addressing table. This takes about 43 bytes
+// per hash (at 75% load), about a third of a HashSet<Hash>, and does not create any objects per hash.
+// The set is split into 256 stripes (selected by the first byte of the hash), which are synchronized separately, so
+// that many threads can add hashes at the same time.
+public final class CompactHashSet {
+	private final Stripe[] stripes = new Stripe[256];
+
+	public CompactHashSet() {
+		for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+	}
+
+	// Returns true if the hash was added, and false if it was in the set already.
+	public boolean add(Hash hash) {
+		Bytes bytes = hash.bytes;
+		return stripes[bytes.getInteger8(0) & 0xff].add(bytes.getInteger64(0), bytes.getInteger64(8), bytes.getInteger64(16), bytes.getInteger64(24));
+	}
+
+	public boolean contains(Hash hash) {
+		Bytes bytes = hash.bytes;
+		return stripes[bytes.getInteger8(0) & 0xff].contains(bytes.getInteger64(0), bytes.getInteger64(8), bytes.getInteger64(16), bytes.getInteger64(24));
+	}
+
+	public long size() {
+		long size = 0;
+		for (Stripe stripe : stripes) size += stripe.size();
+		return size;
+	}
+
+	static final class Stripe {
+		private long[] table = new long[4 * 16];
+		private int count = 0;
+
+		synchronized int size() {
+			return count;
+		}
+
+		synchronized boolean contains(long a, long b, long c, long d) {
+			int index = find(table, a, b, c, d);
+			return !isEmpty(table, index);
+		}
+
+		synchronized boolean add(long a, long b, long c, long d) {
+			int index = find(table, a, b, c, d);
+			if (!isEmpty(table, index)) return false;
+
+			table[index] = a;
+			table[index + 1] = b;
+			table[index + 2] = c;
+			table[index + 3] = d;
+			count += 1;
+			if (count * 4 > table.length / 4 * 3) resize();
+			return true;
+		}
+
+		private void resize() {
+			long[] oldTable = table;
+			table = new long[oldTable.length * 2];
+			for (int i = 0; i < oldTable.length; i += 4) {
+				if (isEmpty(oldTable, i)) continue;
+				int index = find(table, oldTable[i], oldTable[i + 1], oldTable[i + 2], oldTable[i + 3]);
+				System.arraycopy(oldTable, i, table, index, 4);
+			}
+		}
+
+		// Returns the index of the hash, or of the empty slot where it would be added. The all-zero hash is used to mark
+		// empty slots, and cannot be stored.
+		private static int find(long[] table, long a, long b, long c, long d) {
+			int mask = table.length / 4 - 1;
+			int slot = (int) b & mask;
+			while (true) {
+				int index = slot * 4;
+				if (isEmpty(table, index)) return index;
+				if (table[index] == a && table[index + 1] == b && table[index + 2] == c && table[index + 3] == d) return index;
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private static boolean isEmpty(long[] table, int index) {
+			return table[index] == 0L && table[index + 1] == 0L && table[index + 2] == 0L && table[index + 3] == 0L;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package condensation.serialization;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A sequence of objects that is transmitted or stored as a whole.
+// Serialized, a pack consists of the number of objects (uint32), an index with the hash (32 bytes) and length (uint32) of
+// each object, followed by the objects themselves (header and data). Packs built by Transfer list children before their
+// parents, so that a store can add the objects in the given order.
+public final class ObjectPack {
+	// *** Static ***
+
+	public static ObjectPack from(Map<Hash, CondensationObject> objects) {
+		Hash[] hashes = new Hash[objects.size()];
+		CondensationObject[] list = new CondensationObject[objects.size()];
+		int i = 0;
+		for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+			hashes[i] = entry.getKey();
+			list[i] = entry.getValue();
+			i += 1;
+		}
+
+		return new ObjectPack(hashes, list);
+	}
+
+	// Creates a pack in which every object comes after all its children (within the pack).
+	public static ObjectPack childrenFirst(Map<Hash, CondensationObject> objects) {
+		Hash[] hashes = new Hash[objects.size()];
+		CondensationObject[] list = new CondensationObject[objects.size()];
+		int count = 0;
+
+		// Depth-first traversal, adding each object once all its children have been added
+		HashSet<Hash> visited = new HashSet<>();
+		ArrayList<Visit> stack = new ArrayList<>();
+		for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+			if (!visited.add(entry.getKey())) continue;
+			stack.add(new Visit(entry.getKey(), entry.getValue()));
+			while (!stack.isEmpty()) {
+				Visit visit = stack.get(stack.size() - 1);
+				if (visit.nextChild < visit.object.hashesCount) {
+					Hash childHash = visit.object.hashAtIndex(visit.nextChild);
+					visit.nextChild += 1;
+					CondensationObject child = objects.get(childHash);
+					if (child == null || !visited.add(childHash)) continue;
+					stack.add(new Visit(childHash, child));
+					continue;
+				}
+
+				stack.remove(stack.size() - 1);
+				hashes[count] = visit.hash;
+				list[count] = visit.object;
+				count += 1;
+			}
+		}
+
+		return new ObjectPack(hashes, list);
+	}
+
+	private static class Visit {
+		final Hash hash;
+		final CondensationObject object;
+		int nextChild = 0;
+
+		Visit(Hash hash, CondensationObject object) {
+			this.hash = hash;
+			this.object = object;
+		}
+	}
+
+	// Parses a serialized pack. The objects are slices of the given bytes. Returns null if the pack is invalid.
+	public static ObjectPack from(Bytes bytes) {
+		if (bytes == null || bytes.byteLength < 4) return null;
+		long count = bytes.getUnsigned32(0);
+		if (count > (bytes.byteLength - 4) / 36) return null;
+
+		Hash[] hashes = new Hash[(int) count];
+		CondensationObject[] objects = new CondensationObject[(int) count];
+		int offset = 4 + (int) count * 36;
+		for (int i = 0; i < count; i++) {
+			int indexOffset = 4 + i * 36;
+			long length = bytes.getUnsigned32(indexOffset + 32);
+			if (length > bytes.byteLength - offset) return null;
+			hashes[i] = Hash.from(bytes.slice(indexOffset, 32));
+			objects[i] = CondensationObject.from(bytes.slice(offset, (int) length));
+			if (objects[i] == null) return null;
+			offset += (int) length;
+		}
+
+		return new ObjectPack(hashes, objects);
+	}
+
+	// *** Object ***
+
+	public final Hash[] hashes;
+	public final CondensationObject[] objects;
+
+	public ObjectPack(Hash[] hashes, CondensationObject[] objects) {
+		this.hashes = hashes;
+		this.objects = objects;
+	}
+
+	public int count() {
+		return hashes.length;
+	}
+
+	public long byteLength() {
+		long byteLength = 4 + hashes.length * 36L;
+		for (CondensationObject object : objects) byteLength += object.byteLength();
+		return byteLength;
+	}
+
+	// Returns the objects in pack order.
+	public LinkedHashMap<Hash, CondensationObject> toMap() {
+		LinkedHashMap<Hash, CondensationObject> map = new LinkedHashMap<>();
+		for (int i = 0; i < hashes.length; i++) map.put(hashes[i], objects[i]);
+		return map;
+	}
+
+	// Returns the serialized pack as a list of chunks: the index, followed by header and data of each object. The objects
+	// are not copied, so that large packs can be streamed.
+	public Bytes[] toChunks() {
+		Bytes index = new Bytes(4 + hashes.length * 36);
+		index.setUnsigned32(0, hashes.length);
+		Bytes[] chunks = new Bytes[1 + objects.length * 2];
+		chunks[0] = index;
+		for (int i = 0; i < hashes.length; i++) {
+			index.set(4 + i * 36, hashes[i].bytes);
+			index.setUnsigned32(4 + i * 36 + 32, objects[i].byteLength());
+			chunks[1 + i * 2] = objects[i].header;
+			chunks[2 + i * 2] = objects[i].data;
+		}
+
+		return chunks;
+	}
+
+	public Bytes toBytes() {
+		return Bytes.concatenate(toChunks());
+	}
+}
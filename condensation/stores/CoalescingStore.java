@@ -0,0 +1,147 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import condensation.actors.KeyPair;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
+
+// Merges concurrent gets of the same object into a single request to the underlying store. All callers receive the
+// result of that request, each on its own event loop.
+// Objects are identified by their hash only, so the key pair of the first caller is used for the request.
+public class CoalescingStore extends Store {
+	public final Store store;
+
+	// Gets in progress, synchronized on the map
+	final HashMap<Hash, Get> gets = new HashMap<>();
+
+	// Statistics
+	private long requests = 0L;
+	private long savedRequests = 0L;
+
+	public CoalescingStore(Store store) {
+		super("Coalescing Store\n  " + store.id);
+		this.store = store;
+	}
+
+	// Number of gets sent to the store
+	public long requests() {
+		synchronized (gets) {
+			return requests;
+		}
+	}
+
+	// Number of gets served by a request in progress
+	public long savedRequests() {
+		synchronized (gets) {
+			return savedRequests;
+		}
+	}
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
+		GetWaiter waiter = new GetWaiter(done);
+		Get get;
+		synchronized (gets) {
+			get = gets.get(hash);
+			if (get != null) {
+				get.waiters.add(waiter);
+				savedRequests += 1;
+				return;
+			}
+
+			get = new Get(hash);
+			get.waiters.add(waiter);
+			gets.put(hash, get);
+			requests += 1;
+		}
+
+		store.get(hash, keyPair, get);
+	}
+
+	class Get implements GetDone {
+		final Hash hash;
+		final ArrayList<GetWaiter> waiters = new ArrayList<>();
+
+		Get(Hash hash) {
+			this.hash = hash;
+		}
+
+		// Removes the get, so that subsequent gets send a new request, and returns the waiters.
+		ArrayList<GetWaiter> finish() {
+			synchronized (gets) {
+				gets.remove(hash);
+				return waiters;
+			}
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			for (GetWaiter waiter : finish())
+				waiter.deliverDone(object);
+		}
+
+		@Override
+		public void onGetNotFound() {
+			for (GetWaiter waiter : finish())
+				waiter.deliverNotFound();
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			for (GetWaiter waiter : finish())
+				waiter.deliverStoreError(error);
+		}
+	}
+
+	@Override
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		store.getMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		store.bookMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		store.putMany(objects, keyPair, done);
+	}
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		store.putPack(pack, keyPair, done);
+	}
+
+	@Override
+	public void getPack(@NonNull Hash root, @NonNull KeyPair keyPair, @NonNull GetPackDone done) {
+		store.getPack(root, keyPair, done);
+	}
+
+	@Override
+	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull BookDone done) {
+		store.book(hash, keyPair, done);
+	}
+
+	@Override
+	public void put(@NonNull Hash hash, @NonNull CondensationObject object, @NonNull KeyPair keyPair, @NonNull PutDone done) {
+		store.put(hash, object, keyPair, done);
+	}
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
+		store.list(accountHash, boxLabel, timeout, keyPair, done);
+	}
+
+	@Override
+	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull ModifyDone done) {
+		store.modify(additions, removals, keyPair, done);
+	}
+}
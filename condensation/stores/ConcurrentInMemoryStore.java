@@ -0,0 +1,321 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import condensation.Condensation;
+import condensation.actors.KeyPair;
+import condensation.serialization.CompactHashSet;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+
+// An in-memory store that may be used from any thread. Unlike InMemoryStore, requests are processed immediately on the
+// calling thread, and only the callback is posted to the caller's event loop. This makes it suitable as cache, or as
+// store shared by several event loops.
+//
+// With inlineCallbacks, the callback is called before the request method returns. This saves the event loop round trip,
+// but is only safe if the caller does not rely on callbacks being asynchronous (e.g. does not set any state after
+// sending the request).
+public class ConcurrentInMemoryStore extends Store {
+	public static ConcurrentInMemoryStore create() {
+		return new ConcurrentInMemoryStore("concurrentInMemoryStore:" + Condensation.randomBytes(16).asHex(), false);
+	}
+
+	public final boolean inlineCallbacks;
+
+	public ConcurrentInMemoryStore(String id, boolean inlineCallbacks) {
+		super(id);
+		this.inlineCallbacks = inlineCallbacks;
+	}
+
+	final ConcurrentHashMap<Hash, ObjectEntry> objects = new ConcurrentHashMap<>();
+
+	static class ObjectEntry {
+		public final CondensationObject object;
+		volatile long booked = System.currentTimeMillis();
+		private boolean removed = false;
+
+		ObjectEntry(CondensationObject object) {
+			this.object = object;
+		}
+
+		// Updates the booking time, or returns false if the entry is being removed by garbage collection.
+		synchronized boolean refresh() {
+			if (removed) return false;
+			booked = System.currentTimeMillis();
+			return true;
+		}
+
+		// Marks the entry for removal, unless it was booked after the grace time.
+		synchronized boolean remove(long graceTime) {
+			if (booked > graceTime) return false;
+			removed = true;
+			return true;
+		}
+	}
+
+	final ConcurrentHashMap<Hash, Account> accounts = new ConcurrentHashMap<>();
+
+	static class Account {
+		final Set<Hash> messageBox = Collections.newSetFromMap(new ConcurrentHashMap<Hash, Boolean>());
+		final Set<Hash> privateBox = Collections.newSetFromMap(new ConcurrentHashMap<Hash, Boolean>());
+		final Set<Hash> publicBox = Collections.newSetFromMap(new ConcurrentHashMap<Hash, Boolean>());
+
+		Set<Hash> box(BoxLabel label) {
+			if (label == BoxLabel.MESSAGES) return messageBox;
+			if (label == BoxLabel.PRIVATE) return privateBox;
+			if (label == BoxLabel.PUBLIC) return publicBox;
+			return null;
+		}
+
+		boolean isEmpty() {
+			return messageBox.isEmpty() && privateBox.isEmpty() && publicBox.isEmpty();
+		}
+	}
+
+	Account accountForWriting(Hash hash) {
+		Account account = accounts.get(hash);
+		if (account != null) return account;
+		Account newAccount = new Account();
+		account = accounts.putIfAbsent(hash, newAccount);
+		return account == null ? newAccount : account;
+	}
+
+	// Box modifications hold the read lock, and garbage collection the write lock, so that no box entry is added while
+	// objects are being marked and removed.
+	private final ReentrantReadWriteLock boxLock = new ReentrantReadWriteLock();
+
+	// Calls the callback on the caller's event loop, or right away with inlineCallbacks.
+	private void complete(Runnable callback) {
+		if (inlineCallbacks) callback.run();
+		else Condensation.currentLoop().post(callback);
+	}
+
+	// Store interface
+
+	@Override
+	public void get(@NonNull final Hash hash, @NonNull KeyPair keyPair, @NonNull final GetDone done) {
+		final CondensationObject object = get(hash);
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				if (object == null) done.onGetNotFound();
+				else done.onGetDone(object);
+			}
+		});
+	}
+
+	@Override
+	public void book(@NonNull final Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
+		final boolean found = book(hash);
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				if (found) done.onBookDone();
+				else done.onBookNotFound();
+			}
+		});
+	}
+
+	@Override
+	public void put(@NonNull final Hash hash, @NonNull final CondensationObject object, @NonNull KeyPair keyPair, @NonNull final PutDone done) {
+		put(hash, object);
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				done.onPutDone();
+			}
+		});
+	}
+
+	@Override
+	public void getMany(@NonNull final Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull final GetManyDone done) {
+		final HashMap<Hash, CondensationObject> result = new HashMap<>();
+		for (Hash hash : hashes) {
+			CondensationObject object = get(hash);
+			if (object != null) result.put(hash, object);
+		}
+
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				done.onGetManyDone(result);
+			}
+		});
+	}
+
+	@Override
+	public void bookMany(@NonNull final Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull final BookManyDone done) {
+		final ArrayList<Hash> notFound = new ArrayList<>();
+		for (Hash hash : hashes)
+			if (!book(hash)) notFound.add(hash);
+
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				done.onBookManyDone(notFound);
+			}
+		});
+	}
+
+	@Override
+	public void putMany(@NonNull final Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull final PutManyDone done) {
+		for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet())
+			put(entry.getKey(), entry.getValue());
+
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				done.onPutManyDone();
+			}
+		});
+	}
+
+	@Override
+	public void list(@NonNull final Hash accountHash, @NonNull final BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull final ListDone done) {
+		final ArrayList<Hash> list = list(accountHash, boxLabel);
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				if (list == null) done.onListStoreError("Invalid box label.");
+				else done.onListDone(list);
+			}
+		});
+	}
+
+	@Override
+	public void modify(@NonNull final Collection<BoxAddition> additions, @NonNull final Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull final ModifyDone done) {
+		final boolean success = modify(additions, removals);
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				if (success) done.onModifyDone();
+				else done.onModifyStoreError("Invalid box label.");
+			}
+		});
+	}
+
+	// Synchronous interface
+
+	public CondensationObject get(Hash hash) {
+		ObjectEntry entry = objects.get(hash);
+		if (entry == null) return null;
+		return entry.object;
+	}
+
+	// Existing entries are refreshed rather than replaced, so that garbage collection cannot remove the new entry in place
+	// of the old one.
+	public void put(Hash hash, CondensationObject object) {
+		ObjectEntry newEntry = null;
+		while (true) {
+			ObjectEntry entry = objects.get(hash);
+			if (entry != null) {
+				if (entry.refresh()) return;
+				objects.remove(hash, entry);
+				continue;
+			}
+
+			if (newEntry == null) newEntry = new ObjectEntry(object);
+			if (objects.putIfAbsent(hash, newEntry) == null) return;
+		}
+	}
+
+	public boolean book(Hash hash) {
+		ObjectEntry entry = objects.get(hash);
+		return entry != null && entry.refresh();
+	}
+
+	public ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel) {
+		Account account = accounts.get(accountHash);
+		if (account == null) return new ArrayList<>();
+
+		Set<Hash> box = account.box(boxLabel);
+		if (box == null) return null;
+		return new ArrayList<>(box);
+	}
+
+	// Returns false if a box label is invalid. Additions preceding the invalid one are applied.
+	public boolean modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals) {
+		boxLock.readLock().lock();
+		try {
+			for (BoxAddition addition : additions) {
+				if (addition.object != null)
+					put(addition.hash, addition.object);
+
+				Set<Hash> box = accountForWriting(addition.accountHash).box(addition.boxLabel);
+				if (box == null) return false;
+				box.add(addition.hash);
+			}
+
+			for (BoxRemoval removal : removals) {
+				Set<Hash> box = accountForWriting(removal.accountHash).box(removal.boxLabel);
+				if (box != null) box.remove(removal.hash);
+			}
+
+			return true;
+		} finally {
+			boxLock.readLock().unlock();
+		}
+	}
+
+	// Garbage collection
+	// Objects are marked with a work list rather than recursively, so that deep trees do not overflow the stack. Objects
+	// put or booked during garbage collection are newer than the grace time, and therefore kept.
+
+	public void collectGarbage(long graceTime) {
+		boxLock.writeLock().lock();
+		try {
+			CompactHashSet inUse = new CompactHashSet();
+			ArrayList<Hash> toMark = new ArrayList<>();
+
+			// Mark all objects newer than the grace time
+			for (Map.Entry<Hash, ObjectEntry> entry : objects.entrySet())
+				if (entry.getValue().booked > graceTime) mark(entry.getKey(), inUse, toMark);
+
+			// Mark all objects referenced from a box
+			for (Account account : accounts.values()) {
+				for (Hash hash : account.messageBox) mark(hash, inUse, toMark);
+				for (Hash hash : account.privateBox) mark(hash, inUse, toMark);
+				for (Hash hash : account.publicBox) mark(hash, inUse, toMark);
+			}
+
+			// Mark all children
+			while (!toMark.isEmpty()) {
+				Hash hash = toMark.remove(toMark.size() - 1);
+				ObjectEntry entry = objects.get(hash);
+				if (entry == null) continue;
+				for (Hash childHash : entry.object.hashes()) mark(childHash, inUse, toMark);
+			}
+
+			// Remove empty accounts
+			for (Iterator<Map.Entry<Hash, Account>> it = accounts.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Hash, Account> entry = it.next();
+				if (entry.getValue().isEmpty()) it.remove();
+			}
+
+			// Remove obsolete objects
+			// Objects put or booked concurrently are not removed: the entry refuses removal if it has been booked in the
+			// meantime, and the removal only succeeds if the entry has not been replaced.
+			for (Map.Entry<Hash, ObjectEntry> entry : objects.entrySet()) {
+				if (inUse.contains(entry.getKey())) continue;
+				ObjectEntry objectEntry = entry.getValue();
+				if (objectEntry.remove(graceTime)) objects.remove(entry.getKey(), objectEntry);
+			}
+		} finally {
+			boxLock.writeLock().unlock();
+		}
+	}
+
+	private static void mark(Hash hash, CompactHashSet inUse, ArrayList<Hash> toMark) {
+		if (inUse.add(hash)) toMark.add(hash);
+	}
+}
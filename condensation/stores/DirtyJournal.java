@@ -0,0 +1,115 @@
+package condensation.stores;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.Hash;
+
+// Keeps the dirty set of a write-back TieredStore on disk, so that it survives a crash.
+//
+// The journal is a sequence of 33 byte records: operation (1 = dirty, 2 = clean) and the hash. Incomplete or invalid
+// records at the end (e.g. after a crash) are cut off when loading. Once the journal contains many more records than
+// dirty objects, it is replaced by a snapshot. All methods are synchronized on the journal.
+final class DirtyJournal {
+	static final int recordLength = 33;
+	static final byte dirtyRecord = 1;
+	static final byte cleanRecord = 2;
+
+	// Journals with at least that many records are rewritten when less than half of their records are dirty objects
+	public static int snapshotThreshold = 1024;
+
+	final File file;
+	final File newFile;
+	private int records = 0;
+
+	DirtyJournal(File file) {
+		this.file = file;
+		this.newFile = new File(file.getPath() + ".new");
+	}
+
+	// Returns the dirty objects, in the order they were added.
+	synchronized LinkedHashSet<Hash> load() throws IOException {
+		LinkedHashSet<Hash> hashes = new LinkedHashSet<>();
+		Bytes bytes;
+		try {
+			bytes = Bytes.from(file);
+		} catch (FileNotFoundException ignored) {
+			return hashes;
+		}
+
+		int position = 0;
+		while (position + recordLength <= bytes.byteLength) {
+			byte operation = bytes.getInteger8(position);
+			Hash hash = Hash.from(bytes.slice(position + 1, 32));
+			if (operation == dirtyRecord) hashes.add(hash);
+			else if (operation == cleanRecord) hashes.remove(hash);
+			else break;
+			position += recordLength;
+		}
+
+		records = position / recordLength;
+		if (position < bytes.byteLength) {
+			Condensation.log("Cutting off an incomplete record at " + position + " in " + file);
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(position);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		return hashes;
+	}
+
+	// Appends and syncs the records.
+	synchronized void append(byte operation, Collection<Hash> hashes) throws IOException {
+		if (hashes.isEmpty()) return;
+
+		FileOutputStream stream = new FileOutputStream(file, true);
+		try {
+			stream.write(records(operation, hashes).buffer);
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+
+		records += hashes.size();
+	}
+
+	synchronized boolean needsSnapshot(int dirtyObjects) {
+		return records >= snapshotThreshold && records > 2 * dirtyObjects;
+	}
+
+	// Replaces the journal by one record per dirty object.
+	synchronized void writeSnapshot(Collection<Hash> hashes) throws IOException {
+		FileOutputStream stream = new FileOutputStream(newFile, false);
+		try {
+			stream.write(records(dirtyRecord, hashes).buffer);
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+
+		if (!newFile.renameTo(file)) throw new IOException("Unable to replace " + file + ".");
+		records = hashes.size();
+	}
+
+	private static Bytes records(byte operation, Collection<Hash> hashes) {
+		Bytes bytes = new Bytes(hashes.size() * recordLength);
+		int position = 0;
+		for (Hash hash : hashes) {
+			bytes.buffer[position] = operation;
+			bytes.set(position + 1, hash.bytes);
+			position += recordLength;
+		}
+
+		return bytes;
+	}
+}
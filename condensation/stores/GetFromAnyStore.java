@@ -2,7 +2,11 @@ package condensation.stores;
 
 import androidx.annotation.NonNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import condensation.Condensation;
@@ -11,23 +15,89 @@ import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
 
+// Reads objects from the first store that has them. Stores are tried one after the other in the given order.
+//
+// In hedged mode, stores are tried in order of their average response time. If a store does not respond within the
+// time in which it usually responds (backupPercentile of recent response times), the next store is asked as well, and
+// the first object received is returned. Since stores cannot cancel requests, the remaining responses are ignored.
 public class GetFromAnyStore extends Store {
+	// Fraction of responses expected before a backup request is sent
+	public static double backupPercentile = 0.95;
+
+	// Bounds of the backup delay, in milliseconds
+	public static long minimumBackupDelay = 10;
+	public static long maximumBackupDelay = 2000;
+
+	// Backup delay for stores without response time measurements
+	public static long defaultBackupDelay = 200;
+
 	public static GetFromAnyStore create(Store... stores) {
 		return new GetFromAnyStore(ImmutableList.create(stores));
 	}
 
-	private static String createId(ImmutableList<Store> stores) {
-		StringBuilder text = new StringBuilder("Any Store");
+	public static GetFromAnyStore hedged(Store... stores) {
+		return new GetFromAnyStore(ImmutableList.create(stores), true);
+	}
+
+	private static String createId(ImmutableList<Store> stores, boolean hedged) {
+		StringBuilder text = new StringBuilder(hedged ? "Any Store (hedged)" : "Any Store");
 		for (Store store : stores)
 			text.append("\n").append(store.id);
 		return text.toString();
 	}
 
 	final ImmutableList<Store> stores;
+	public final boolean hedged;
+
+	// Response times by store id, synchronized on the map
+	final HashMap<String, StoreLatency> latencies = new HashMap<>();
 
 	public GetFromAnyStore(ImmutableList<Store> stores) {
-		super(createId(stores));
+		this(stores, false);
+	}
+
+	public GetFromAnyStore(ImmutableList<Store> stores, boolean hedged) {
+		super(createId(stores, hedged));
 		this.stores = stores;
+		this.hedged = hedged;
+	}
+
+	public StoreLatency latency(Store store) {
+		synchronized (latencies) {
+			StoreLatency latency = latencies.get(store.id);
+			if (latency == null) {
+				latency = new StoreLatency();
+				latencies.put(store.id, latency);
+			}
+
+			return latency;
+		}
+	}
+
+	// Returns the stores (without duplicates) in the order in which they should be tried.
+	ArrayList<Store> storesToTry() {
+		ArrayList<Store> list = new ArrayList<>();
+		HashSet<String> ids = new HashSet<>();
+		for (Store store : stores)
+			if (ids.add(store.id)) list.add(store);
+		if (!hedged) return list;
+
+		// Stores without measurements come first, so that they get measured
+		final HashMap<Store, Double> averages = new HashMap<>();
+		for (Store store : list) averages.put(store, latency(store).average());
+		Collections.sort(list, new Comparator<Store>() {
+			@Override
+			public int compare(Store a, Store b) {
+				return Double.compare(averages.get(a), averages.get(b));
+			}
+		});
+
+		return list;
+	}
+
+	long backupDelay(Store store) {
+		long delay = latency(store).percentile(backupPercentile, defaultBackupDelay);
+		return Math.max(minimumBackupDelay, Math.min(maximumBackupDelay, delay));
 	}
 
 	@Override
@@ -35,60 +105,101 @@ public class GetFromAnyStore extends Store {
 		new Get(hash, keyPair, done);
 	}
 
-	class Get implements GetDone {
+	class Get {
 		final Hash hash;
 		final KeyPair keyPair;
 		final GetDone done;
+		final ArrayList<Store> storesToTry = storesToTry();
 
 		// State
 		int storesTried = 0;
+		int pendingRequests = 0;
+		boolean finished = false;
 		String errors = "";
-		HashSet<String> triedIds;
 
 		Get(Hash hash, KeyPair keyPair, GetDone done) {
 			this.hash = hash;
 			this.keyPair = keyPair;
 			this.done = done;
+			tryNextSource();
 		}
 
 		void tryNextSource() {
-			while (storesTried < stores.size()) {
-				Store store = stores.get(storesTried);
-				storesTried += 1;
-				if (triedIds.contains(store.id)) continue;
-				triedIds.add(store.id);
-				store.get(hash, keyPair, this);
+			if (storesTried >= storesToTry.size()) {
+				if (pendingRequests == 0) allFailed();
 				return;
 			}
 
-			allFailed();
+			final Store store = storesToTry.get(storesTried);
+			storesTried += 1;
+			pendingRequests += 1;
+			store.get(hash, keyPair, new Request(store));
+
+			// Ask the next store as well if this one takes longer than usual
+			if (!hedged || storesTried >= storesToTry.size()) return;
+			final int storesTriedBefore = storesTried;
+			final long delay = backupDelay(store);
+			Condensation.currentLoop().postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if (finished || storesTried > storesTriedBefore) return;
+
+					// Count the delay as a response time, so that a store that hangs is not tried first until it responds
+					latency(store).add(delay);
+					tryNextSource();
+				}
+			}, delay);
 		}
 
-		@Override
-		public void onGetDone(@NonNull CondensationObject object) {
-			done.onGetDone(object);
-		}
+		class Request implements GetDone {
+			final Store store;
+			final long startTime = System.currentTimeMillis();
 
-		@Override
-		public void onGetNotFound() {
-			tryNextSource();
-		}
+			Request(Store store) {
+				this.store = store;
+			}
 
-		@Override
-		public void onGetStoreError(@NonNull String error) {
-			if (!errors.isEmpty()) errors += "\n";
-			errors += error;
-			tryNextSource();
+			void onResponse() {
+				latency(store).add(System.currentTimeMillis() - startTime);
+				pendingRequests -= 1;
+			}
+
+			@Override
+			public void onGetDone(@NonNull CondensationObject object) {
+				onResponse();
+				if (finished) return;
+				finished = true;
+				done.onGetDone(object);
+			}
+
+			@Override
+			public void onGetNotFound() {
+				onResponse();
+				if (finished) return;
+				tryNextSource();
+			}
+
+			@Override
+			public void onGetStoreError(@NonNull String error) {
+				onResponse();
+				if (finished) return;
+				if (!errors.isEmpty()) errors += "\n";
+				errors += error;
+				tryNextSource();
+			}
 		}
 
+		// The object is only reported as not found if no store failed.
 		void allFailed() {
-			done.onGetStoreError(errors);
+			finished = true;
+			if (errors.isEmpty()) done.onGetNotFound();
+			else done.onGetStoreError(errors);
 		}
 	}
 
 	@Override
 	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				done.onBookStoreError("This is a read-only object store.");
@@ -98,7 +209,7 @@ public class GetFromAnyStore extends Store {
 
 	@Override
 	public void put(@NonNull Hash hash, @NonNull CondensationObject object, @NonNull KeyPair keyPair, @NonNull final PutDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				done.onPutStoreError("This is a read-only object store.");
@@ -108,7 +219,7 @@ public class GetFromAnyStore extends Store {
 
 	@Override
 	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull final ListDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				done.onListStoreError("This is a read-only object store.");
@@ -118,7 +229,7 @@ public class GetFromAnyStore extends Store {
 
 	@Override
 	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull final ModifyDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				done.onModifyStoreError("This is a read-only object store.");
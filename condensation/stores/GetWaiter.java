@@ -0,0 +1,52 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import condensation.Condensation;
+import condensation.serialization.CondensationObject;
+import condensation.tasks.EventLoop;
+
+// A caller waiting for the result of a get shared with other callers (see CoalescingStore and PrefetchingStore). The
+// result is delivered on the event loop the caller was on.
+final class GetWaiter {
+	final Store.GetDone done;
+	final EventLoop eventLoop;
+
+	GetWaiter(Store.GetDone done) {
+		this.done = done;
+		this.eventLoop = Condensation.currentLoop();
+	}
+
+	// Calls the callback directly if we are on the right event loop, and posts it otherwise.
+	void deliver(Runnable callback) {
+		if (eventLoop == Condensation.currentLoop()) callback.run();
+		else eventLoop.post(callback);
+	}
+
+	void deliverDone(@NonNull final CondensationObject object) {
+		deliver(new Runnable() {
+			@Override
+			public void run() {
+				done.onGetDone(object);
+			}
+		});
+	}
+
+	void deliverNotFound() {
+		deliver(new Runnable() {
+			@Override
+			public void run() {
+				done.onGetNotFound();
+			}
+		});
+	}
+
+	void deliverStoreError(@NonNull final String error) {
+		deliver(new Runnable() {
+			@Override
+			public void run() {
+				done.onGetStoreError(error);
+			}
+		});
+	}
+}
@@ -3,11 +3,14 @@ package condensation.stores;
 import androidx.annotation.NonNull;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import condensation.Condensation;
 import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 import condensation.tasks.BackgroundTask;
 
 public class HashVerificationStore extends Store {
@@ -65,6 +68,63 @@ public class HashVerificationStore extends Store {
 		}
 	}
 
+	@Override
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		new GetMany(hashes, keyPair, done);
+	}
+
+	// Verifies all objects of a batch in a single background task
+	class GetMany implements BackgroundTask, Store.GetManyDone {
+		final GetManyDone done;
+		HashMap<Hash, CondensationObject> objects;
+		boolean mismatch = false;
+
+		GetMany(Collection<Hash> hashes, KeyPair keyPair, GetManyDone done) {
+			this.done = done;
+			store.getMany(hashes, keyPair, this);
+		}
+
+		@Override
+		public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects) {
+			this.objects = objects;
+			Condensation.computationExecutor.run(this);
+		}
+
+		@Override
+		public void onGetManyStoreError(@NonNull String error) {
+			done.onGetManyStoreError(error);
+		}
+
+		@Override
+		public void background() {
+			for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet())
+				if (!entry.getValue().calculateHash().equals(entry.getKey())) mismatch = true;
+		}
+
+		@Override
+		public void after() {
+			if (mismatch) done.onGetManyStoreError("Hash mismatch.");
+			else done.onGetManyDone(objects);
+		}
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		store.bookMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		store.putMany(objects, keyPair, done);
+	}
+
+	// getPack is not forwarded: the default implementation retrieves the tree through getMany, and therefore verifies all objects.
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		store.putPack(pack, keyPair, done);
+	}
+
 	@Override
 	public void book(@NonNull final Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
 		store.book(hash, keyPair, done);
@@ -14,6 +14,8 @@ import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
 
+// The store is used from the event loops of several actors. All accesses to objects and accounts are therefore
+// synchronized on the store, while the callbacks are posted onto the loop of the caller.
 public class InMemoryStore extends Store {
 	public static InMemoryStore create() {
 		return new InMemoryStore("inMemoryStore:" + Condensation.randomBytes(16).asHex());
@@ -66,19 +68,19 @@ public class InMemoryStore extends Store {
 
 	@Override
 	public void get(@NonNull final Hash hash, @NonNull KeyPair keyPair, @NonNull final GetDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
-				ObjectEntry entry = objects.get(hash);
-				if (entry == null) done.onGetNotFound();
-				else done.onGetDone(entry.object);
+				CondensationObject object = get(hash);
+				if (object == null) done.onGetNotFound();
+				else done.onGetDone(object);
 			}
 		});
 	}
 
 	@Override
 	public void book(@NonNull final Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				if (book(hash)) done.onBookDone();
@@ -89,7 +91,7 @@ public class InMemoryStore extends Store {
 
 	@Override
 	public void put(@NonNull final Hash hash, @NonNull final CondensationObject object, @NonNull KeyPair keyPair, @NonNull final PutDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				put(hash, object);
@@ -98,9 +100,58 @@ public class InMemoryStore extends Store {
 		});
 	}
 
+	@Override
+	public void getMany(@NonNull final Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull final GetManyDone done) {
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				HashMap<Hash, CondensationObject> result = new HashMap<>();
+				synchronized (InMemoryStore.this) {
+					for (Hash hash : hashes) {
+						ObjectEntry entry = objects.get(hash);
+						if (entry != null) result.put(hash, entry.object);
+					}
+				}
+
+				done.onGetManyDone(result);
+			}
+		});
+	}
+
+	@Override
+	public void bookMany(@NonNull final Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull final BookManyDone done) {
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				ArrayList<Hash> notFound = new ArrayList<>();
+				synchronized (InMemoryStore.this) {
+					for (Hash hash : hashes)
+						if (!book(hash)) notFound.add(hash);
+				}
+
+				done.onBookManyDone(notFound);
+			}
+		});
+	}
+
+	@Override
+	public void putMany(@NonNull final Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull final PutManyDone done) {
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (InMemoryStore.this) {
+					for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet())
+						put(entry.getKey(), entry.getValue());
+				}
+
+				done.onPutManyDone();
+			}
+		});
+	}
+
 	@Override
 	public void list(@NonNull final Hash accountHash, @NonNull final BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull final ListDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
 				ArrayList<Hash> list = list(accountHash, boxLabel);
@@ -112,46 +163,35 @@ public class InMemoryStore extends Store {
 
 	@Override
 	public void modify(@NonNull final Collection<BoxAddition> additions, @NonNull final Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull final ModifyDone done) {
-		Condensation.mainThread.post(new Runnable() {
+		Condensation.currentLoop().post(new Runnable() {
 			@Override
 			public void run() {
-				for (BoxAddition addition : additions) {
-					if (addition.object != null)
-						put(addition.hash, addition.object);
-
-					if (add(addition.accountHash, addition.boxLabel, addition.hash)) continue;
-					done.onModifyStoreError("Invalid box label.");
-					return;
-				}
-
-				for (BoxRemoval removal : removals)
-					remove(removal.accountHash, removal.boxLabel, removal.hash);
-
-				done.onModifyDone();
+				if (modify(additions, removals)) done.onModifyDone();
+				else done.onModifyStoreError("Invalid box label.");
 			}
 		});
 	}
 
 	// Synchronous interface
 
-	public CondensationObject get(Hash hash) {
+	public synchronized CondensationObject get(Hash hash) {
 		ObjectEntry entry = objects.get(hash);
 		if (entry == null) return null;
 		return entry.object;
 	}
 
-	public void put(Hash hash, CondensationObject object) {
+	public synchronized void put(Hash hash, CondensationObject object) {
 		objects.put(hash, new ObjectEntry(object));
 	}
 
-	public boolean book(Hash hash) {
+	public synchronized boolean book(Hash hash) {
 		ObjectEntry entry = objects.get(hash);
 		if (entry == null) return false;
 		entry.booked = System.currentTimeMillis();
 		return true;
 	}
 
-	public ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel) {
+	public synchronized ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel) {
 		Account account = accounts.get(accountHash);
 		if (account == null) return new ArrayList<>();
 
@@ -160,22 +200,37 @@ public class InMemoryStore extends Store {
 		return new ArrayList<>(box);
 	}
 
-	public boolean add(Hash accountHash, BoxLabel boxLabel, Hash hash) {
+	public synchronized boolean add(Hash accountHash, BoxLabel boxLabel, Hash hash) {
 		HashSet<Hash> box = accountForWriting(accountHash).box(boxLabel);
 		if (box == null) return false;
 		box.add(hash);
 		return true;
 	}
 
-	public void remove(Hash accountHash, BoxLabel boxLabel, Hash hash) {
+	public synchronized void remove(Hash accountHash, BoxLabel boxLabel, Hash hash) {
 		HashSet<Hash> box = accountForWriting(accountHash).box(boxLabel);
 		if (box == null) return;
 		box.remove(hash);
 	}
 
+	// Returns false if a box label is invalid. The additions until then are applied, and the removals are not.
+	public synchronized boolean modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals) {
+		for (BoxAddition addition : additions) {
+			if (addition.object != null)
+				put(addition.hash, addition.object);
+
+			if (!add(addition.accountHash, addition.boxLabel, addition.hash)) return false;
+		}
+
+		for (BoxRemoval removal : removals)
+			remove(removal.accountHash, removal.boxLabel, removal.hash);
+
+		return true;
+	}
+
 	// Garbage collection
 
-	public void collectGarbage(long graceTime) {
+	public synchronized void collectGarbage(long graceTime) {
 		// Mark all objects as not used
 		for (ObjectEntry entry : objects.values()) entry.inUse = false;
 
@@ -209,11 +264,22 @@ public class InMemoryStore extends Store {
 		mark(child);
 	}
 
+	// Marks the entry and all its descendants. This uses a work list rather than recursion, so that deep trees do not
+	// overflow the stack.
 	private void mark(ObjectEntry entry) {
 		if (entry.inUse) return;
 		entry.inUse = true;
 
-		// Mark all children
-		for (Hash hash : entry.object.hashes()) mark(hash);
+		ArrayList<ObjectEntry> toMark = new ArrayList<>();
+		toMark.add(entry);
+		while (!toMark.isEmpty()) {
+			ObjectEntry parent = toMark.remove(toMark.size() - 1);
+			for (Hash hash : parent.object.hashes()) {
+				ObjectEntry child = objects.get(hash);
+				if (child == null || child.inUse) continue;
+				child.inUse = true;
+				toMark.add(child);
+			}
+		}
 	}
 }
@@ -0,0 +1,340 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import condensation.Condensation;
+import condensation.actors.KeyPair;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+
+// An object cache in memory, which keeps the most valuable objects within a byte budget. It is meant to be used as
+// cache of an ObjectCache, and does not store any boxes.
+//
+// Objects are kept according to W-TinyLFU: new objects enter a small LRU window. Objects leaving the window compete
+// with the least recently used object of the main area, and the object accessed more frequently (according to a
+// frequency sketch) stays. The main area is a segmented LRU: objects accessed again move from the probation to the
+// protected segment. This keeps frequently used objects (such as public keys and envelopes) in memory, even if many
+// objects are read only once.
+//
+// This is thread-safe. Callbacks are posted to the caller's event loop.
+public class MemoryCacheStore extends Store {
+	// Estimated memory used per entry, in addition to the object
+	static final int entryOverhead = 128;
+
+	// Shares of the byte budget
+	static final double windowShare = 0.01;
+	static final double protectedShare = 0.8;
+
+	public static MemoryCacheStore create(long byteBudget) {
+		return new MemoryCacheStore("memoryCacheStore:" + Condensation.randomBytes(16).asHex(), byteBudget, (int) Math.min(1024 * 1024, byteBudget / 16));
+	}
+
+	public final long byteBudget;
+	public final int maximumObjectLength;
+	final long windowBudget;
+	final long protectedBudget;
+
+	// Objects larger than maximumObjectLength are not cached.
+	public MemoryCacheStore(String id, long byteBudget, int maximumObjectLength) {
+		super(id);
+		this.byteBudget = byteBudget;
+		this.maximumObjectLength = maximumObjectLength;
+		this.windowBudget = (long) (byteBudget * windowShare);
+		this.protectedBudget = (long) ((byteBudget - windowBudget) * protectedShare);
+
+		// Assume 1 KiB per object to size the sketch
+		this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, byteBudget / 1024)));
+	}
+
+	static class Entry {
+		final Hash hash;
+		final CondensationObject object;
+		final long length;
+
+		Entry(Hash hash, CondensationObject object) {
+			this.hash = hash;
+			this.object = backingLength(object) > object.byteLength() ? object.clone() : object;
+			this.length = this.object.byteLength() + entryOverhead;
+		}
+	}
+
+	// Objects may be slices of a larger buffer (e.g. a response or pack with many objects). Caching such a slice would
+	// keep the whole buffer in memory, so these objects are copied.
+	static long backingLength(CondensationObject object) {
+		if (object.header.buffer == object.data.buffer) return object.header.buffer.length;
+		return (long) object.header.buffer.length + object.data.buffer.length;
+	}
+
+	// All state is synchronized on this object. The maps are in LRU order (least recently used first).
+	private final LinkedHashMap<Hash, Entry> window = new LinkedHashMap<>();
+	private final LinkedHashMap<Hash, Entry> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<Hash, Entry> protectedSegment = new LinkedHashMap<>();
+	private long windowBytes = 0L;
+	private long probationBytes = 0L;
+	private long protectedBytes = 0L;
+	private final FrequencySketch sketch;
+
+	// Statistics
+	private long hits = 0L;
+	private long misses = 0L;
+	private long evictions = 0L;
+	private long rejections = 0L;
+	private long skipped = 0L;
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	// Objects removed to make space
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	// Objects not admitted to the main area, because they were used less often than the object they would replace
+	public synchronized long rejections() {
+		return rejections;
+	}
+
+	// Objects not cached because they are larger than maximumObjectLength
+	public synchronized long skipped() {
+		return skipped;
+	}
+
+	public synchronized long usedBytes() {
+		return windowBytes + probationBytes + protectedBytes;
+	}
+
+	public synchronized int count() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+
+	// Store interface
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final GetDone done) {
+		final CondensationObject object = get(hash);
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				if (object == null) done.onGetNotFound();
+				else done.onGetDone(object);
+			}
+		});
+	}
+
+	@Override
+	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
+		final boolean found = contains(hash);
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				if (found) done.onBookDone();
+				else done.onBookNotFound();
+			}
+		});
+	}
+
+	@Override
+	public void put(@NonNull Hash hash, @NonNull CondensationObject object, @NonNull KeyPair keyPair, @NonNull final PutDone done) {
+		put(hash, object);
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				done.onPutDone();
+			}
+		});
+	}
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull final ListDone done) {
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				done.onListStoreError("This store does not have any boxes.");
+			}
+		});
+	}
+
+	@Override
+	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull final ModifyDone done) {
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				done.onModifyStoreError("This store does not have any boxes.");
+			}
+		});
+	}
+
+	// Synchronous interface
+
+	public synchronized CondensationObject get(Hash hash) {
+		sketch.increment(hash);
+		Entry entry = access(hash);
+		if (entry == null) {
+			misses += 1;
+			return null;
+		}
+
+		hits += 1;
+		return entry.object;
+	}
+
+	public synchronized boolean contains(Hash hash) {
+		return window.containsKey(hash) || probation.containsKey(hash) || protectedSegment.containsKey(hash);
+	}
+
+	public synchronized void put(Hash hash, CondensationObject object) {
+		if (object.byteLength() > maximumObjectLength) {
+			skipped += 1;
+			return;
+		}
+
+		// Usage is only counted when reading, since objects are usually put after a cache miss
+		if (access(hash) != null) return;
+		Entry entry = new Entry(hash, object);
+		window.put(hash, entry);
+		windowBytes += entry.length;
+
+		// Move the least recently used objects of the window to the main area
+		while (windowBytes > windowBudget && !window.isEmpty()) {
+			Entry candidate = removeFirst(window);
+			windowBytes -= candidate.length;
+			admit(candidate);
+		}
+	}
+
+	public synchronized void clear() {
+		window.clear();
+		probation.clear();
+		protectedSegment.clear();
+		windowBytes = 0L;
+		probationBytes = 0L;
+		protectedBytes = 0L;
+	}
+
+	// *** Policy
+	// All methods must be called while synchronized.
+
+	// Marks the entry as most recently used, and returns it.
+	private Entry access(Hash hash) {
+		Entry entry = window.remove(hash);
+		if (entry != null) {
+			window.put(hash, entry);
+			return entry;
+		}
+
+		entry = protectedSegment.remove(hash);
+		if (entry != null) {
+			protectedSegment.put(hash, entry);
+			return entry;
+		}
+
+		// An object used again is promoted to the protected segment, which may push other objects back to probation
+		entry = probation.remove(hash);
+		if (entry == null) return null;
+		probationBytes -= entry.length;
+		protectedSegment.put(hash, entry);
+		protectedBytes += entry.length;
+		while (protectedBytes > protectedBudget && protectedSegment.size() > 1) {
+			Entry demoted = removeFirst(protectedSegment);
+			protectedBytes -= demoted.length;
+			probation.put(demoted.hash, demoted);
+			probationBytes += demoted.length;
+		}
+
+		return entry;
+	}
+
+	// Adds an object leaving the window to the main area, and evicts objects until the main area fits into its budget.
+	// The candidate and the least recently used object on probation compete for the space.
+	private void admit(Entry candidate) {
+		long mainBudget = byteBudget - windowBudget;
+		while (probationBytes + protectedBytes + candidate.length > mainBudget) {
+			if (probation.isEmpty()) {
+				if (protectedSegment.isEmpty()) break;
+				protectedBytes -= removeFirst(protectedSegment).length;
+				evictions += 1;
+				continue;
+			}
+
+			Entry victim = probation.values().iterator().next();
+			if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+				rejections += 1;
+				evictions += 1;
+				return;
+			}
+
+			probation.remove(victim.hash);
+			probationBytes -= victim.length;
+			evictions += 1;
+		}
+
+		probation.put(candidate.hash, candidate);
+		probationBytes += candidate.length;
+	}
+
+	private static Entry removeFirst(LinkedHashMap<Hash, Entry> map) {
+		Iterator<Map.Entry<Hash, Entry>> iterator = map.entrySet().iterator();
+		Entry entry = iterator.next().getValue();
+		iterator.remove();
+		return entry;
+	}
+
+	// Estimates how often each hash has been used recently, using 4 rows of 4 bit counters (count-min sketch). The
+	// counters are halved from time to time, so that old usage fades out.
+	static final class FrequencySketch {
+		final byte[][] rows = new byte[4][];
+		final int mask;
+		final int sampleSize;
+		int additions = 0;
+
+		FrequencySketch(int width) {
+			int length = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+			for (int i = 0; i < rows.length; i++) rows[i] = new byte[length];
+			this.mask = length - 1;
+			this.sampleSize = length * 10;
+		}
+
+		// Hashes are uniformly distributed, so that their bytes can be used as indexes directly.
+		private int index(Hash hash, int row) {
+			return hash.bytes.getInteger32(row * 4) & mask;
+		}
+
+		void increment(Hash hash) {
+			boolean incremented = false;
+			for (int i = 0; i < rows.length; i++) {
+				int index = index(hash, i);
+				if (rows[i][index] >= 15) continue;
+				rows[i][index] += 1;
+				incremented = true;
+			}
+
+			if (!incremented) return;
+			additions += 1;
+			if (additions >= sampleSize) age();
+		}
+
+		int frequency(Hash hash) {
+			int frequency = 15;
+			for (int i = 0; i < rows.length; i++)
+				frequency = Math.min(frequency, rows[i][index(hash, i)]);
+			return frequency;
+		}
+
+		private void age() {
+			for (byte[] row : rows)
+				for (int i = 0; i < row.length; i++)
+					row[i] = (byte) (row[i] >> 1);
+			additions /= 2;
+		}
+	}
+}
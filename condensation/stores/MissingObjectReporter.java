@@ -1,14 +1,14 @@
 package condensation.stores;
 
-import android.util.Log;
-
 import java.util.ArrayList;
 
+import condensation.Condensation;
+
 public class MissingObjectReporter {
 	public final ArrayList<MissingObject> last = new ArrayList<>();
 
-	void report(MissingObject missingObject) {
-		Log.e("Condensation", missingObject.toString());
+	synchronized void report(MissingObject missingObject) {
+		Condensation.logger.logError(missingObject.toString(), null);
 
 		// Keep the last 10 errors
 		last.add(missingObject);
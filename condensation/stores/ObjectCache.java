@@ -3,10 +3,12 @@ package condensation.stores;
 import androidx.annotation.NonNull;
 
 import java.util.Collection;
+import java.util.Map;
 
 import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 
 public class ObjectCache extends Store {
 	public final Store backend;
@@ -18,6 +20,11 @@ public class ObjectCache extends Store {
 		this.cache = cache;
 	}
 
+	// Caches objects in memory, using at most byteBudget bytes.
+	public static ObjectCache inMemory(Store backend, long byteBudget) {
+		return new ObjectCache(backend, MemoryCacheStore.create(byteBudget));
+	}
+
 	@Override
 	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
 		new Get(hash, keyPair, done);
@@ -88,6 +95,24 @@ public class ObjectCache extends Store {
 		backend.book(hash, keyPair, done);
 	}
 
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		cache.putMany(objects, keyPair, Store.ignore);
+		backend.putMany(objects, keyPair, done);
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		cache.bookMany(hashes, keyPair, Store.ignore);
+		backend.bookMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		cache.putPack(pack, keyPair, Store.ignore);
+		backend.putPack(pack, keyPair, done);
+	}
+
 	@Override
 	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
 		backend.list(accountHash, boxLabel, timeout, keyPair, done);
@@ -0,0 +1,343 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import condensation.Condensation;
+import condensation.actors.KeyPair;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
+
+// Reads ahead when trees are traversed: whenever an object is returned, its children (up to maximumDepth levels) are
+// fetched speculatively, and kept in memory (using at most byteBudget bytes) until they are requested. Gets for objects
+// being prefetched wait for that request.
+//
+// Prefetched objects evicted without being used count as wasted. If less than minimumAccuracy of the recently prefetched
+// objects were used, prefetching is disabled for disabledInterval, after which it is tried again.
+public class PrefetchingStore extends Store {
+	// Settings
+	public static int maximumPrefetches = 16;
+	public static int maximumQueueLength = 1024;
+	public static int minimumSamples = 64;
+	public static double minimumAccuracy = 0.25;
+	public static long disabledInterval = 5 * Condensation.MINUTE;
+
+	public final Store store;
+	public final int maximumDepth;
+	public final long byteBudget;
+
+	// State, synchronized on this
+	private final LinkedHashMap<Hash, CondensationObject> buffer = new LinkedHashMap<>();
+	private long bufferedBytes = 0L;
+	private final HashMap<Hash, Prefetch> prefetches = new HashMap<>();
+	private final ArrayDeque<Prefetch> queue = new ArrayDeque<>();
+	private boolean enabled = true;
+
+	// Statistics
+	private long prefetchedObjects = 0L;
+	private long usedObjects = 0L;
+	private long wastedObjects = 0L;
+	private int recentlyUsed = 0;
+	private int recentlyWasted = 0;
+
+	public PrefetchingStore(Store store, int maximumDepth, long byteBudget) {
+		super("Prefetching Store\n  " + store.id);
+		this.store = store;
+		this.maximumDepth = maximumDepth;
+		this.byteBudget = byteBudget;
+	}
+
+	// *** Statistics
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	// Number of objects received by prefetching
+	public synchronized long prefetchedObjects() {
+		return prefetchedObjects;
+	}
+
+	// Number of gets served by a prefetched object or a prefetch in progress
+	public synchronized long usedObjects() {
+		return usedObjects;
+	}
+
+	// Number of prefetched objects evicted without being used
+	public synchronized long wastedObjects() {
+		return wastedObjects;
+	}
+
+	// Fraction of the prefetched objects that were used, or 1 if none were used or wasted yet
+	public synchronized double accuracy() {
+		long total = usedObjects + wastedObjects;
+		return total == 0 ? 1.0 : (double) usedObjects / total;
+	}
+
+	private void recordUsed() {
+		usedObjects += 1;
+		recentlyUsed += 1;
+		checkAccuracy();
+	}
+
+	private void recordWasted() {
+		wastedObjects += 1;
+		recentlyWasted += 1;
+		checkAccuracy();
+	}
+
+	private void checkAccuracy() {
+		int total = recentlyUsed + recentlyWasted;
+		if (total < minimumSamples) return;
+
+		if (enabled && recentlyUsed < minimumAccuracy * total) {
+			Condensation.log("Prefetching disabled on " + store.id + ": " + recentlyUsed + " of " + total + " prefetched objects used.");
+			enabled = false;
+			for (Prefetch prefetch : queue) prefetches.remove(prefetch.hash);
+			queue.clear();
+			Condensation.currentLoop().postDelayed(enable, disabledInterval);
+			return;
+		}
+
+		// Only consider recent samples
+		if (total >= 4 * minimumSamples) {
+			recentlyUsed /= 2;
+			recentlyWasted /= 2;
+		}
+	}
+
+	private final Runnable enable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (PrefetchingStore.this) {
+				enabled = true;
+				recentlyUsed = 0;
+				recentlyWasted = 0;
+			}
+		}
+	};
+
+	// *** Getting
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final GetDone done) {
+		final CondensationObject object;
+		Prefetch prefetchToSend = null;
+		synchronized (this) {
+			object = buffer.remove(hash);
+			if (object != null) {
+				bufferedBytes -= object.byteLength();
+				recordUsed();
+			} else {
+				Prefetch prefetch = prefetches.get(hash);
+				if (prefetch != null) {
+					prefetch.waiters.add(new GetWaiter(done));
+
+					// Queued prefetches are sent right away
+					if (queue.remove(prefetch)) prefetchToSend = prefetch;
+					recordUsed();
+					if (prefetchToSend == null) return;
+				}
+			}
+		}
+
+		if (prefetchToSend != null) {
+			prefetchToSend.send();
+			return;
+		}
+
+		if (object == null) {
+			store.get(hash, keyPair, new Get(keyPair, done));
+			return;
+		}
+
+		// Buffered objects are delivered asynchronously, like the results of any other store
+		Condensation.currentLoop().post(new Runnable() {
+			@Override
+			public void run() {
+				done.onGetDone(object);
+			}
+		});
+
+		prefetchChildren(object, keyPair, 1);
+	}
+
+	class Get implements GetDone {
+		final KeyPair keyPair;
+		final GetDone done;
+
+		Get(KeyPair keyPair, GetDone done) {
+			this.keyPair = keyPair;
+			this.done = done;
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			prefetchChildren(object, keyPair, 1);
+			done.onGetDone(object);
+		}
+
+		@Override
+		public void onGetNotFound() {
+			done.onGetNotFound();
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			done.onGetStoreError(error);
+		}
+	}
+
+	// *** Prefetching
+
+	void prefetchChildren(CondensationObject object, KeyPair keyPair, int depth) {
+		if (depth > maximumDepth || object.hashesCount == 0) return;
+
+		synchronized (this) {
+			if (!enabled) return;
+			for (Hash hash : object.hashes()) {
+				if (queue.size() >= maximumQueueLength) break;
+				if (buffer.containsKey(hash) || prefetches.containsKey(hash)) continue;
+				Prefetch prefetch = new Prefetch(hash, keyPair, depth);
+				prefetches.put(hash, prefetch);
+				queue.addLast(prefetch);
+			}
+		}
+
+		sendPrefetches();
+	}
+
+	void sendPrefetches() {
+		ArrayList<Prefetch> toSend = new ArrayList<>();
+		synchronized (this) {
+			while (!queue.isEmpty() && prefetches.size() - queue.size() < maximumPrefetches)
+				toSend.add(queue.removeFirst());
+		}
+
+		for (Prefetch prefetch : toSend)
+			prefetch.send();
+	}
+
+	class Prefetch implements GetDone {
+		final Hash hash;
+		final KeyPair keyPair;
+		final int depth;
+		final ArrayList<GetWaiter> waiters = new ArrayList<>();
+
+		Prefetch(Hash hash, KeyPair keyPair, int depth) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.depth = depth;
+		}
+
+		void send() {
+			store.get(hash, keyPair, this);
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			boolean used;
+			synchronized (PrefetchingStore.this) {
+				prefetches.remove(hash);
+				prefetchedObjects += 1;
+				used = !waiters.isEmpty();
+				if (!used) addToBuffer(hash, object);
+			}
+
+			for (GetWaiter waiter : waiters)
+				waiter.deliverDone(object);
+
+			// Read ahead from the object that was used
+			prefetchChildren(object, keyPair, used ? 1 : depth + 1);
+			sendPrefetches();
+		}
+
+		@Override
+		public void onGetNotFound() {
+			synchronized (PrefetchingStore.this) {
+				prefetches.remove(hash);
+			}
+
+			for (GetWaiter waiter : waiters)
+				waiter.deliverNotFound();
+
+			sendPrefetches();
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			synchronized (PrefetchingStore.this) {
+				prefetches.remove(hash);
+			}
+
+			for (GetWaiter waiter : waiters)
+				waiter.deliverStoreError(error);
+
+			sendPrefetches();
+		}
+	}
+
+	// Adds a prefetched object, and evicts the oldest ones to stay within the budget. Must be called while synchronized.
+	private void addToBuffer(Hash hash, CondensationObject object) {
+		if (object.byteLength() > byteBudget) {
+			recordWasted();
+			return;
+		}
+
+		buffer.put(hash, object);
+		bufferedBytes += object.byteLength();
+
+		Iterator<CondensationObject> iterator = buffer.values().iterator();
+		while (bufferedBytes > byteBudget) {
+			CondensationObject evicted = iterator.next();
+			iterator.remove();
+			bufferedBytes -= evicted.byteLength();
+			recordWasted();
+		}
+	}
+
+	// *** Everything else goes to the store
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		store.putMany(objects, keyPair, done);
+	}
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		store.putPack(pack, keyPair, done);
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		store.bookMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull BookDone done) {
+		store.book(hash, keyPair, done);
+	}
+
+	@Override
+	public void put(@NonNull Hash hash, @NonNull CondensationObject object, @NonNull KeyPair keyPair, @NonNull PutDone done) {
+		store.put(hash, object, keyPair, done);
+	}
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
+		store.list(accountHash, boxLabel, timeout, keyPair, done);
+	}
+
+	@Override
+	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull ModifyDone done) {
+		store.modify(additions, removals, keyPair, done);
+	}
+}
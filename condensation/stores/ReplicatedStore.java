@@ -0,0 +1,750 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import condensation.Condensation;
+import condensation.ImmutableList;
+import condensation.actors.KeyPair;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.tasks.EventLoop;
+
+// Keeps the same objects and boxes on several stores (replicas).
+//
+// Writes (put, book, modify) are sent to all replicas at the same time, and reported done as soon as writeQuorum
+// replicas have accepted them. Writes that failed on a replica are queued, and retried in the background until the
+// replica accepts them. While a replica has queued writes, new writes are queued behind them (and count as failed for
+// the quorum). Box modifications are furthermore sent to each replica one at a time, so that each replica applies them
+// in order, even if one fails. Writes reported done after the quorum are still sent to the remaining replicas.
+//
+// Reads are sent to one replica at a time, starting with the fastest healthy replica. If an object is found after other
+// replicas reported it missing, it is copied to those replicas.
+public class ReplicatedStore extends Store {
+	// Delay before retrying a failed write, doubled after each failure. Replicas are considered unhealthy for retryDelay
+	// after a failure.
+	public static long retryDelay = 5 * 1000L;
+	public static long maximumRetryDelay = 5 * 60 * 1000L;
+
+	// Writes queued per replica. If more writes fail, the oldest are dropped, and the replica must be resynchronized.
+	public static int maximumQueuedRepairs = 10000;
+
+	public static ReplicatedStore create(Store... stores) {
+		return new ReplicatedStore(ImmutableList.create(stores), stores.length / 2 + 1);
+	}
+
+	private static String createId(ImmutableList<Store> stores, int writeQuorum) {
+		StringBuilder text = new StringBuilder("Replicated Store (" + writeQuorum + " of " + stores.size() + ")");
+		for (Store store : stores)
+			text.append("\n").append(store.id);
+		return text.toString();
+	}
+
+	public final ImmutableList<Store> stores;
+	public final int writeQuorum;
+	final ArrayList<Replica> replicas = new ArrayList<>();
+
+	public ReplicatedStore(ImmutableList<Store> stores, int writeQuorum) {
+		super(createId(stores, writeQuorum));
+		this.stores = stores;
+		this.writeQuorum = Math.max(1, Math.min(stores.size(), writeQuorum));
+		for (Store store : stores) replicas.add(new Replica(store));
+	}
+
+	// *** Replicas
+
+	public class Replica {
+		public final Store store;
+		public final StoreLatency latency = new StoreLatency();
+
+		// State, synchronized on the replica
+		private long lastFailure = 0L;
+		private final ArrayDeque<Repair> repairs = new ArrayDeque<>();
+		private boolean repairScheduled = false;
+		private long repairDelay = retryDelay;
+		private int droppedRepairs = 0;
+		private boolean modifying = false;
+		private final ArrayDeque<ReplicaModify> waitingModifies = new ArrayDeque<>();
+
+		Replica(Store store) {
+			this.store = store;
+		}
+
+		// A replica which dropped writes is missing data, and remains unhealthy until it has been resynchronized and the
+		// store is recreated.
+		public synchronized boolean isHealthy() {
+			return System.currentTimeMillis() - lastFailure > retryDelay && repairs.isEmpty() && droppedRepairs == 0;
+		}
+
+		// Writes waiting to be retried
+		public synchronized int queuedRepairs() {
+			return repairs.size();
+		}
+
+		// Writes dropped because the queue was full
+		public synchronized int droppedRepairs() {
+			return droppedRepairs;
+		}
+
+		synchronized void onSuccess(long startTime) {
+			latency.add(System.currentTimeMillis() - startTime);
+		}
+
+		synchronized void onFailure(long startTime) {
+			latency.add(System.currentTimeMillis() - startTime);
+			lastFailure = System.currentTimeMillis();
+		}
+
+		// Queues a write that failed on this replica. If repair is null, the write has been queued already.
+		void repairLater(Repair repair) {
+			synchronized (this) {
+				lastFailure = System.currentTimeMillis();
+				if (repair != null) addRepair(repair);
+				if (repairScheduled) return;
+				repairScheduled = true;
+			}
+
+			scheduleRepair(Condensation.currentLoop());
+		}
+
+		// Queues the write behind the writes waiting to be retried, if any. Returns false if the write can be sent right
+		// away.
+		synchronized boolean queueIfRepairing(Repair repair) {
+			if (repairs.isEmpty()) return false;
+			addRepair(repair);
+			return true;
+		}
+
+		// Sends the modification, unless another one is in progress, or writes are queued.
+		void submitModify(ReplicaModify modify) {
+			boolean send;
+			synchronized (this) {
+				if (modifying) {
+					waitingModifies.add(modify);
+					return;
+				}
+
+				send = repairs.isEmpty();
+				if (send) modifying = true;
+				else addRepair(modify.repair);
+			}
+
+			if (send) modify.send();
+			else modify.quorum.onQueued(this);
+		}
+
+		void onModifyDone() {
+			ReplicaModify next;
+			ArrayList<ReplicaModify> queued = new ArrayList<>();
+			synchronized (this) {
+				next = waitingModifies.poll();
+				if (next != null && !repairs.isEmpty()) {
+					queued.add(next);
+					next = null;
+					queueWaitingModifies(queued);
+				}
+
+				if (next == null) modifying = false;
+			}
+
+			if (next != null) next.send();
+			for (ReplicaModify modify : queued) modify.quorum.onQueued(this);
+		}
+
+		// Queues the failed modification, and all modifications waiting for it.
+		void onModifyFailed(RepairModify repair) {
+			ArrayList<ReplicaModify> queued = new ArrayList<>();
+			synchronized (this) {
+				modifying = false;
+				addRepair(repair);
+				queueWaitingModifies(queued);
+			}
+
+			repairLater(null);
+			for (ReplicaModify modify : queued) modify.quorum.onQueued(this);
+		}
+
+		// Must be called while synchronized.
+		private void queueWaitingModifies(ArrayList<ReplicaModify> queued) {
+			for (ReplicaModify modify : queued) addRepair(modify.repair);
+			while (!waitingModifies.isEmpty()) {
+				ReplicaModify modify = waitingModifies.poll();
+				addRepair(modify.repair);
+				queued.add(modify);
+			}
+		}
+
+		// Must be called while synchronized.
+		private void addRepair(Repair repair) {
+			if (repairs.size() >= maximumQueuedRepairs) {
+				repairs.poll();
+				droppedRepairs += 1;
+				if (droppedRepairs == 1) Condensation.log("Too many failed writes on " + store.id + ". This replica must be resynchronized.");
+			}
+
+			repairs.add(repair);
+		}
+
+		void scheduleRepair(final EventLoop eventLoop) {
+			long delay;
+			synchronized (this) {
+				delay = repairDelay;
+			}
+
+			eventLoop.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					Repair repair;
+					synchronized (Replica.this) {
+						repair = repairs.peek();
+						if (repair == null) {
+							repairScheduled = false;
+							repairDelay = retryDelay;
+							return;
+						}
+					}
+
+					repair.start(Replica.this);
+				}
+			}, delay);
+		}
+
+		void onRepairDone(Repair repair) {
+			synchronized (this) {
+				if (repairs.peek() == repair) repairs.poll();
+				repairDelay = 0;
+			}
+
+			scheduleRepair(Condensation.currentLoop());
+		}
+
+		void onRepairFailed() {
+			synchronized (this) {
+				lastFailure = System.currentTimeMillis();
+				repairDelay = Math.min(maximumRetryDelay, Math.max(retryDelay, repairDelay * 2));
+			}
+
+			scheduleRepair(Condensation.currentLoop());
+		}
+	}
+
+	// Returns the replicas in the order in which they should be read from: healthy replicas first, then by average
+	// response time.
+	ArrayList<Replica> replicasForReading() {
+		ArrayList<Replica> list = new ArrayList<>(replicas);
+		final HashMap<Replica, Boolean> healthy = new HashMap<>();
+		final HashMap<Replica, Double> averages = new HashMap<>();
+		for (Replica replica : list) {
+			healthy.put(replica, replica.isHealthy());
+			averages.put(replica, replica.latency.average());
+		}
+
+		Collections.sort(list, new Comparator<Replica>() {
+			@Override
+			public int compare(Replica a, Replica b) {
+				boolean healthyA = healthy.get(a);
+				boolean healthyB = healthy.get(b);
+				if (healthyA != healthyB) return healthyA ? -1 : 1;
+				return Double.compare(averages.get(a), averages.get(b));
+			}
+		});
+
+		return list;
+	}
+
+	// *** Repairs
+
+	// A write to be retried on a replica. Once done, start() must call replica.onRepairDone() or replica.onRepairFailed().
+	abstract static class Repair {
+		abstract void start(Replica replica);
+	}
+
+	static class RepairPut extends Repair implements PutDone {
+		final Hash hash;
+		final CondensationObject object;
+		final KeyPair keyPair;
+		Replica replica;
+
+		RepairPut(Hash hash, CondensationObject object, KeyPair keyPair) {
+			this.hash = hash;
+			this.object = object;
+			this.keyPair = keyPair;
+		}
+
+		@Override
+		void start(Replica replica) {
+			this.replica = replica;
+			replica.store.put(hash, object, keyPair, this);
+		}
+
+		@Override
+		public void onPutDone() {
+			replica.onRepairDone(this);
+		}
+
+		@Override
+		public void onPutStoreError(@NonNull String error) {
+			replica.onRepairFailed();
+		}
+	}
+
+	static class RepairPutMany extends Repair implements PutManyDone {
+		final Map<Hash, CondensationObject> objects;
+		final KeyPair keyPair;
+		Replica replica;
+
+		RepairPutMany(Map<Hash, CondensationObject> objects, KeyPair keyPair) {
+			this.objects = objects;
+			this.keyPair = keyPair;
+		}
+
+		@Override
+		void start(Replica replica) {
+			this.replica = replica;
+			replica.store.putMany(objects, keyPair, this);
+		}
+
+		@Override
+		public void onPutManyDone() {
+			replica.onRepairDone(this);
+		}
+
+		@Override
+		public void onPutManyStoreError(@NonNull String error) {
+			replica.onRepairFailed();
+		}
+	}
+
+	// Copies the tree from the other replicas if this replica does not have it. Objects already there are booked, and
+	// their subtrees are supposed to be complete.
+	class RepairBook extends Repair implements Transfer.Done {
+		final Hash hash;
+		final KeyPair keyPair;
+		Replica replica;
+
+		RepairBook(Hash hash, KeyPair keyPair) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+		}
+
+		@Override
+		void start(Replica replica) {
+			this.replica = replica;
+			new Transfer(keyPair, Collections.singletonList(hash), ReplicatedStore.this, replica.store, this);
+		}
+
+		@Override
+		public void onTransferDone() {
+			replica.onRepairDone(this);
+		}
+
+		@Override
+		public void onTransferMissingObject(@NonNull MissingObject missingObject) {
+			// The tree is incomplete on all replicas, so there is nothing to copy
+			replica.onRepairDone(this);
+		}
+
+		@Override
+		public void onTransferStoreError(@NonNull Store store, @NonNull String error) {
+			replica.onRepairFailed();
+		}
+	}
+
+	static class RepairModify extends Repair implements ModifyDone {
+		final Collection<BoxAddition> additions;
+		final Collection<BoxRemoval> removals;
+		final KeyPair keyPair;
+		Replica replica;
+
+		RepairModify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals, KeyPair keyPair) {
+			this.additions = additions;
+			this.removals = removals;
+			this.keyPair = keyPair;
+		}
+
+		@Override
+		void start(Replica replica) {
+			this.replica = replica;
+			replica.store.modify(additions, removals, keyPair, this);
+		}
+
+		@Override
+		public void onModifyDone() {
+			replica.onRepairDone(this);
+		}
+
+		@Override
+		public void onModifyStoreError(@NonNull String error) {
+			replica.onRepairFailed();
+		}
+	}
+
+	// *** Writes
+
+	// Counts the responses of the replicas, and reports the result once the quorum has been reached, or can't be reached
+	// any more.
+	abstract class Quorum {
+		int succeeded = 0;
+		int failed = 0;
+		boolean reported = false;
+		String errors = "";
+
+		void onSucceeded(Replica replica, long startTime) {
+			replica.onSuccess(startTime);
+			succeeded += 1;
+			check();
+		}
+
+		// If repair is null, the replica has queued the write already.
+		void onFailed(Replica replica, long startTime, String error, Repair repair) {
+			replica.onFailure(startTime);
+			replica.repairLater(repair);
+			addError(replica, error);
+		}
+
+		// The write has been queued behind earlier failed writes.
+		void onQueued(Replica replica) {
+			addError(replica, "Queued behind failed writes.");
+		}
+
+		private void addError(Replica replica, String error) {
+			failed += 1;
+			if (!errors.isEmpty()) errors += "\n";
+			errors += replica.store.id + ": " + error;
+			check();
+		}
+
+		void check() {
+			if (reported) return;
+			if (succeeded >= writeQuorum) {
+				reported = true;
+				onQuorumReached();
+			} else if (failed > replicas.size() - writeQuorum) {
+				reported = true;
+				onQuorumFailed(errors);
+			}
+		}
+
+		abstract void onQuorumReached();
+
+		abstract void onQuorumFailed(String errors);
+	}
+
+	@Override
+	public void put(@NonNull final Hash hash, @NonNull final CondensationObject object, @NonNull final KeyPair keyPair, @NonNull final PutDone done) {
+		final Quorum quorum = new Quorum() {
+			@Override
+			void onQuorumReached() {
+				done.onPutDone();
+			}
+
+			@Override
+			void onQuorumFailed(String errors) {
+				done.onPutStoreError(errors);
+			}
+		};
+
+		for (final Replica replica : replicas) {
+			if (replica.queueIfRepairing(new RepairPut(hash, object, keyPair))) {
+				quorum.onQueued(replica);
+				continue;
+			}
+
+			final long startTime = System.currentTimeMillis();
+			replica.store.put(hash, object, keyPair, new PutDone() {
+				@Override
+				public void onPutDone() {
+					quorum.onSucceeded(replica, startTime);
+				}
+
+				@Override
+				public void onPutStoreError(@NonNull String error) {
+					quorum.onFailed(replica, startTime, error, new RepairPut(hash, object, keyPair));
+				}
+			});
+		}
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull final KeyPair keyPair, @NonNull final PutManyDone done) {
+		final HashMap<Hash, CondensationObject> objectsCopy = new HashMap<>(objects);
+		final Quorum quorum = new Quorum() {
+			@Override
+			void onQuorumReached() {
+				done.onPutManyDone();
+			}
+
+			@Override
+			void onQuorumFailed(String errors) {
+				done.onPutManyStoreError(errors);
+			}
+		};
+
+		for (final Replica replica : replicas) {
+			if (replica.queueIfRepairing(new RepairPutMany(objectsCopy, keyPair))) {
+				quorum.onQueued(replica);
+				continue;
+			}
+
+			final long startTime = System.currentTimeMillis();
+			replica.store.putMany(objectsCopy, keyPair, new PutManyDone() {
+				@Override
+				public void onPutManyDone() {
+					quorum.onSucceeded(replica, startTime);
+				}
+
+				@Override
+				public void onPutManyStoreError(@NonNull String error) {
+					quorum.onFailed(replica, startTime, error, new RepairPutMany(objectsCopy, keyPair));
+				}
+			});
+		}
+	}
+
+	// An object is booked once writeQuorum replicas booked it. Replicas without the object then get a copy of the tree in
+	// the background. If fewer replicas have the object, it is reported as not found once all replicas responded, so
+	// that the caller uploads the tree again.
+	@Override
+	public void book(@NonNull final Hash hash, @NonNull final KeyPair keyPair, @NonNull final BookDone done) {
+		new Book(hash, keyPair, done);
+	}
+
+	class Book {
+		final Hash hash;
+		final KeyPair keyPair;
+		final BookDone done;
+		int booked = 0;
+		int notFound = 0;
+		int failed = 0;
+		boolean reported = false;
+		String errors = "";
+		final ArrayList<Replica> replicasWithoutObject = new ArrayList<>();
+
+		Book(Hash hash, KeyPair keyPair, BookDone done) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.done = done;
+
+			for (final Replica replica : replicas) {
+				final long startTime = System.currentTimeMillis();
+				replica.store.book(hash, keyPair, new BookDone() {
+					@Override
+					public void onBookDone() {
+						replica.onSuccess(startTime);
+						booked += 1;
+						check();
+					}
+
+					@Override
+					public void onBookNotFound() {
+						replica.onSuccess(startTime);
+						notFound += 1;
+						replicasWithoutObject.add(replica);
+						check();
+					}
+
+					@Override
+					public void onBookStoreError(@NonNull String error) {
+						replica.onFailure(startTime);
+						failed += 1;
+						if (!errors.isEmpty()) errors += "\n";
+						errors += replica.store.id + ": " + error;
+						replicasWithoutObject.add(replica);
+						check();
+					}
+				});
+			}
+		}
+
+		void check() {
+			boolean complete = booked + notFound + failed == replicas.size();
+			if (complete && booked >= writeQuorum)
+				for (Replica replica : replicasWithoutObject) replica.repairLater(new RepairBook(hash, keyPair));
+
+			if (reported) return;
+			if (booked >= writeQuorum) {
+				reported = true;
+				done.onBookDone();
+			} else if (complete) {
+				// Without a write quorum, the caller must upload the tree again
+				reported = true;
+				if (failed > 0 && booked + notFound < writeQuorum) done.onBookStoreError(errors);
+				else done.onBookNotFound();
+			}
+		}
+	}
+
+	@Override
+	public void modify(@NonNull final Collection<BoxAddition> additions, @NonNull final Collection<BoxRemoval> removals, @NonNull final KeyPair keyPair, @NonNull final ModifyDone done) {
+		final ArrayList<BoxAddition> additionsCopy = new ArrayList<>(additions);
+		final ArrayList<BoxRemoval> removalsCopy = new ArrayList<>(removals);
+		final Quorum quorum = new Quorum() {
+			@Override
+			void onQuorumReached() {
+				done.onModifyDone();
+			}
+
+			@Override
+			void onQuorumFailed(String errors) {
+				done.onModifyStoreError(errors);
+			}
+		};
+
+		for (Replica replica : replicas)
+			replica.submitModify(new ReplicaModify(replica, quorum, new RepairModify(additionsCopy, removalsCopy, keyPair)));
+	}
+
+	// A modification sent to one replica.
+	static class ReplicaModify implements ModifyDone {
+		final Replica replica;
+		final Quorum quorum;
+		final RepairModify repair;
+		long startTime;
+
+		ReplicaModify(Replica replica, Quorum quorum, RepairModify repair) {
+			this.replica = replica;
+			this.quorum = quorum;
+			this.repair = repair;
+		}
+
+		void send() {
+			startTime = System.currentTimeMillis();
+			replica.store.modify(repair.additions, repair.removals, repair.keyPair, this);
+		}
+
+		@Override
+		public void onModifyDone() {
+			quorum.onSucceeded(replica, startTime);
+			replica.onModifyDone();
+		}
+
+		@Override
+		public void onModifyStoreError(@NonNull String error) {
+			replica.onModifyFailed(repair);
+			quorum.onFailed(replica, startTime, error, null);
+		}
+	}
+
+	// *** Reads
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
+		new Get(hash, keyPair, done);
+	}
+
+	class Get implements GetDone {
+		final Hash hash;
+		final KeyPair keyPair;
+		final GetDone done;
+		final ArrayList<Replica> replicasToTry = replicasForReading();
+		final ArrayList<Replica> replicasWithoutObject = new ArrayList<>();
+		int replicasTried = 0;
+		Replica replica;
+		long startTime;
+		String errors = "";
+
+		Get(Hash hash, KeyPair keyPair, GetDone done) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.done = done;
+			tryNextReplica();
+		}
+
+		void tryNextReplica() {
+			if (replicasTried >= replicasToTry.size()) {
+				if (errors.isEmpty()) done.onGetNotFound();
+				else done.onGetStoreError(errors);
+				return;
+			}
+
+			replica = replicasToTry.get(replicasTried);
+			replicasTried += 1;
+			startTime = System.currentTimeMillis();
+			replica.store.get(hash, keyPair, this);
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			replica.onSuccess(startTime);
+			for (Replica replicaWithoutObject : replicasWithoutObject)
+				replicaWithoutObject.repairLater(new RepairPut(hash, object, keyPair));
+			done.onGetDone(object);
+		}
+
+		@Override
+		public void onGetNotFound() {
+			replica.onSuccess(startTime);
+			replicasWithoutObject.add(replica);
+			tryNextReplica();
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			replica.onFailure(startTime);
+			if (!errors.isEmpty()) errors += "\n";
+			errors += replica.store.id + ": " + error;
+			tryNextReplica();
+		}
+	}
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
+		new List(accountHash, boxLabel, timeout, keyPair, done);
+	}
+
+	class List implements ListDone {
+		final Hash accountHash;
+		final BoxLabel boxLabel;
+		final long timeout;
+		final KeyPair keyPair;
+		final ListDone done;
+		final ArrayList<Replica> replicasToTry = replicasForReading();
+		int replicasTried = 0;
+		Replica replica;
+		long startTime;
+		String errors = "";
+
+		List(Hash accountHash, BoxLabel boxLabel, long timeout, KeyPair keyPair, ListDone done) {
+			this.accountHash = accountHash;
+			this.boxLabel = boxLabel;
+			this.timeout = timeout;
+			this.keyPair = keyPair;
+			this.done = done;
+			tryNextReplica();
+		}
+
+		void tryNextReplica() {
+			if (replicasTried >= replicasToTry.size()) {
+				done.onListStoreError(errors);
+				return;
+			}
+
+			replica = replicasToTry.get(replicasTried);
+			replicasTried += 1;
+			startTime = System.currentTimeMillis();
+			replica.store.list(accountHash, boxLabel, timeout, keyPair, this);
+		}
+
+		@Override
+		public void onListDone(ArrayList<Hash> hashes) {
+			// Long polling requests wait for changes, and are therefore not representative
+			if (timeout == 0) replica.onSuccess(startTime);
+			done.onListDone(hashes);
+		}
+
+		@Override
+		public void onListStoreError(@NonNull String error) {
+			replica.onFailure(startTime);
+			if (!errors.isEmpty()) errors += "\n";
+			errors += replica.store.id + ": " + error;
+			tryNextReplica();
+		}
+	}
+}
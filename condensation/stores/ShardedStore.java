@@ -0,0 +1,431 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import condensation.ImmutableList;
+import condensation.actors.KeyPair;
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.tasks.AwaitCounter;
+
+// Distributes objects and accounts over several stores (shards), e.g. FolderStores on different disks. Objects are
+// routed by their hash, and boxes by the account hash, using rendezvous hashing: each shard gets a score for the hash
+// and its shard key, and the shard with the highest score wins. When a shard is added, only the objects and accounts for which the new
+// shard wins move.
+//
+// After adding a shard, the store is rebalancing: objects not found on their new shard are read from their previous
+// shard (and copied to the new shard), and boxes are merged from both shards. For FolderStore shards,
+// RebalanceShards moves all objects and accounts, and finishes rebalancing. For other stores, finishRebalancing() must
+// be called once the data has been moved.
+public class ShardedStore extends Store {
+	public static ShardedStore create(Shard... shards) {
+		return new ShardedStore(ImmutableList.create(shards));
+	}
+
+	private static String createId(ImmutableList<Shard> shards) {
+		StringBuilder text = new StringBuilder("Sharded Store");
+		for (Shard shard : shards)
+			text.append("\n").append(shard.key).append(" ").append(shard.store.id);
+		return text.toString();
+	}
+
+	// A store with the key used for routing. The key must remain the same for the lifetime of the shard, even if the
+	// store moves (e.g. to another path or drive). FolderStore.shardKey() keeps such a key in the folder.
+	public static class Shard {
+		public final String key;
+		public final Store store;
+		final long routingKey;
+
+		public Shard(@NonNull String key, @NonNull Store store) {
+			this.key = key;
+			this.store = store;
+			this.routingKey = Hash.calculateFor(Bytes.fromText(key)).bytes.getInteger64(0);
+		}
+	}
+
+	// The current and, while rebalancing, the previous shards. These are not persisted: the application must remember
+	// the previous shards until rebalancing is finished, and recreate the store with both after a restart.
+	private volatile ImmutableList<Shard> shards;
+	private volatile ImmutableList<Shard> previousShards;
+
+	public ShardedStore(ImmutableList<Shard> shards) {
+		this(shards, null);
+	}
+
+	// Creates a store which is rebalancing from previousShards (e.g. after a restart while rebalancing), or a balanced
+	// store if previousShards is null.
+	public ShardedStore(ImmutableList<Shard> shards, ImmutableList<Shard> previousShards) {
+		super(createId(shards));
+		this.shards = shards;
+		this.previousShards = previousShards;
+	}
+
+	public ImmutableList<Store> shards() {
+		return stores(shards);
+	}
+
+	public ImmutableList<Store> previousShards() {
+		ImmutableList<Shard> previous = previousShards;
+		return previous == null ? null : stores(previous);
+	}
+
+	private static ImmutableList<Store> stores(ImmutableList<Shard> shards) {
+		ArrayList<Store> stores = new ArrayList<>(shards.size());
+		for (Shard shard : shards) stores.add(shard.store);
+		return ImmutableList.from(stores);
+	}
+
+	// *** Routing
+
+	// Returns the shard responsible for this object or account.
+	public Store shardFor(Hash hash) {
+		return shardFor(hash, shards);
+	}
+
+	// Returns the shard that was responsible before rebalancing started, or null if it has not changed.
+	public Store previousShardFor(Hash hash) {
+		ImmutableList<Shard> previous = previousShards;
+		if (previous == null) return null;
+		Store previousShard = shardFor(hash, previous);
+		return previousShard.equals(shardFor(hash)) ? null : previousShard;
+	}
+
+	public static Store shardFor(Hash hash, ImmutableList<Shard> shards) {
+		long key = hash.bytes.getInteger64(0);
+		Shard bestShard = null;
+		long bestScore = 0L;
+		for (Shard shard : shards) {
+			long score = mix(key ^ shard.routingKey);
+			if (bestShard == null || score > bestScore) {
+				bestShard = shard;
+				bestScore = score;
+			}
+		}
+
+		return bestShard == null ? null : bestShard.store;
+	}
+
+	// Finalizer of SplitMix64, which distributes the bits of the value evenly
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+	// *** Rebalancing
+
+	// Adds a shard, and starts rebalancing. Returns false if the store is rebalancing already.
+	public synchronized boolean addShard(Shard shard) {
+		if (previousShards != null) return false;
+
+		previousShards = shards;
+		shards = shards.with(shard);
+		return true;
+	}
+
+	// Called once all objects and accounts are on their current shard.
+	public synchronized void finishRebalancing() {
+		previousShards = null;
+	}
+
+	public boolean isRebalancing() {
+		return previousShards != null;
+	}
+
+	// *** Objects
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
+		Store previousShard = previousShardFor(hash);
+		if (previousShard == null) shardFor(hash).get(hash, keyPair, done);
+		else new GetWhileRebalancing(hash, keyPair, previousShard, done);
+	}
+
+	class GetWhileRebalancing implements GetDone {
+		final Hash hash;
+		final KeyPair keyPair;
+		final Store shard;
+		final Store previousShard;
+		final GetDone done;
+		boolean triedPreviousShard = false;
+
+		GetWhileRebalancing(Hash hash, KeyPair keyPair, Store previousShard, GetDone done) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.shard = shardFor(hash);
+			this.previousShard = previousShard;
+			this.done = done;
+			shard.get(hash, keyPair, this);
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			// Move the object to its new shard
+			if (triedPreviousShard) shard.put(hash, object, keyPair, Store.ignore);
+			done.onGetDone(object);
+		}
+
+		@Override
+		public void onGetNotFound() {
+			if (triedPreviousShard) {
+				done.onGetNotFound();
+				return;
+			}
+
+			triedPreviousShard = true;
+			previousShard.get(hash, keyPair, this);
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			done.onGetStoreError(error);
+		}
+	}
+
+	@Override
+	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull BookDone done) {
+		Store previousShard = previousShardFor(hash);
+		if (previousShard == null) shardFor(hash).book(hash, keyPair, done);
+		else new BookWhileRebalancing(hash, keyPair, previousShard, done);
+	}
+
+	class BookWhileRebalancing implements BookDone {
+		final Hash hash;
+		final KeyPair keyPair;
+		final Store previousShard;
+		final BookDone done;
+		boolean triedPreviousShard = false;
+
+		BookWhileRebalancing(Hash hash, KeyPair keyPair, Store previousShard, BookDone done) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.previousShard = previousShard;
+			this.done = done;
+			shardFor(hash).book(hash, keyPair, this);
+		}
+
+		@Override
+		public void onBookDone() {
+			done.onBookDone();
+		}
+
+		@Override
+		public void onBookNotFound() {
+			if (triedPreviousShard) {
+				done.onBookNotFound();
+				return;
+			}
+
+			// The object is booked on its previous shard, and keeps its booking time when moved
+			triedPreviousShard = true;
+			previousShard.book(hash, keyPair, this);
+		}
+
+		@Override
+		public void onBookStoreError(@NonNull String error) {
+			done.onBookStoreError(error);
+		}
+	}
+
+	@Override
+	public void put(@NonNull Hash hash, @NonNull CondensationObject object, @NonNull KeyPair keyPair, @NonNull PutDone done) {
+		shardFor(hash).put(hash, object, keyPair, done);
+	}
+
+	// Sends one putMany per shard.
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		new PutMany(objects, keyPair, done);
+	}
+
+	class PutMany implements AwaitCounter.Done {
+		final PutManyDone done;
+		String error = null;
+
+		PutMany(Map<Hash, CondensationObject> objects, KeyPair keyPair, PutManyDone done) {
+			this.done = done;
+
+			HashMap<Store, HashMap<Hash, CondensationObject>> objectsByShard = new HashMap<>();
+			for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+				Store shard = shardFor(entry.getKey());
+				HashMap<Hash, CondensationObject> shardObjects = objectsByShard.get(shard);
+				if (shardObjects == null) {
+					shardObjects = new HashMap<>();
+					objectsByShard.put(shard, shardObjects);
+				}
+
+				shardObjects.put(entry.getKey(), entry.getValue());
+			}
+
+			final AwaitCounter awaitCounter = new AwaitCounter();
+			for (Map.Entry<Store, HashMap<Hash, CondensationObject>> entry : objectsByShard.entrySet()) {
+				awaitCounter.await();
+				entry.getKey().putMany(entry.getValue(), keyPair, new PutManyDone() {
+					@Override
+					public void onPutManyDone() {
+						awaitCounter.done();
+					}
+
+					@Override
+					public void onPutManyStoreError(@NonNull String error) {
+						PutMany.this.error = error;
+						awaitCounter.done();
+					}
+				});
+			}
+
+			awaitCounter.then(this);
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onPutManyStoreError(error);
+			else done.onPutManyDone();
+		}
+	}
+
+	// *** Boxes
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
+		Store previousShard = previousShardFor(accountHash);
+		if (previousShard == null) shardFor(accountHash).list(accountHash, boxLabel, timeout, keyPair, done);
+		else new ListWhileRebalancing(accountHash, boxLabel, keyPair, previousShard, done);
+	}
+
+	// Merges the box on the current and the previous shard. Long polling is not supported while rebalancing.
+	class ListWhileRebalancing implements AwaitCounter.Done {
+		final ListDone done;
+		final ArrayList<Hash> hashes = new ArrayList<>();
+		String error = null;
+
+		ListWhileRebalancing(Hash accountHash, BoxLabel boxLabel, KeyPair keyPair, Store previousShard, ListDone done) {
+			this.done = done;
+			AwaitCounter awaitCounter = new AwaitCounter();
+			list(shardFor(accountHash), accountHash, boxLabel, keyPair, awaitCounter);
+			list(previousShard, accountHash, boxLabel, keyPair, awaitCounter);
+			awaitCounter.then(this);
+		}
+
+		void list(Store shard, Hash accountHash, BoxLabel boxLabel, KeyPair keyPair, final AwaitCounter awaitCounter) {
+			awaitCounter.await();
+			shard.list(accountHash, boxLabel, 0L, keyPair, new ListDone() {
+				@Override
+				public void onListDone(ArrayList<Hash> result) {
+					for (Hash hash : result)
+						if (!hashes.contains(hash)) hashes.add(hash);
+					awaitCounter.done();
+				}
+
+				@Override
+				public void onListStoreError(@NonNull String error) {
+					ListWhileRebalancing.this.error = error;
+					awaitCounter.done();
+				}
+			});
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onListStoreError(error);
+			else done.onListDone(hashes);
+		}
+	}
+
+	// Sends one modify per shard. While rebalancing, removals are sent to the previous shard as well, so that removed
+	// entries do not reappear. They are sent to the previous shard first, so that RebalanceShards, which copies box
+	// entries from the previous to the current shard, either does not copy them, or copies them before they are removed
+	// from the current shard.
+	@Override
+	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull ModifyDone done) {
+		new Modify(additions, removals, keyPair, done);
+	}
+
+	class Modify implements AwaitCounter.Done {
+		final KeyPair keyPair;
+		final ModifyDone done;
+		final HashMap<Store, ArrayList<BoxAddition>> additionsByShard = new HashMap<>();
+		final HashMap<Store, ArrayList<BoxRemoval>> removalsByShard = new HashMap<>();
+		final HashMap<Store, ArrayList<BoxRemoval>> previousRemovalsByShard = new HashMap<>();
+		boolean modifyingCurrentShards = false;
+		String error = null;
+
+		Modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals, KeyPair keyPair, ModifyDone done) {
+			this.keyPair = keyPair;
+			this.done = done;
+
+			for (BoxAddition addition : additions)
+				additions(shardFor(addition.accountHash)).add(addition);
+
+			for (BoxRemoval removal : removals) {
+				removals(removalsByShard, shardFor(removal.accountHash)).add(removal);
+				Store previousShard = previousShardFor(removal.accountHash);
+				if (previousShard != null) removals(previousRemovalsByShard, previousShard).add(removal);
+			}
+
+			for (Store shard : additionsByShard.keySet()) removals(removalsByShard, shard);
+			if (previousRemovalsByShard.isEmpty()) modifyCurrentShards();
+			else send(previousRemovalsByShard);
+		}
+
+		void modifyCurrentShards() {
+			modifyingCurrentShards = true;
+			send(removalsByShard);
+		}
+
+		void send(HashMap<Store, ArrayList<BoxRemoval>> removals) {
+			final AwaitCounter awaitCounter = new AwaitCounter();
+			for (Map.Entry<Store, ArrayList<BoxRemoval>> entry : removals.entrySet()) {
+				awaitCounter.await();
+				ArrayList<BoxAddition> additions = modifyingCurrentShards ? additions(entry.getKey()) : BoxAddition.none;
+				entry.getKey().modify(additions, entry.getValue(), keyPair, new ModifyDone() {
+					@Override
+					public void onModifyDone() {
+						awaitCounter.done();
+					}
+
+					@Override
+					public void onModifyStoreError(@NonNull String error) {
+						Modify.this.error = error;
+						awaitCounter.done();
+					}
+				});
+			}
+
+			awaitCounter.then(this);
+		}
+
+		ArrayList<BoxAddition> additions(Store shard) {
+			ArrayList<BoxAddition> list = additionsByShard.get(shard);
+			if (list == null) {
+				list = new ArrayList<>();
+				additionsByShard.put(shard, list);
+			}
+
+			return list;
+		}
+
+		ArrayList<BoxRemoval> removals(HashMap<Store, ArrayList<BoxRemoval>> removalsByShard, Store shard) {
+			ArrayList<BoxRemoval> list = removalsByShard.get(shard);
+			if (list == null) {
+				list = new ArrayList<>();
+				removalsByShard.put(shard, list);
+			}
+
+			return list;
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onModifyStoreError(error);
+			else if (!modifyingCurrentShards) modifyCurrentShards();
+			else done.onModifyDone();
+		}
+	}
+}
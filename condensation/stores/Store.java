@@ -4,10 +4,15 @@ import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
+import condensation.tasks.AwaitCounter;
 
 // Methods are called from the main thread, and must not block, but call the handler (on the main thread) when done.
 // More than one method may be called at the same time.
@@ -53,6 +58,70 @@ public abstract class Store {
 		void onPutStoreError(@NonNull String error);
 	}
 
+	// Asynchronous batch interface
+	// Stores should override these if they can process several objects at a lower cost than one at a time. The default
+	// implementations call the single-object methods, and report when all of them are done.
+
+	// Returns the objects that were found. Hashes that are not in the store are missing in the map.
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		new GetEach(this, hashes, keyPair, done);
+	}
+
+	public interface GetManyDone {
+		void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects);
+
+		void onGetManyStoreError(@NonNull String error);
+	}
+
+	// Returns the hashes that could not be booked, because they are not in the store.
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		new BookEach(this, hashes, keyPair, done);
+	}
+
+	public interface BookManyDone {
+		void onBookManyDone(@NonNull ArrayList<Hash> notFound);
+
+		void onBookManyStoreError(@NonNull String error);
+	}
+
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		new PutEach(this, objects, keyPair, done);
+	}
+
+	public interface PutManyDone {
+		void onPutManyDone();
+
+		void onPutManyStoreError(@NonNull String error);
+	}
+
+	// Asynchronous pack interface
+	// Stores able to exchange whole packs in one go (e.g. in a single HTTP request) should override these.
+
+	// Adds all objects of the pack. By default, this is the same as putMany.
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		putMany(pack.toMap(), keyPair, new PutPackAsPutMany(done));
+	}
+
+	public interface PutPackDone {
+		void onPutPackDone();
+
+		void onPutPackStoreError(@NonNull String error);
+	}
+
+	// Returns the tree below root as a pack, with children listed before their parents. Objects missing in the store are
+	// left out. By default, the tree is retrieved level by level with getMany.
+	public void getPack(@NonNull Hash root, @NonNull KeyPair keyPair, @NonNull GetPackDone done) {
+		new GetTree(this, root, keyPair, done);
+	}
+
+	public interface GetPackDone {
+		void onGetPackDone(@NonNull ObjectPack pack);
+
+		void onGetPackNotFound();
+
+		void onGetPackStoreError(@NonNull String error);
+	}
+
 	// Asynchronous account store interface
 
 	public abstract void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done);
@@ -85,9 +154,205 @@ public abstract class Store {
 		return id.hashCode();
 	}
 
+	// *** Default batch implementations
+
+	static class GetEach implements AwaitCounter.Done {
+		final GetManyDone done;
+		final HashMap<Hash, CondensationObject> objects = new HashMap<>();
+		String error = null;
+
+		GetEach(Store store, Collection<Hash> hashes, KeyPair keyPair, GetManyDone done) {
+			this.done = done;
+			AwaitCounter awaitCounter = new AwaitCounter();
+			for (Hash hash : hashes) new Get(store, hash, keyPair, awaitCounter);
+			awaitCounter.then(this);
+		}
+
+		class Get implements GetDone {
+			final Hash hash;
+			final AwaitCounter awaitCounter;
+
+			Get(Store store, Hash hash, KeyPair keyPair, AwaitCounter awaitCounter) {
+				this.hash = hash;
+				this.awaitCounter = awaitCounter;
+				awaitCounter.await();
+				store.get(hash, keyPair, this);
+			}
+
+			@Override
+			public void onGetDone(@NonNull CondensationObject object) {
+				objects.put(hash, object);
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onGetNotFound() {
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onGetStoreError(@NonNull String error) {
+				GetEach.this.error = error;
+				awaitCounter.done();
+			}
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onGetManyStoreError(error);
+			else done.onGetManyDone(objects);
+		}
+	}
+
+	static class BookEach implements AwaitCounter.Done {
+		final BookManyDone done;
+		final ArrayList<Hash> notFound = new ArrayList<>();
+		String error = null;
+
+		BookEach(Store store, Collection<Hash> hashes, KeyPair keyPair, BookManyDone done) {
+			this.done = done;
+			AwaitCounter awaitCounter = new AwaitCounter();
+			for (Hash hash : hashes) new Book(store, hash, keyPair, awaitCounter);
+			awaitCounter.then(this);
+		}
+
+		class Book implements BookDone {
+			final Hash hash;
+			final AwaitCounter awaitCounter;
+
+			Book(Store store, Hash hash, KeyPair keyPair, AwaitCounter awaitCounter) {
+				this.hash = hash;
+				this.awaitCounter = awaitCounter;
+				awaitCounter.await();
+				store.book(hash, keyPair, this);
+			}
+
+			@Override
+			public void onBookDone() {
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onBookNotFound() {
+				notFound.add(hash);
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onBookStoreError(@NonNull String error) {
+				BookEach.this.error = error;
+				awaitCounter.done();
+			}
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onBookManyStoreError(error);
+			else done.onBookManyDone(notFound);
+		}
+	}
+
+	static class PutEach implements PutDone, AwaitCounter.Done {
+		final PutManyDone done;
+		final AwaitCounter awaitCounter = new AwaitCounter();
+		String error = null;
+
+		PutEach(Store store, Map<Hash, CondensationObject> objects, KeyPair keyPair, PutManyDone done) {
+			this.done = done;
+			for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+				awaitCounter.await();
+				store.put(entry.getKey(), entry.getValue(), keyPair, this);
+			}
+			awaitCounter.then(this);
+		}
+
+		@Override
+		public void onPutDone() {
+			awaitCounter.done();
+		}
+
+		@Override
+		public void onPutStoreError(@NonNull String error) {
+			this.error = error;
+			awaitCounter.done();
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onPutManyStoreError(error);
+			else done.onPutManyDone();
+		}
+	}
+
+	static class PutPackAsPutMany implements PutManyDone {
+		final PutPackDone done;
+
+		PutPackAsPutMany(PutPackDone done) {
+			this.done = done;
+		}
+
+		@Override
+		public void onPutManyDone() {
+			done.onPutPackDone();
+		}
+
+		@Override
+		public void onPutManyStoreError(@NonNull String error) {
+			done.onPutPackStoreError(error);
+		}
+	}
+
+	static class GetTree implements GetManyDone {
+		final Store store;
+		final Hash root;
+		final KeyPair keyPair;
+		final GetPackDone done;
+		final HashSet<Hash> visited = new HashSet<>();
+		final ArrayList<HashMap<Hash, CondensationObject>> levels = new ArrayList<>();
+
+		GetTree(Store store, Hash root, KeyPair keyPair, GetPackDone done) {
+			this.store = store;
+			this.root = root;
+			this.keyPair = keyPair;
+			this.done = done;
+			visited.add(root);
+			ArrayList<Hash> firstLevel = new ArrayList<>();
+			firstLevel.add(root);
+			store.getMany(firstLevel, keyPair, this);
+		}
+
+		@Override
+		public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects) {
+			if (levels.isEmpty() && objects.isEmpty()) {
+				done.onGetPackNotFound();
+				return;
+			}
+
+			levels.add(objects);
+			ArrayList<Hash> nextLevel = new ArrayList<>();
+			for (CondensationObject object : objects.values())
+				for (Hash hash : object.hashes())
+					if (visited.add(hash)) nextLevel.add(hash);
+
+			if (!nextLevel.isEmpty()) {
+				store.getMany(nextLevel, keyPair, this);
+				return;
+			}
+
+			HashMap<Hash, CondensationObject> tree = new HashMap<>();
+			for (HashMap<Hash, CondensationObject> level : levels) tree.putAll(level);
+			done.onGetPackDone(ObjectPack.childrenFirst(tree));
+		}
+
+		@Override
+		public void onGetManyStoreError(@NonNull String error) {
+			done.onGetPackStoreError(error);
+		}
+	}
+
 	public static Ignore ignore = new Ignore();
 
-	static class Ignore implements GetDone, PutDone, BookDone, ListDone, ModifyDone {
+	static class Ignore implements GetDone, PutDone, BookDone, ListDone, ModifyDone, GetManyDone, BookManyDone, PutManyDone, PutPackDone, GetPackDone {
 		@Override
 		public void onGetDone(@NonNull CondensationObject object) {
 		}
@@ -135,5 +400,49 @@ public abstract class Store {
 		@Override
 		public void onModifyStoreError(@NonNull String error) {
 		}
+
+		@Override
+		public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects) {
+		}
+
+		@Override
+		public void onGetManyStoreError(@NonNull String error) {
+		}
+
+		@Override
+		public void onBookManyDone(@NonNull ArrayList<Hash> notFound) {
+		}
+
+		@Override
+		public void onBookManyStoreError(@NonNull String error) {
+		}
+
+		@Override
+		public void onPutManyDone() {
+		}
+
+		@Override
+		public void onPutManyStoreError(@NonNull String error) {
+		}
+
+		@Override
+		public void onPutPackDone() {
+		}
+
+		@Override
+		public void onPutPackStoreError(@NonNull String error) {
+		}
+
+		@Override
+		public void onGetPackDone(@NonNull ObjectPack pack) {
+		}
+
+		@Override
+		public void onGetPackNotFound() {
+		}
+
+		@Override
+		public void onGetPackStoreError(@NonNull String error) {
+		}
 	}
 }
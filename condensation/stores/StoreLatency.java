@@ -0,0 +1,41 @@
+package condensation.stores;
+
+import java.util.Arrays;
+
+// Keeps track of the response times of a store: an exponentially weighted moving average, and the most recent samples
+// to calculate percentiles. This is thread-safe.
+public class StoreLatency {
+	static final double weight = 0.2;
+	static final int sampleCount = 64;
+
+	private double average = 0.0;
+	private final long[] samples = new long[sampleCount];
+	private int count = 0;
+	private int next = 0;
+
+	public synchronized void add(long milliseconds) {
+		average = count == 0 ? milliseconds : average + weight * (milliseconds - average);
+		samples[next] = milliseconds;
+		next = (next + 1) % sampleCount;
+		if (count < sampleCount) count += 1;
+	}
+
+	public synchronized boolean hasSamples() {
+		return count > 0;
+	}
+
+	// The moving average, or 0 if there are no samples.
+	public synchronized double average() {
+		return average;
+	}
+
+	// Returns the response time which the given fraction (0 - 1) of recent samples did not exceed, or defaultValue if
+	// there are no samples.
+	public synchronized long percentile(double fraction, long defaultValue) {
+		if (count == 0) return defaultValue;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+}
@@ -3,10 +3,12 @@ package condensation.stores;
 import androidx.annotation.NonNull;
 
 import java.util.Collection;
+import java.util.Map;
 
 import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 
 public class StoreWithUrl extends Store {
 	final Store store;
@@ -33,6 +35,31 @@ public class StoreWithUrl extends Store {
 		store.put(hash, object, keyPair, done);
 	}
 
+	@Override
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		store.getMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		store.bookMany(hashes, keyPair, done);
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		store.putMany(objects, keyPair, done);
+	}
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		store.putPack(pack, keyPair, done);
+	}
+
+	@Override
+	public void getPack(@NonNull Hash root, @NonNull KeyPair keyPair, @NonNull GetPackDone done) {
+		store.getPack(root, keyPair, done);
+	}
+
 	@Override
 	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
 		store.list(accountHash, boxLabel, timeout, keyPair, done);
@@ -0,0 +1,561 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import condensation.Condensation;
+import condensation.ImmutableList;
+import condensation.actors.KeyPair;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.tasks.BackgroundTask;
+
+// Keeps objects on several tiers, from the fastest (e.g. a MemoryCacheStore) to the slowest, authoritative tier (e.g.
+// an HTTPStore). Local tiers in between are typically FolderStores.
+//
+// Objects are read from the fastest tier that has them. Objects found on a slower tier are copied to the faster tiers
+// once they have been accessed promotionThreshold times recently, so that a single scan does not fill the local tiers.
+// Objects found on a local tier are booked, so that TrimFolderStore evicts the least recently used ones when the tier
+// exceeds its age or size budget. Evicted objects are simply read (and promoted) from the next tier again.
+//
+// With write-through, puts complete once the authoritative tier has the object. With write-back, puts complete once
+// the slowest local tier has it, and the object is added to the dirty set, which is flushed to the authoritative tier
+// in the background. Dirty objects must not be evicted (see dirtyHashes()). Box modifications flush the dirty set first,
+// since box entries must not refer to objects the authoritative tier does not have yet.
+//
+// With a dirty journal (typically a file beside the slowest local tier), puts complete once the object has been added to
+// the journal, and the dirty set is reloaded when the store is created again, e.g. after a crash. Reloaded objects are
+// flushed using the key pair passed to the constructor. Without a journal, the dirty set is kept in memory only, and
+// flush() must be called before shutting down.
+//
+// Lists and box modifications go to the authoritative tier.
+public class TieredStore extends Store {
+	public static TieredStore writeThrough(Store... tiers) {
+		return new TieredStore(ImmutableList.create(tiers), false);
+	}
+
+	public static TieredStore writeBack(Store... tiers) {
+		return new TieredStore(ImmutableList.create(tiers), true);
+	}
+
+	public static TieredStore writeBack(@NonNull File dirtyJournal, @NonNull KeyPair keyPair, Store... tiers) {
+		return new TieredStore(ImmutableList.create(tiers), dirtyJournal, keyPair);
+	}
+
+	private static String createId(ImmutableList<Store> tiers) {
+		StringBuilder text = new StringBuilder("Tiered Store");
+		for (Store tier : tiers)
+			text.append("\n  ").append(tier.id);
+		return text.toString();
+	}
+
+	// Settings
+	public static int flushBatchSize = 100;
+	public static long flushDelay = 1000L;
+	public static long flushRetryDelay = 10 * 1000L;
+	public int promotionThreshold = 2;
+
+	public final ImmutableList<Store> tiers;
+	public final Store authoritativeTier;
+	public final boolean writeBack;
+	private final DirtyJournal journal;
+
+	// Access frequency, hit statistics, and the dirty set, synchronized on this
+	private final MemoryCacheStore.FrequencySketch sketch = new MemoryCacheStore.FrequencySketch(1 << 16);
+	private final long[] requests;
+	private final long[] hits;
+	private final LinkedHashMap<Hash, KeyPair> dirty = new LinkedHashMap<>();
+	private Flush flush = null;
+	private boolean flushScheduled = false;
+
+	public TieredStore(ImmutableList<Store> tiers, boolean writeBack) {
+		this(tiers, writeBack, null);
+	}
+
+	// Creates a write-back store, and loads the dirty set from the journal. The journal is read right away, so that
+	// dirtyHashes() is complete before any tier is trimmed.
+	public TieredStore(ImmutableList<Store> tiers, @NonNull File dirtyJournal, @NonNull KeyPair keyPair) {
+		this(tiers, true, new DirtyJournal(dirtyJournal));
+
+		try {
+			for (Hash hash : journal.load()) dirty.put(hash, keyPair);
+		} catch (IOException e) {
+			Condensation.logError("Failed to load the dirty journal " + dirtyJournal, e);
+		}
+
+		if (!dirty.isEmpty()) scheduleFlush(flushDelay);
+	}
+
+	private TieredStore(ImmutableList<Store> tiers, boolean writeBack, DirtyJournal journal) {
+		super(createId(tiers));
+		if (tiers.size() == 0) throw new IllegalArgumentException("A tiered store needs at least one tier.");
+		this.tiers = tiers;
+		this.authoritativeTier = tiers.get(tiers.size() - 1);
+		this.writeBack = writeBack;
+		this.journal = journal;
+		this.requests = new long[tiers.size()];
+		this.hits = new long[tiers.size()];
+	}
+
+	// *** Metrics
+
+	// Number of gets sent to this tier
+	public synchronized long requests(int tier) {
+		return requests[tier];
+	}
+
+	// Number of gets served by this tier
+	public synchronized long hits(int tier) {
+		return hits[tier];
+	}
+
+	// Fraction of the gets sent to this tier that it served, or 0 if it did not get any requests yet
+	public synchronized double hitRatio(int tier) {
+		return requests[tier] == 0 ? 0.0 : (double) hits[tier] / requests[tier];
+	}
+
+	// Objects which have not been written to the authoritative tier yet. This is a copy.
+	public synchronized HashSet<Hash> dirtyHashes() {
+		return new HashSet<>(dirty.keySet());
+	}
+
+	// *** Reading
+
+	@Override
+	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
+		synchronized (this) {
+			sketch.increment(hash);
+		}
+
+		new Get(hash, keyPair, done);
+	}
+
+	class Get implements GetDone {
+		final Hash hash;
+		final KeyPair keyPair;
+		final GetDone done;
+		int tier = 0;
+		String error = null;
+
+		Get(Hash hash, KeyPair keyPair, GetDone done) {
+			this.hash = hash;
+			this.keyPair = keyPair;
+			this.done = done;
+			getFromTier();
+		}
+
+		void getFromTier() {
+			synchronized (TieredStore.this) {
+				requests[tier] += 1;
+			}
+
+			tiers.get(tier).get(hash, keyPair, this);
+		}
+
+		@Override
+		public void onGetDone(@NonNull CondensationObject object) {
+			boolean promote;
+			synchronized (TieredStore.this) {
+				hits[tier] += 1;
+				promote = tier > 0 && sketch.frequency(hash) >= promotionThreshold;
+			}
+
+			// Refresh the booking time on local tiers, which serves as access time for eviction
+			if (tier < tiers.size() - 1) tiers.get(tier).book(hash, keyPair, Store.ignore);
+
+			if (promote)
+				for (int i = 0; i < tier; i++)
+					tiers.get(i).put(hash, object, keyPair, Store.ignore);
+
+			done.onGetDone(object);
+		}
+
+		@Override
+		public void onGetNotFound() {
+			next();
+		}
+
+		@Override
+		public void onGetStoreError(@NonNull String error) {
+			this.error = error;
+			next();
+		}
+
+		void next() {
+			tier += 1;
+			if (tier < tiers.size()) getFromTier();
+			else if (error != null) done.onGetStoreError(error);
+			else done.onGetNotFound();
+		}
+	}
+
+	@Override
+	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull final BookDone done) {
+		for (int i = 0; i < tiers.size() - 1; i++)
+			tiers.get(i).book(hash, keyPair, Store.ignore);
+
+		// Dirty objects are not on the authoritative tier yet
+		synchronized (this) {
+			if (dirty.containsKey(hash)) {
+				done.onBookDone();
+				return;
+			}
+		}
+
+		authoritativeTier.book(hash, keyPair, done);
+	}
+
+	// *** Writing
+
+	// With write-back, puts are completed by the slowest local tier, and the authoritative tier is written when flushing.
+	private int completingTier() {
+		return writeBack && tiers.size() > 1 ? tiers.size() - 2 : tiers.size() - 1;
+	}
+
+	@Override
+	public void put(@NonNull final Hash hash, @NonNull CondensationObject object, @NonNull final KeyPair keyPair, @NonNull final PutDone done) {
+		int completingTier = completingTier();
+		for (int i = 0; i < completingTier; i++)
+			tiers.get(i).put(hash, object, keyPair, Store.ignore);
+
+		if (completingTier == tiers.size() - 1) {
+			tiers.get(completingTier).put(hash, object, keyPair, done);
+			return;
+		}
+
+		// The object is dirty once it is stored locally
+		tiers.get(completingTier).put(hash, object, keyPair, new PutDone() {
+			@Override
+			public void onPutDone() {
+				if (journal != null) {
+					new MarkDirty(Collections.singletonList(hash), keyPair, done, null);
+					return;
+				}
+
+				markDirty(Collections.singletonList(hash), keyPair);
+				done.onPutDone();
+			}
+
+			@Override
+			public void onPutStoreError(@NonNull String error) {
+				done.onPutStoreError(error);
+			}
+		});
+	}
+
+	@Override
+	public void putMany(@NonNull final Map<Hash, CondensationObject> objects, @NonNull final KeyPair keyPair, @NonNull final PutManyDone done) {
+		int completingTier = completingTier();
+		for (int i = 0; i < completingTier; i++)
+			tiers.get(i).putMany(objects, keyPair, Store.ignore);
+
+		if (completingTier == tiers.size() - 1) {
+			tiers.get(completingTier).putMany(objects, keyPair, done);
+			return;
+		}
+
+		tiers.get(completingTier).putMany(objects, keyPair, new PutManyDone() {
+			@Override
+			public void onPutManyDone() {
+				if (journal != null) {
+					new MarkDirty(new ArrayList<>(objects.keySet()), keyPair, null, done);
+					return;
+				}
+
+				markDirty(objects.keySet(), keyPair);
+				done.onPutManyDone();
+			}
+
+			@Override
+			public void onPutManyStoreError(@NonNull String error) {
+				done.onPutManyStoreError(error);
+			}
+		});
+	}
+
+	private void markDirty(Collection<Hash> hashes, KeyPair keyPair) {
+		synchronized (this) {
+			for (Hash hash : hashes) dirty.put(hash, keyPair);
+		}
+
+		scheduleFlush(flushDelay);
+	}
+
+	// Adds the objects to the journal, and then to the dirty set. Both happen while holding the journal lock, so that
+	// a snapshot of the journal includes all objects added before.
+	class MarkDirty implements BackgroundTask {
+		final Collection<Hash> hashes;
+		final KeyPair keyPair;
+		final PutDone putDone;
+		final PutManyDone putManyDone;
+		String fileSystemError = null;
+
+		MarkDirty(Collection<Hash> hashes, KeyPair keyPair, PutDone putDone, PutManyDone putManyDone) {
+			this.hashes = hashes;
+			this.keyPair = keyPair;
+			this.putDone = putDone;
+			this.putManyDone = putManyDone;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			synchronized (journal) {
+				try {
+					journal.append(DirtyJournal.dirtyRecord, hashes);
+				} catch (IOException e) {
+					fileSystemError = e.getMessage();
+				}
+
+				// Flush the objects in any case, since they are on the local tier
+				synchronized (TieredStore.this) {
+					for (Hash hash : hashes) dirty.put(hash, keyPair);
+				}
+			}
+		}
+
+		@Override
+		public void after() {
+			scheduleFlush(flushDelay);
+
+			String error = fileSystemError == null ? null : "Failed to write the dirty journal: " + fileSystemError;
+			if (putDone != null) {
+				if (error == null) putDone.onPutDone();
+				else putDone.onPutStoreError(error);
+			} else {
+				if (error == null) putManyDone.onPutManyDone();
+				else putManyDone.onPutManyStoreError(error);
+			}
+		}
+	}
+
+	// Removes the objects from the dirty set, and records this in the journal.
+	private void markClean(Collection<Hash> hashes) {
+		synchronized (this) {
+			for (Hash hash : hashes) dirty.remove(hash);
+		}
+
+		if (journal != null) new MarkClean(new ArrayList<>(hashes));
+	}
+
+	// Objects marked clean have been written to the authoritative tier. Since objects are identified by their hash, this
+	// remains true even if the object has been put again in the meantime, so the order of the records does not matter.
+	class MarkClean implements BackgroundTask {
+		final Collection<Hash> hashes;
+
+		MarkClean(Collection<Hash> hashes) {
+			this.hashes = hashes;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			synchronized (journal) {
+				try {
+					journal.append(DirtyJournal.cleanRecord, hashes);
+					HashSet<Hash> dirtyHashes = dirtyHashes();
+					if (journal.needsSnapshot(dirtyHashes.size())) journal.writeSnapshot(dirtyHashes);
+				} catch (IOException e) {
+					Condensation.logError("Failed to write the dirty journal " + journal.file, e);
+				}
+			}
+		}
+
+		@Override
+		public void after() {
+		}
+	}
+
+	// *** Flushing
+
+	public interface FlushDone {
+		void onFlushDone();
+
+		void onFlushStoreError(@NonNull String error);
+	}
+
+	static final FlushDone ignoreFlush = new FlushDone() {
+		@Override
+		public void onFlushDone() {
+		}
+
+		@Override
+		public void onFlushStoreError(@NonNull String error) {
+		}
+	};
+
+	private final Runnable automaticFlush = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (TieredStore.this) {
+				flushScheduled = false;
+			}
+
+			flush(ignoreFlush);
+		}
+	};
+
+	// Flushes the dirty set soon, unless this is already scheduled.
+	private void scheduleFlush(long delay) {
+		synchronized (this) {
+			if (flushScheduled) return;
+			flushScheduled = true;
+		}
+
+		Condensation.currentLoop().postDelayed(automaticFlush, delay);
+	}
+
+	// Writes all dirty objects to the authoritative tier. If that fails, done receives the error, and the flush is
+	// retried after flushRetryDelay.
+	public void flush(@NonNull FlushDone done) {
+		Flush flushToStart;
+		synchronized (this) {
+			if (flush != null) {
+				flush.waiters.add(done);
+				return;
+			}
+
+			flush = flushToStart = new Flush();
+			flushToStart.waiters.add(done);
+		}
+
+		flushToStart.next();
+	}
+
+	class Flush implements PutManyDone {
+		final ArrayList<FlushDone> waiters = new ArrayList<>();
+		KeyPair keyPair = null;
+		final ArrayList<Hash> remaining = new ArrayList<>();
+		final HashMap<Hash, CondensationObject> objects = new HashMap<>();
+		int tier = 0;
+
+		// Takes the next batch of dirty objects written with the same key pair.
+		void next() {
+			ArrayList<FlushDone> waitersToNotify;
+			synchronized (TieredStore.this) {
+				keyPair = null;
+				remaining.clear();
+				objects.clear();
+				tier = 0;
+				for (Map.Entry<Hash, KeyPair> entry : dirty.entrySet()) {
+					if (remaining.size() >= flushBatchSize) break;
+					if (keyPair == null) keyPair = entry.getValue();
+					else if (!keyPair.equals(entry.getValue())) continue;
+					remaining.add(entry.getKey());
+				}
+
+				if (remaining.isEmpty()) {
+					flush = null;
+					waitersToNotify = waiters;
+				} else {
+					waitersToNotify = null;
+				}
+			}
+
+			if (waitersToNotify == null) {
+				readFromTier();
+				return;
+			}
+
+			for (FlushDone waiter : waitersToNotify)
+				waiter.onFlushDone();
+		}
+
+		// Dirty objects may have been evicted from the fastest tiers, but must be on the slowest local tier.
+		void readFromTier() {
+			if (tier >= tiers.size() - 1) {
+				write();
+				return;
+			}
+
+			tiers.get(tier).getMany(new ArrayList<>(remaining), keyPair, new GetManyDone() {
+				@Override
+				public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> found) {
+					objects.putAll(found);
+					remaining.removeAll(found.keySet());
+					tier += 1;
+					if (remaining.isEmpty()) write();
+					else readFromTier();
+				}
+
+				// A transient error must not let the objects of that tier count as missing
+				@Override
+				public void onGetManyStoreError(@NonNull String error) {
+					failed(error);
+				}
+			});
+		}
+
+		// All local tiers answered, so the remaining objects are missing on each of them.
+		void write() {
+			if (!remaining.isEmpty()) {
+				Condensation.logError("Tiered store: " + remaining.size() + " dirty objects are missing on the local tiers, and cannot be written to " + authoritativeTier.id + ".");
+				markClean(remaining);
+			}
+
+			if (objects.isEmpty()) next();
+			else authoritativeTier.putMany(objects, keyPair, this);
+		}
+
+		@Override
+		public void onPutManyDone() {
+			markClean(objects.keySet());
+			next();
+		}
+
+		@Override
+		public void onPutManyStoreError(@NonNull String error) {
+			failed(error);
+		}
+
+		// Ends the flush, and tries again later.
+		void failed(@NonNull String error) {
+			synchronized (TieredStore.this) {
+				flush = null;
+			}
+
+			for (FlushDone waiter : waiters)
+				waiter.onFlushStoreError(error);
+
+			scheduleFlush(flushRetryDelay);
+		}
+	}
+
+	// *** Boxes
+
+	@Override
+	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
+		authoritativeTier.list(accountHash, boxLabel, timeout, keyPair, done);
+	}
+
+	@Override
+	public void modify(@NonNull final Collection<BoxAddition> additions, @NonNull final Collection<BoxRemoval> removals, @NonNull final KeyPair keyPair, @NonNull final ModifyDone done) {
+		synchronized (this) {
+			if (dirty.isEmpty()) {
+				authoritativeTier.modify(additions, removals, keyPair, done);
+				return;
+			}
+		}
+
+		flush(new FlushDone() {
+			@Override
+			public void onFlushDone() {
+				authoritativeTier.modify(additions, removals, keyPair, done);
+			}
+
+			@Override
+			public void onFlushStoreError(@NonNull String error) {
+				done.onModifyStoreError(error);
+			}
+		});
+	}
+}
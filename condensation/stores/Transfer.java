@@ -7,409 +7,374 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import condensation.Condensation;
 import condensation.actors.KeyPair;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 
 public class Transfer {
-	// Copy operations are "slow", i.e. each transfer only schedules one store operation at a time.
-	// This in turn reduces the memory footprint (cached objects) and the queue length, which in turn reduces potential stalling of concurrent operations.
-	// If an already running operation is scheduled, the operations are merged/joined.
+	// A transfer keeps a window of store operations running. Objects are booked on the destination in batches (bookMany),
+	// and those not found there are retrieved from the source in batches (getMany). Their children are then processed the
+	// same way. The tree is explored depth first, so that subtrees complete (and release their memory) early.
+	// An object may be put onto the destination once all its children are there, or are part of the same pack. Objects
+	// are held in memory until they have been put, and new objects are only retrieved while the held objects fit into the
+	// byte budget. If the whole missing set fits, it is sent as a single pack.
+
+	// Limits used by KeyPair.transfer()
+	public static int defaultWindow = 8;
+	public static int defaultBatchSize = 128;
+	public static long defaultMaximumHeldBytes = 16L * 1024 * 1024;
 
 	public final KeyPair keyPair;
 	public final Store source;
 	public final Store destination;
 	public final Done done;
-	public final long started = getOrder();
+	public final Progress progress;
+	public final TransferCheckpoint checkpoint;
+	public final int window;
+	public final int batchSize;
+	public final long maximumHeldBytes;
+	public final long started = System.currentTimeMillis();
+
+	// Progress. Bytes are only known for objects retrieved from the source.
+	public int objectsDiscovered = 0;
+	public int objectsDone = 0;
+	public long bytesDiscovered = 0L;
+	public long bytesDone = 0L;
 
 	// State
-	private final Iterator<Hash> hashes;
-	private final HashSet<Hash> copiedObjects = new HashSet<>();
+	private final HashMap<Hash, Node> nodes = new HashMap<>();
+	private final ArrayList<Node> toBook = new ArrayList<>();
+	private final ArrayList<Node> toGet = new ArrayList<>();
+	private final ArrayList<Node> toPut = new ArrayList<>();
+	private long toPutBytes = 0L;
+	private long heldBytes = 0L;
+	private int runningOperations = 0;
+	private int runningDiscoveries = 0;
+	private int runningGets = 0;
+	private int remainingRoots = 0;
+	private boolean finished = false;
 
 	public Transfer(KeyPair keyPair, final Collection<Hash> hashes, Store source, Store destination, final Done done) {
+		this(keyPair, hashes, source, destination, defaultWindow, defaultBatchSize, defaultMaximumHeldBytes, null, null, done);
+	}
+
+	// Resumable transfer: subtrees listed in the checkpoint are skipped, and completed subtrees are added to it.
+	public Transfer(KeyPair keyPair, final Collection<Hash> hashes, Store source, Store destination, TransferCheckpoint checkpoint, final Done done) {
+		this(keyPair, hashes, source, destination, defaultWindow, defaultBatchSize, defaultMaximumHeldBytes, checkpoint, null, done);
+	}
+
+	public Transfer(KeyPair keyPair, final Collection<Hash> hashes, Store source, Store destination, int window, int batchSize, long maximumHeldBytes, TransferCheckpoint checkpoint, Progress progress, final Done done) {
 		this.keyPair = keyPair;
-		this.hashes = hashes.iterator();
 		this.source = source;
 		this.destination = destination;
+		this.window = Math.max(window, 1);
+		this.batchSize = Math.max(batchSize, 1);
+		this.maximumHeldBytes = maximumHeldBytes;
+		this.progress = progress;
+		this.checkpoint = checkpoint;
 		this.done = done;
 
-		processNextHash();
-	}
-
-	private void processNextHash() {
-		if (!hashes.hasNext()) {
-			done.onTransferDone();
-			return;
+		for (Hash hash : hashes) {
+			if (nodes.containsKey(hash)) continue;
+			Node node = addNode(hash);
+			if (node.done) continue;
+			node.root = true;
+			remainingRoots += 1;
 		}
 
-		new TransferObject(hashes.next(), hashDone);
+		schedule();
 	}
 
-	private final Done hashDone = new Done() {
-		@Override
-		public void onTransferDone() {
-			processNextHash();
-		}
-
-		@Override
-		public void onTransferMissingObject(@NonNull MissingObject missingObject) {
-			done.onTransferMissingObject(missingObject);
-		}
-
-		@Override
-		public void onTransferStoreError(@NonNull Store store, @NonNull String error) {
-			done.onTransferStoreError(store, error);
-		}
-	};
-
-	class TransferObject implements Store.BookDone, Store.GetDone, Done, Store.PutDone {
-		private final Hash hash;
-		private final Done done;
-
-		private HeldObject heldObject;
-		private int copiedChildren = 0;
-
-		TransferObject(final Hash hash, final Done done) {
+	static class Node {
+		final Hash hash;
+		CondensationObject object = null;
+		ArrayList<Node> parents = new ArrayList<>();   // waiting for this node
+		ArrayList<Node> children = null;
+		int unavailableChildren = 0;
+		boolean root = false;
+		boolean available = false;  // ready to be put, or done
+		boolean done = false;
+
+		Node(Hash hash) {
 			this.hash = hash;
-			this.done = done;
-
-			// Check if we have copied this object before
-			if (copiedObjects.contains(hash)) {
-				Condensation.mainThread.post(new Runnable() {
-					@Override
-					public void run() {
-						done.onTransferDone();
-					}
-				});
-				return;
-			}
-
-			copiedObjects.add(hash);
-
-			// Book the object on the destination store
-			Transfer.book(destination, hash, keyPair, started, this);
 		}
+	}
 
-		@Override
-		public void onBookDone() {
-			done.onTransferDone();
-		}
-
-		@Override
-		public void onBookNotFound() {
-			// Check if this object is currently cached as part of another operation
-			heldObject = heldObjects.get(hash);
-			if (heldObject != null) {
-				heldObject.acquire();
-				processNextChild();
-				return;
-			}
-
-			// Retrieve the object
-			Transfer.get(source, hash, keyPair, started, this);
-		}
+	private Node addNode(Hash hash) {
+		Node node = new Node(hash);
+		nodes.put(hash, node);
+		objectsDiscovered += 1;
 
-		@Override
-		public void onBookStoreError(@NonNull String error) {
-			allFailed(destination, error);
+		// Subtrees completed during a previous attempt
+		if (checkpoint != null && checkpoint.contains(hash)) {
+			node.done = true;
+			node.available = true;
+			objectsDone += 1;
+		} else {
+			toBook.add(node);
 		}
 
-		@Override
-		public void onGetDone(@NonNull CondensationObject object) {
-			heldObject = heldObjects.get(hash);
-			if (heldObject != null) {
-				heldObject.acquire();
-			} else {
-				heldObject = new HeldObject(hash, object);
-				heldObjects.put(hash, heldObject);
-			}
+		return node;
+	}
 
-			processNextChild();
-		}
+	// *** Scheduling
 
-		@Override
-		public void onGetNotFound() {
-			done.onTransferMissingObject(new MissingObject(hash, source));
-		}
+	private void schedule() {
+		if (finished) return;
 
-		@Override
-		public void onGetStoreError(@NonNull String error) {
-			allFailed(source, error);
-		}
+		while (runningOperations < window) {
+			if (shouldPut() && putNext()) continue;
 
-		void processNextChild() {
-			if (copiedChildren >= heldObject.object.hashesCount) {
-				Transfer.put(destination, hash, heldObject.object, keyPair, this);
-				return;
+			if (!toGet.isEmpty() && (heldBytes < maximumHeldBytes || runningGets == 0)) {
+				new GetBatch(takeBatch(toGet));
+				continue;
 			}
 
-			new TransferObject(heldObject.object.hashAtIndex(copiedChildren), this);
-			copiedChildren += 1;
-		}
-
-		@Override
-		public void onTransferDone() {
-			processNextChild();
-		}
-
-		@Override
-		public void onTransferMissingObject(@NonNull MissingObject missingObject) {
-			missingObject.path.add(hash);
-			done.onTransferMissingObject(missingObject);
-		}
+			if (!toBook.isEmpty()) {
+				new BookBatch(takeBatch(toBook));
+				continue;
+			}
 
-		@Override
-		public void onTransferStoreError(@NonNull Store store, @NonNull String error) {
-			allFailed(store, error);
+			break;
 		}
 
-		@Override
-		public void onPutDone() {
-			heldObject.release();
+		if (runningOperations == 0 && remainingRoots == 0 && !finished) {
+			finished = true;
+			if (checkpoint != null) checkpoint.save();
 			done.onTransferDone();
 		}
-
-		@Override
-		public void onPutStoreError(@NonNull String error) {
-			allFailed(destination, error);
-		}
-
-		void allFailed(Store store, String error) {
-			Condensation.log("Transfer error with store " + store.id + " -- " + error + " -- " + hash.shortHex());
-			if (heldObject != null) heldObject.release();
-			done.onTransferStoreError(store, error);
-		}
 	}
 
-	// *** Objects currently held in memory
+	// Objects are put in large packs, unless memory is getting scarce
+	private boolean shouldPut() {
+		if (toPut.isEmpty()) return false;
+		if (heldBytes >= maximumHeldBytes || toPutBytes >= maximumHeldBytes / 4) return true;
+		return toBook.isEmpty() && toGet.isEmpty() && runningDiscoveries == 0;
+	}
 
-	private static final HashMap<Hash, HeldObject> heldObjects = new HashMap<>();
+	// Takes the most recently added nodes, so that the tree is explored depth first
+	private ArrayList<Node> takeBatch(ArrayList<Node> list) {
+		int count = Math.min(batchSize, list.size());
+		ArrayList<Node> batch = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) batch.add(list.remove(list.size() - 1));
+		return batch;
+	}
 
-	private static class HeldObject {
-		final Hash hash;
-		final CondensationObject object;
-		long counter = 1;
+	private static ArrayList<Hash> hashesOf(ArrayList<Node> nodes) {
+		ArrayList<Hash> hashes = new ArrayList<>(nodes.size());
+		for (Node node : nodes) hashes.add(node.hash);
+		return hashes;
+	}
 
-		HeldObject(Hash hash, CondensationObject object) {
-			this.hash = hash;
-			this.object = object;
-		}
+	// *** Node states
 
-		void acquire() {
-			counter += 1;
+	private void setAvailable(Node node) {
+		if (node.available) return;
+		node.available = true;
+		for (Node parent : node.parents) {
+			parent.unavailableChildren -= 1;
+			if (parent.unavailableChildren == 0 && parent.object != null) setReady(parent);
 		}
 
-		void release() {
-			counter -= 1;
-			if (counter > 0) return;
-			heldObjects.remove(hash);
-		}
+		node.parents = null;
 	}
 
-	// *** Object requests
-
-	private static long orderCounter = 0L;
+	private void setReady(Node node) {
+		toPut.add(node);
+		toPutBytes += node.object.byteLength();
+		setAvailable(node);
+	}
 
-	static long getOrder() {
-		orderCounter++;
-		return orderCounter;
+	private void setDone(Node node) {
+		node.done = true;
+		objectsDone += 1;
+		if (checkpoint != null) checkpoint.add(node.hash);
+		setAvailable(node);
+		if (node.root) remainingRoots -= 1;
 	}
 
-	static class ObjectRequest {
-		final Store store;
-		final Hash hash;
-		final KeyPair keyPair;
+	// *** Store operations
 
-		ObjectRequest(Store store, Hash hash, KeyPair keyPair) {
-			this.store = store;
-			this.hash = hash;
-			this.keyPair = keyPair;
-		}
+	class BookBatch implements Store.BookManyDone {
+		final ArrayList<Node> batch;
 
-		// *** Equality
+		BookBatch(ArrayList<Node> batch) {
+			this.batch = batch;
+			runningOperations += 1;
+			runningDiscoveries += 1;
+			destination.bookMany(hashesOf(batch), keyPair, this);
+		}
 
 		@Override
-		public boolean equals(Object that) {
-			return that instanceof ObjectRequest && (this == that || equals((ObjectRequest) that));
-		}
+		public void onBookManyDone(@NonNull ArrayList<Hash> notFound) {
+			runningOperations -= 1;
+			runningDiscoveries -= 1;
+			if (finished) return;
+
+			HashSet<Hash> missing = new HashSet<>(notFound);
+			for (Node node : batch) {
+				if (missing.contains(node.hash)) toGet.add(node);
+				else setDone(node);
+			}
 
-		public boolean equals(ObjectRequest that) {
-			if (that == null) return false;
-			if (that == this) return true;
-			return keyPair.publicKey.hash.equals(that.keyPair.publicKey.hash) && hash.equals(that.hash) && store.equals(that.store);
+			reportProgress();
+			schedule();
 		}
 
 		@Override
-		public int hashCode() {
-			return (keyPair.publicKey.hash.hashCode() << 1) ^ hash.hashCode() ^ store.hashCode();
+		public void onBookManyStoreError(@NonNull String error) {
+			runningOperations -= 1;
+			runningDiscoveries -= 1;
+			failed(destination, error);
 		}
 	}
 
-	// *** Running book operations
-
-	private static final HashMap<ObjectRequest, BookOperation> bookOperations = new HashMap<>();
-
-	public static void book(Store destination, Hash hash, KeyPair keyPair, long availableSince, Store.BookDone done) {
-		ObjectRequest request = new ObjectRequest(destination, hash, keyPair);
-		BookOperation operation = bookOperations.get(request);
-		if (operation == null) operation = new BookOperation(request);
-		operation.listeners.add(new BookDone(done, availableSince));
-	}
-
-	private static class BookDone {
-		final Store.BookDone done;
-		final long ifStartedAfter;
+	class GetBatch implements Store.GetManyDone {
+		final ArrayList<Node> batch;
 
-		private BookDone(Store.BookDone done, long ifStartedAfter) {
-			this.done = done;
-			this.ifStartedAfter = ifStartedAfter;
-		}
-	}
-
-	private static class BookOperation implements Store.BookDone {
-		final ObjectRequest request;
-		final ArrayList<BookDone> listeners = new ArrayList<>();
-		final long operationStart = getOrder();
-
-		BookOperation(ObjectRequest request) {
-			this.request = request;
-
-			bookOperations.put(request, this);
-			request.store.book(request.hash, request.keyPair, this);
+		GetBatch(ArrayList<Node> batch) {
+			this.batch = batch;
+			runningOperations += 1;
+			runningDiscoveries += 1;
+			runningGets += 1;
+			source.getMany(hashesOf(batch), keyPair, this);
 		}
 
 		@Override
-		public void onBookDone() {
-			bookOperations.remove(request);
-			for (BookDone entry : listeners)
-				entry.done.onBookDone();
-		}
+		public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects) {
+			runningOperations -= 1;
+			runningDiscoveries -= 1;
+			runningGets -= 1;
+			if (finished) return;
+
+			for (Node node : batch) {
+				CondensationObject object = objects.get(node.hash);
+				if (object == null) {
+					missing(node);
+					return;
+				}
+
+				node.object = object;
+				heldBytes += object.byteLength();
+				bytesDiscovered += object.byteLength();
+
+				node.children = new ArrayList<>(object.hashesCount);
+				for (Hash childHash : object.hashes()) {
+					Node child = nodes.get(childHash);
+					if (child == null) child = addNode(childHash);
+					node.children.add(child);
+					if (child.available) continue;
+					child.parents.add(node);
+					node.unavailableChildren += 1;
+				}
+
+				if (node.unavailableChildren == 0) setReady(node);
+			}
 
-		@Override
-		public void onBookNotFound() {
-			bookOperations.remove(request);
-			for (BookDone entry : listeners)
-				if (operationStart > entry.ifStartedAfter)
-					entry.done.onBookNotFound();
-				else
-					book(request.store, request.hash, request.keyPair, entry.ifStartedAfter, entry.done);
+			reportProgress();
+			schedule();
 		}
 
 		@Override
-		public void onBookStoreError(@NonNull String error) {
-			bookOperations.remove(request);
-			for (BookDone entry : listeners) {
-				if (operationStart > entry.ifStartedAfter)
-					entry.done.onBookStoreError(error);
-				else
-					book(request.store, request.hash, request.keyPair, entry.ifStartedAfter, entry.done);
-			}
+		public void onGetManyStoreError(@NonNull String error) {
+			runningOperations -= 1;
+			runningDiscoveries -= 1;
+			runningGets -= 1;
+			failed(source, error);
 		}
 	}
 
-	// *** Running get operations
-
-	private static final HashMap<ObjectRequest, GetOperation> getOperations = new HashMap<>();
-
-	public static void get(Store store, Hash hash, KeyPair keyPair, long availableSince, Store.GetDone done) {
-		ObjectRequest request = new ObjectRequest(store, hash, keyPair);
-		GetOperation operation = getOperations.get(request);
-		if (operation == null) operation = new GetOperation(request);
-		operation.listeners.add(new GetDone(done, availableSince));
+	// Puts all objects whose children are either done, or part of the same pack. Returns false if there are none.
+	private boolean putNext() {
+		ArrayList<Node> batch = new ArrayList<>();
+		HashSet<Node> inBatch = new HashSet<>();
+		for (Iterator<Node> iterator = toPut.iterator(); iterator.hasNext(); ) {
+			Node node = iterator.next();
+			if (!childrenAvailableFor(node, inBatch)) continue;
+			iterator.remove();
+			batch.add(node);
+			inBatch.add(node);
+			toPutBytes -= node.object.byteLength();
+		}
+
+		if (batch.isEmpty()) return false;
+		new PutBatch(batch);
+		return true;
 	}
 
-	private static class GetDone {
-		final Store.GetDone done;
-		final long ifStartedAfter;
-
-		private GetDone(Store.GetDone done, long ifStartedAfter) {
-			this.done = done;
-			this.ifStartedAfter = ifStartedAfter;
-		}
+	private static boolean childrenAvailableFor(Node node, HashSet<Node> inBatch) {
+		for (Node child : node.children)
+			if (!child.done && !inBatch.contains(child)) return false;
+		return true;
 	}
 
-	private static class GetOperation implements Store.GetDone {
-		final ObjectRequest request;
-		final ArrayList<GetDone> listeners = new ArrayList<>();
-		final long operationStart = getOrder();
+	class PutBatch implements Store.PutPackDone {
+		final ArrayList<Node> batch;
 
-		GetOperation(ObjectRequest request) {
-			this.request = request;
+		PutBatch(ArrayList<Node> batch) {
+			this.batch = batch;
+			runningOperations += 1;
 
-			getOperations.put(request, this);
-			request.store.get(request.hash, request.keyPair, this);
+			// Nodes became ready after their children, so the pack lists children first
+			LinkedHashMap<Hash, CondensationObject> objects = new LinkedHashMap<>();
+			for (Node node : batch) objects.put(node.hash, node.object);
+			destination.putPack(ObjectPack.from(objects), keyPair, this);
 		}
 
 		@Override
-		public void onGetDone(@NonNull CondensationObject object) {
-			getOperations.remove(request);
-			for (GetDone entry : listeners)
-				entry.done.onGetDone(object);
-		}
+		public void onPutPackDone() {
+			runningOperations -= 1;
+			if (finished) return;
+
+			for (Node node : batch) {
+				long byteLength = node.object.byteLength();
+				heldBytes -= byteLength;
+				bytesDone += byteLength;
+				node.object = null;
+				node.children = null;
+				setDone(node);
+			}
 
-		@Override
-		public void onGetNotFound() {
-			// The object may have been added while this get operation was running, but we obviously didn't see it yet.
-			// Get requests that joined this operation later therefore have to be given a second chance, because they may
-			// have been started after the object was added. This should be rare, however.
-			getOperations.remove(request);
-			for (GetDone entry : listeners)
-				if (operationStart > entry.ifStartedAfter)
-					entry.done.onGetNotFound();
-				else
-					get(request.store, request.hash, request.keyPair, entry.ifStartedAfter, entry.done);
+			reportProgress();
+			schedule();
 		}
 
 		@Override
-		public void onGetStoreError(@NonNull String error) {
-			getOperations.remove(request);
-			for (GetDone entry : listeners)
-				if (operationStart > entry.ifStartedAfter)
-					entry.done.onGetStoreError(error);
-				else
-					get(request.store, request.hash, request.keyPair, entry.ifStartedAfter, entry.done);
+		public void onPutPackStoreError(@NonNull String error) {
+			runningOperations -= 1;
+			failed(destination, error);
 		}
 	}
 
-	// *** Running put operations
-
-	private static final HashMap<ObjectRequest, PutOperation> putOperations = new HashMap<>();
+	// *** Completion
 
-	public static void put(Store store, Hash hash, CondensationObject object, KeyPair keyPair, Store.PutDone done) {
-		ObjectRequest request = new ObjectRequest(store, hash, keyPair);
-		PutOperation operation = putOperations.get(request);
-		if (operation == null) operation = new PutOperation(request, object);
-		operation.listeners.add(done);
+	private void reportProgress() {
+		if (progress != null) progress.onTransferProgress(this);
 	}
 
-	private static class PutOperation implements Store.PutDone {
-		final ObjectRequest request;
-		final CondensationObject object;
-		final ArrayList<Store.PutDone> listeners = new ArrayList<>();
-
-		PutOperation(ObjectRequest request, CondensationObject object) {
-			this.request = request;
-			this.object = object;
-
-			putOperations.put(request, this);
-			request.store.put(request.hash, object, request.keyPair, this);
+	private void missing(Node node) {
+		finished = true;
+		if (checkpoint != null) checkpoint.save();
+		MissingObject missingObject = new MissingObject(node.hash, source);
+		Node parent = node.parents == null || node.parents.isEmpty() ? null : node.parents.get(0);
+		while (parent != null) {
+			missingObject.path.add(parent.hash);
+			parent = parent.parents == null || parent.parents.isEmpty() ? null : parent.parents.get(0);
 		}
 
-		@Override
-		public void onPutDone() {
-			putOperations.remove(request);
-			for (Store.PutDone listener : listeners)
-				listener.onPutDone();
-		}
+		done.onTransferMissingObject(missingObject);
+	}
 
-		@Override
-		public void onPutStoreError(@NonNull String error) {
-			putOperations.remove(request);
-			for (Store.PutDone listener : listeners)
-				listener.onPutStoreError(error);
-		}
+	private void failed(Store store, String error) {
+		if (finished) return;
+		finished = true;
+		if (checkpoint != null) checkpoint.save();
+		Condensation.log("Transfer error with store " + store.id + " -- " + error);
+		done.onTransferStoreError(store, error);
 	}
 
 	public interface Done {
@@ -420,7 +385,8 @@ public class Transfer {
 		void onTransferStoreError(@NonNull Store store, @NonNull String error);
 	}
 
-	public static void log() {
-		Condensation.log("Current get operations: " + getOperations.size() + ", put " + putOperations.size() + ", book " + bookOperations.size() + ", held " + heldObjects.size());
+	// Called on the event loop of the transfer whenever a store operation completes.
+	public interface Progress {
+		void onTransferProgress(@NonNull Transfer transfer);
 	}
 }
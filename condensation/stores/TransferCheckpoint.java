@@ -0,0 +1,179 @@
+package condensation.stores;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.Hash;
+import condensation.tasks.BackgroundTask;
+
+// Remembers which subtrees are complete on the destination of a transfer, so that a transfer restarted after an error
+// skips them. The file contains the concatenated hashes (32 bytes each), and is only appended to. A checkpoint is only
+// valid for one destination store, and should be deleted when the destination may have lost objects (e.g. through
+// garbage collection of unreferenced trees).
+public class TransferCheckpoint {
+	// Hashes are appended to the file after this time, or when this many have been added
+	public static long saveInterval = 5 * Condensation.SECOND;
+	public static int saveThreshold = 4096;
+
+	public final File file;
+	private final HashSet<Hash> completed;
+	private ArrayList<Hash> unsaved = new ArrayList<>();
+	private long lastSaved = System.currentTimeMillis();
+	private boolean saving = false;
+	private boolean saveAgain = false;
+	private boolean deletePending = false;
+
+	private TransferCheckpoint(File file, HashSet<Hash> completed) {
+		this.file = file;
+		this.completed = completed;
+	}
+
+	// Reads the checkpoint file (if any) on the file system executor.
+	public static void open(@NonNull File file, @NonNull OpenDone done) {
+		new Open(file, done);
+	}
+
+	static class Open implements BackgroundTask {
+		final File file;
+		final OpenDone done;
+		final HashSet<Hash> completed = new HashSet<>();
+
+		Open(File file, OpenDone done) {
+			this.file = file;
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			try {
+				// A partially written hash at the end (e.g. after a crash) is ignored
+				Bytes bytes = Bytes.from(file);
+				if (bytes == null) return;
+				for (int i = 0; i + 32 <= bytes.byteLength; i += 32)
+					completed.add(Hash.from(bytes.slice(i, 32)));
+			} catch (FileNotFoundException ignored) {
+			} catch (IOException e) {
+				Condensation.logError("Failed to read the transfer checkpoint " + file, e);
+			}
+		}
+
+		@Override
+		public void after() {
+			done.onTransferCheckpointOpened(new TransferCheckpoint(file, completed));
+		}
+	}
+
+	public interface OpenDone {
+		void onTransferCheckpointOpened(@NonNull TransferCheckpoint checkpoint);
+	}
+
+	public int size() {
+		return completed.size();
+	}
+
+	public boolean contains(Hash hash) {
+		return completed.contains(hash);
+	}
+
+	// Marks the tree below hash as complete on the destination.
+	public void add(Hash hash) {
+		if (!completed.add(hash)) return;
+		unsaved.add(hash);
+		if (unsaved.size() >= saveThreshold || System.currentTimeMillis() - lastSaved > saveInterval) save();
+	}
+
+	// Appends the hashes added since the last save to the file. Only one append or delete runs at a time, so that they
+	// reach the file in order.
+	public void save() {
+		if (saving) {
+			saveAgain = true;
+			return;
+		}
+
+		if (unsaved.isEmpty()) return;
+		saving = true;
+		lastSaved = System.currentTimeMillis();
+		new Append(unsaved);
+		unsaved = new ArrayList<>();
+	}
+
+	class Append implements BackgroundTask {
+		final ArrayList<Hash> hashes;
+
+		Append(ArrayList<Hash> hashes) {
+			this.hashes = hashes;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			Bytes bytes = new Bytes(hashes.size() * 32);
+			for (int i = 0; i < hashes.size(); i++)
+				bytes.set(i * 32, hashes.get(i).bytes);
+
+			try {
+				FileOutputStream stream = new FileOutputStream(file, true);
+				bytes.writeToStream(stream);
+				stream.close();
+			} catch (IOException e) {
+				Condensation.logError("Failed to write the transfer checkpoint " + file, e);
+			}
+		}
+
+		@Override
+		public void after() {
+			onFileDone();
+		}
+	}
+
+	// Forgets all hashes, and removes the file. A running append completes first.
+	public void delete() {
+		completed.clear();
+		unsaved.clear();
+		if (saving) {
+			deletePending = true;
+			return;
+		}
+
+		saving = true;
+		new Delete();
+	}
+
+	class Delete implements BackgroundTask {
+		Delete() {
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			file.delete();
+		}
+
+		@Override
+		public void after() {
+			onFileDone();
+		}
+	}
+
+	private void onFileDone() {
+		saving = false;
+		if (deletePending) {
+			// Hashes added since delete() was called are kept, and saved afterwards
+			deletePending = false;
+			saving = true;
+			new Delete();
+		} else if (saveAgain || unsaved.size() >= saveThreshold) {
+			saveAgain = false;
+			save();
+		}
+	}
+}
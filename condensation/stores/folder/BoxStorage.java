@@ -0,0 +1,41 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+
+// Where a FolderStore keeps the box entries of its accounts.
+// All methods may be called on several threads at the same time, and may block.
+public interface BoxStorage {
+	// Creates the storage if it does not exist. The store folder itself must exist.
+	boolean createIfNecessary();
+
+	// Returns the accounts with boxes. Invalid files are reported to the handler, if any.
+	ArrayList<Hash> accounts(InvalidFileHandler invalidFileHandler);
+
+	// Returns the entries of a box. Invalid files are reported to the handler, if any.
+	ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel, InvalidFileHandler invalidFileHandler) throws IOException;
+
+	// Adds and removes box entries. The objects of the additions have been written before. If a ticket is provided, the
+	// changes must be durable once the ticket has been committed, and must not become durable before the objects.
+	void modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals, GroupCommit.Ticket ticket) throws IOException;
+
+	// Removes all boxes of an account. This is a best-effort operation, which fails silently.
+	void deleteAccount(Hash accountHash);
+
+	// Reclaims the space of removed entries. This is called during garbage collection.
+	void compact();
+
+	// Releases memory and open files. The storage reloads itself on the next call.
+	void close();
+
+	interface InvalidFileHandler {
+		void onInvalidFile(File file);
+	}
+}
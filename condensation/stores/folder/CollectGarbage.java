@@ -1,37 +1,68 @@
 package condensation.stores.folder;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import condensation.Condensation;
 import condensation.serialization.Bytes;
+import condensation.serialization.CompactHashSet;
 import condensation.serialization.Hash;
 import condensation.stores.BoxLabel;
 import condensation.stores.MissingObject;
+import condensation.stores.ShardedStore;
+import condensation.stores.Store;
 import condensation.tasks.BackgroundTask;
 import condensation.tasks.BackgroundThread;
 
+// Removes all objects that are not reachable from a box entry, and have not been booked within the grace interval.
+// With a sharded store, all shards are collected together, since trees may span several shards. Objects are marked
+// across all shards, and each shard is then swept by a separate thread.
 public final class CollectGarbage implements BackgroundTask {
+	// Number of threads marking objects. Since this is mostly waiting for header reads, this may exceed the number of cores.
+	public static int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors());
+
 	final FolderStore folderStore;
+	final ShardedStore shardedStore;
+	final ArrayList<FolderStore> folderStores = new ArrayList<>();
 	final long graceTime;
 	final Done done;
 
 	// State
-	final ArrayList<Hash> existing = new ArrayList<>();
-	final HashSet<Hash> toKeep = new HashSet<>();
-	int deletedObjects;
+	final CompactHashSet toKeep = new CompactHashSet();
+	volatile boolean failed = false;
+	ForkJoinPool pool;
+	final AtomicInteger pendingMarks = new AtomicInteger();
+	final AtomicInteger keptObjects = new AtomicInteger();
+	final AtomicInteger deletedObjects = new AtomicInteger();
 	boolean success;
 
 	public CollectGarbage(FolderStore folderStore, long graceInterval, final Done done) {
+		this(folderStore, null, graceInterval, done);
+	}
+
+	// All shards (including the previous shards while rebalancing) must be FolderStores.
+	public CollectGarbage(ShardedStore shardedStore, long graceInterval, final Done done) {
+		this(null, shardedStore, graceInterval, done);
+	}
+
+	private CollectGarbage(FolderStore folderStore, ShardedStore shardedStore, long graceInterval, final Done done) {
 		this.folderStore = folderStore;
+		this.shardedStore = shardedStore;
 		this.done = done;
 		Condensation.assertMainThread();
 
+		if (folderStore != null) folderStores.add(folderStore);
+		if (shardedStore != null) {
+			addShards(shardedStore.shards());
+			if (shardedStore.previousShards() != null) addShards(shardedStore.previousShards());
+		}
+
 		// Don't delete files that are younger than 24 hours (to keep partially written or synchronized trees)
 		this.graceTime = System.currentTimeMillis() - graceInterval;
 
@@ -39,186 +70,264 @@ public final class CollectGarbage implements BackgroundTask {
 		new BackgroundThread(this);
 	}
 
+	private void addShards(Iterable<Store> shards) {
+		for (Store shard : shards) {
+			if (!(shard instanceof FolderStore)) {
+				Condensation.log("Garbage collection: the shard " + shard.id + " is not a FolderStore.");
+				failed = true;
+			} else if (!folderStores.contains(shard)) {
+				folderStores.add((FolderStore) shard);
+			}
+		}
+	}
+
 	@Override
 	public void background() {
-		// Traverse the accounts
-		success = traverseAccounts();
-		if (!success) return;
-
-		// Traverse objects younger than 24 h
-		success = traverseObjects();
-		if (!success) return;
+		if (failed) return;
 
-		// Delete those remaining
-		success = delete();
+		pool = new ForkJoinPool(parallelism);
+		try {
+			// Traverse the accounts
+			success = traverseAccounts();
+			if (!success) return;
+
+			// Traverse objects younger than 24 h
+			success = traverseObjects();
+			if (!success) return;
+
+			// Delete those remaining
+			success = delete();
+		} finally {
+			pool.shutdown();
+		}
 	}
 
 	boolean traverseAccounts() {
-		File baseFolder = folderStore.accountsFolder;
-		String[] subFolders = baseFolder.list();
-		if (subFolders == null) subFolders = new String[0];
-
-		for (String subFolderName : subFolders) {
-			File accountFolder = new File(baseFolder, subFolderName);
-			Hash accountHash = Hash.from(subFolderName);
-			if (accountHash == null) {
-				done.onCollectGarbageInvalidFileAsync(accountFolder);
-				continue;
-			}
+		for (FolderStore folderStore : folderStores)
+			if (!traverseAccounts(folderStore)) return false;
 
-			if (!traverseBox(accountFolder, BoxLabel.MESSAGES)) return false;
-			if (!traverseBox(accountFolder, BoxLabel.PRIVATE)) return false;
-			if (!traverseBox(accountFolder, BoxLabel.PUBLIC)) return false;
+		return awaitMarks();
+	}
+
+	boolean traverseAccounts(FolderStore folderStore) {
+		BoxStorage.InvalidFileHandler invalidFileHandler = new BoxStorage.InvalidFileHandler() {
+			@Override
+			public void onInvalidFile(File file) {
+				reportInvalidFile(file);
+			}
+		};
+
+		for (Hash accountHash : folderStore.boxes.accounts(invalidFileHandler)) {
+			for (BoxLabel boxLabel : BoxLabel.all) {
+				String context = "garbage collection, " + accountHash.hex() + "/" + boxLabel.asText;
+				ArrayList<Hash> hashes;
+				try {
+					hashes = folderStore.boxes.list(accountHash, boxLabel, invalidFileHandler);
+				} catch (IOException e) {
+					return false;
+				}
 
-			String[] files = accountFolder.list();
-			if (files == null) continue;
-			if (files.length < 1) accountFolder.delete();
+				for (Hash hash : hashes) mark(hash, context);
+			}
 		}
 
+		// Remove empty boxes
+		folderStore.boxes.compact();
 		return true;
 	}
 
-	boolean traverseBox(File accountFolder, BoxLabel boxLabel) {
-		File boxFolder = new File(accountFolder, boxLabel.asText);
-		String context = "garbage collection, " + accountFolder.getName() + "/" + boxLabel.asText;
-
-		String[] files = boxFolder.list();
-		if (files == null) return true;
-		if (files.length < 1) {
-			boxFolder.delete();
-			return true;
-		}
-
-		for (String filename : files) {
-			Hash hash = Hash.from(filename);
-			if (hash == null) {
-				done.onCollectGarbageInvalidFileAsync(new File(boxFolder, filename));
-				continue;
-			}
+	boolean traverseObjects() {
+		final ArrayList<Hash> recent = new ArrayList<>();
+		for (FolderStore folderStore : folderStores) {
+			folderStore.objects.forEach(new ObjectStorage.Visitor() {
+				@Override
+				public boolean onObject(Hash hash, long booked, long byteLength) {
+					if (booked >= graceTime && !toKeep.contains(hash)) recent.add(hash);
+					return true;
+				}
 
-			if (!traverse(hash, new ArrayDeque<Hash>(), context)) return false;
+				@Override
+				public void onInvalidFile(File file) {
+					reportInvalidFile(file);
+				}
+			});
 		}
 
-		return true;
+		for (Hash hash : recent) mark(hash, "garbage collection, recent objects");
+		return awaitMarks();
 	}
 
-	boolean traverseObjects() {
-		File baseFolder = folderStore.objectsFolder;
-		String[] subFolders = baseFolder.list();
-		if (subFolders == null) subFolders = new String[0];
-
-		for (String subFolderName : subFolders) {
-			File subFolder = new File(baseFolder, subFolderName);
-			if (subFolderName.length() != 2 || Bytes.fromHex(subFolderName) == null) {
-				done.onCollectGarbageInvalidFileAsync(subFolder);
-				continue;
-			}
+	// *** Marking
+	// Each object is marked by a task, which reads the hashes in the object's header, and creates a task for each child
+	// not marked yet. Tasks are processed by a fork/join pool, and never wait for each other, so that the depth of a tree
+	// does not matter. Reading just the header is more efficient than reading the whole object. Since we are on a local
+	// storage system, we do not need to verify the object's integrity.
 
-			String[] files = subFolder.list();
-			if (files == null) continue;
+	void mark(Hash hash, String context) {
+		if (toKeep.add(hash)) schedule(new Mark(hash, null, context));
+	}
 
-			for (String filename : files) {
-				File file = new File(subFolder, filename);
-				Hash hash = Hash.from(subFolderName + filename);
-				if (hash == null) {
-					done.onCollectGarbageInvalidFileAsync(file);
-					continue;
-				}
+	void schedule(Mark mark) {
+		pendingMarks.incrementAndGet();
+		pool.execute(mark);
+	}
 
-				existing.add(hash);
-				if (toKeep.contains(hash)) continue;
-				long lm = file.lastModified();
-				if (lm < graceTime) continue;
-				if (!traverse(hash, new ArrayDeque<Hash>(), "garbage collection, recent objects")) return false;
+	// Waits until all objects have been marked. Returns false if marking failed.
+	synchronized boolean awaitMarks() {
+		while (pendingMarks.get() > 0) {
+			try {
+				wait();
+			} catch (InterruptedException ignored) {
 			}
 		}
 
-		return true;
+		return !failed;
 	}
 
-	// Returns the hashes in the header of an object. This method basically exists for performance: we could get the
-	// whole object, and read the hashes, but it's more efficient to read just the header. Since we are on a local
-	// storage system, we do not need to verify the object's integrity.
-	boolean traverse(Hash hash, ArrayDeque<Hash> path, String context) {
-		// Ignore if we have checked this hash before
-		if (toKeep.contains(hash)) return true;
-		toKeep.add(hash);
-
-		// If the object does not exist, there is nothing we can do
-		File file = folderStore.objectFile(hash);
-		if (!file.exists()) {
-			MissingObject missingObject = new MissingObject(hash, folderStore);
-			missingObject.path.addAll(path);
-			missingObject.context = context;
-			done.onCollectGarbageMissingObjectAsync(missingObject);
-			return true;
+	void onMarkDone() {
+		if (pendingMarks.decrementAndGet() > 0) return;
+		synchronized (this) {
+			notifyAll();
 		}
+	}
 
-		FileInputStream stream;
-		try {
-			stream = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			return true;
+	class Mark implements Runnable {
+		final Hash hash;
+		final Mark parent;
+		final String context;
+
+		Mark(Hash hash, Mark parent, String context) {
+			this.hash = hash;
+			this.parent = parent;
+			this.context = context;
 		}
 
-		try {
-			// Read the number of hashes, and calculate the header length
-			byte[] count = Condensation.read(stream, 4);
-			if (count == null) {
-				stream.close();
-				return true;
+		@Override
+		public void run() {
+			try {
+				if (!failed) process();
+			} finally {
+				onMarkDone();
 			}
+		}
 
-			int countHashes = new Bytes(count).getInteger32(0);  //   (count[0] << 24) | (count[1] << 16) | (count[2] << 8) | count[3]
-			int hashesLength = countHashes * 32;
+		void process() {
+			Bytes header;
+			try {
+				header = readHeader(hash);
+			} catch (IOException e) {
+				// If anything fails, we stop garbage collection
+				failed = true;
+				return;
+			}
+
+			// If the object does not exist, there is nothing we can do
+			if (header == null) {
+				reportMissingObject(this);
+				return;
+			}
 
 			// If the object is not a valid Condensation object, we pretend it has no hashes
-			int size = (int) file.length();
-			if (hashesLength < 0 || 4 + hashesLength > size) {
-				stream.close();
-				done.onCollectGarbageInvalidObjectAsync(hash);
-				return true;
+			if (header.byteLength == 0) {
+				reportInvalidObject(hash);
+				return;
 			}
 
-			// Read the hashes
-			byte[] bytes = Condensation.read(stream, hashesLength);
-			stream.close();
-			if (bytes == null) return true;
+			int countHashes = header.getInteger32(0);
+			for (int i = 0; i < countHashes; i++) {
+				Hash childHash = Hash.from(header.slice(4 + i * 32, 32));
+				if (toKeep.add(childHash)) schedule(new Mark(childHash, this, context));
+			}
+		}
+	}
 
-			// Traverse all hashes
-			path.addLast(hash);
-			for (int i = 0; i < countHashes; i++)
-				if (!traverse(Hash.from(new Bytes(bytes, i * 32, 32)), path, context)) return false;
-			path.removeLast();
+	// *** Reporting
+	// The done handler is called from several threads, but never concurrently.
 
+	synchronized void reportMissingObject(Mark mark) {
+		MissingObject missingObject = new MissingObject(mark.hash, shardedStore == null ? folderStore : shardedStore);
+		for (Mark parent = mark.parent; parent != null; parent = parent.parent)
+			missingObject.path.add(0, parent.hash);
+		missingObject.context = mark.context;
+		done.onCollectGarbageMissingObjectAsync(missingObject);
+	}
 
-			return true;
-		} catch (IOException e) {
-			// If anything fails, we stop garbage collection
-			try {
-				stream.close();
-			} catch (IOException ignored) {
-			}
+	synchronized void reportInvalidObject(Hash hash) {
+		done.onCollectGarbageInvalidObjectAsync(hash);
+	}
 
-			return false;
+	synchronized void reportInvalidFile(File file) {
+		done.onCollectGarbageInvalidFileAsync(file);
+	}
+
+	// Reads the header from the shard responsible for the object. While a sharded store is rebalancing, the object may
+	// still be on another shard.
+	Bytes readHeader(Hash hash) throws IOException {
+		if (shardedStore == null) return folderStore.objects.readHeader(hash);
+
+		Store shard = shardedStore.shardFor(hash);
+		Bytes header = ((FolderStore) shard).objects.readHeader(hash);
+		if (header != null) return header;
+
+		for (FolderStore otherStore : folderStores) {
+			if (otherStore == shard) continue;
+			header = otherStore.objects.readHeader(hash);
+			if (header != null) return header;
 		}
+
+		return null;
 	}
 
+	// *** Deleting
+	// Each store (shard) is swept by a separate task.
+
 	boolean delete() {
+		ArrayList<Future<Boolean>> results = new ArrayList<>();
+		for (final FolderStore folderStore : folderStores) {
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return delete(folderStore);
+				}
+			}));
+		}
+
 		boolean allOk = true;
-		for (Hash hash : existing) {
-			if (toKeep.contains(hash)) continue;
-			allOk &= folderStore.objectFile(hash).delete();
-			deletedObjects += 1;
+		for (Future<Boolean> result : results) {
+			try {
+				allOk &= result.get();
+			} catch (InterruptedException | ExecutionException e) {
+				Condensation.logError("Garbage collection failed", e);
+				allOk = false;
+			}
 		}
 
 		return allOk;
 	}
 
+	boolean delete(FolderStore folderStore) {
+		// Objects added since enumerating are recent, and therefore kept
+		final ArrayList<Hash> toDelete = new ArrayList<>();
+		folderStore.objects.forEach(new ObjectStorage.Visitor() {
+			@Override
+			public boolean onObject(Hash hash, long booked, long byteLength) {
+				if (booked >= graceTime || toKeep.contains(hash)) keptObjects.incrementAndGet();
+				else toDelete.add(hash);
+				return true;
+			}
+
+			@Override
+			public void onInvalidFile(File file) {
+			}
+		});
+
+		deletedObjects.addAndGet(toDelete.size());
+		return folderStore.objects.delete(toDelete);
+	}
+
 	@Override
 	public void after() {
-		int keptObjects = existing.size() - deletedObjects;
-		done.onCollectGarbageDone(success, keptObjects, deletedObjects);
+		done.onCollectGarbageDone(success, keptObjects.get(), deletedObjects.get());
 	}
 
 	public interface Done {
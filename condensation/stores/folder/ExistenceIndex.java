@@ -0,0 +1,158 @@
+package condensation.stores.folder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import condensation.serialization.Hash;
+
+// A compact set with the first 8 bytes of each object hash, used to answer existence queries without touching the file
+// system. Since hashes are uniformly distributed, a false positive is extremely unlikely (about n / 2^64 per query). The
+// set uses open addressing with linear probing, and takes about 12 bytes per object.
+//
+// The set can be saved as a snapshot file. A snapshot is marked as dirty when it is loaded, and as clean when it is saved,
+// so that a snapshot is only used if the set was saved after the last change, i.e. upon a clean shutdown.
+public final class ExistenceIndex {
+	static final int snapshotVersion = 1;
+	static final double maximumLoad = 0.7;
+
+	private long[] table = new long[1024];
+	private int count = 0;
+
+	static long keyFor(Hash hash) {
+		long key = hash.bytes.getInteger64(0);
+		return key == 0L ? 1L : key;
+	}
+
+	private static int find(long[] table, long key) {
+		int mask = table.length - 1;
+		int index = (int) key & mask;
+		while (table[index] != 0L && table[index] != key) index = (index + 1) & mask;
+		return index;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized boolean contains(Hash hash) {
+		long key = keyFor(hash);
+		return table[find(table, key)] == key;
+	}
+
+	public synchronized void add(Hash hash) {
+		addKey(keyFor(hash));
+	}
+
+	private void addKey(long key) {
+		int index = find(table, key);
+		if (table[index] == key) return;
+		table[index] = key;
+		count += 1;
+		if (count > table.length * maximumLoad) resize(table.length * 2);
+	}
+
+	public synchronized void remove(Hash hash) {
+		long key = keyFor(hash);
+		int mask = table.length - 1;
+		int index = find(table, key);
+		if (table[index] != key) return;
+		table[index] = 0L;
+		count -= 1;
+
+		// Move subsequent keys of the same cluster into the hole, if this brings them closer to their slot
+		int next = index;
+		while (true) {
+			next = (next + 1) & mask;
+			if (table[next] == 0L) return;
+			int slot = (int) table[next] & mask;
+			boolean movable = index <= next ? slot <= index || slot > next : slot <= index && slot > next;
+			if (!movable) continue;
+			table[index] = table[next];
+			table[next] = 0L;
+			index = next;
+		}
+	}
+
+	public synchronized void clear() {
+		table = new long[1024];
+		count = 0;
+	}
+
+	private void resize(int length) {
+		long[] oldTable = table;
+		table = new long[length];
+		for (long key : oldTable)
+			if (key != 0L) table[find(table, key)] = key;
+	}
+
+	// *** Snapshot
+	// Format: version (int32), clean flag (byte), count (int64), keys (int64 each)
+
+	// Loads a clean snapshot, and marks it as dirty. Returns false if there is no clean snapshot.
+	public synchronized boolean load(File file) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		} catch (FileNotFoundException ignored) {
+			return false;
+		}
+
+		try {
+			if (in.readInt() != snapshotVersion) return false;
+			if (in.readByte() != 1) return false;
+
+			long snapshotCount = in.readLong();
+			int length = 1024;
+			while (length < snapshotCount / maximumLoad + 1) length *= 2;
+			table = new long[length];
+			count = 0;
+			for (long i = 0; i < snapshotCount; i++)
+				addKey(in.readLong());
+		} catch (EOFException e) {
+			clear();
+			return false;
+		} finally {
+			in.close();
+		}
+
+		// Changes are not written to the snapshot
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(4);
+			randomAccessFile.writeByte(0);
+			randomAccessFile.getFD().sync();
+		} finally {
+			randomAccessFile.close();
+		}
+
+		return true;
+	}
+
+	// Saves a clean snapshot. The set must not change afterwards, or the snapshot must be loaded again (which marks it as
+	// dirty).
+	public synchronized void save(File file) throws IOException {
+		File newFile = new File(file.getPath() + ".new");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), 65536));
+		try {
+			out.writeInt(snapshotVersion);
+			out.writeByte(1);
+			out.writeLong(count);
+			for (long key : table)
+				if (key != 0L) out.writeLong(key);
+		} finally {
+			out.close();
+		}
+
+		GroupCommit.forceFile(newFile);
+		if (!newFile.renameTo(file)) throw new IOException("Unable to replace " + file + ".");
+	}
+}
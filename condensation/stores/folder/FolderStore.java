@@ -8,12 +8,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import condensation.Condensation;
 import condensation.actors.KeyPair;
 import condensation.serialization.Bytes;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 import condensation.stores.BoxAddition;
 import condensation.stores.BoxLabel;
 import condensation.stores.BoxRemoval;
@@ -21,24 +25,92 @@ import condensation.stores.Store;
 import condensation.tasks.BackgroundTask;
 
 // This object store stores objects locally on the file system.
-// This is thread-safe, because no state is kept. All operations are indirectly synchronized through the file system.
+// Objects are kept by an ObjectStorage, and box entries by a BoxStorage. Both are thread-safe.
 public final class FolderStore extends Store {
 	public final File objectsFolder;
 	public final File accountsFolder;
+	public final ObjectStorage objects;
+	public final BoxStorage boxes;
+	public final GroupCommit groupCommit;
 	public final boolean enforceCompleteness;
 
+	// Write barrier of the attached incremental garbage collector, if any
+	volatile IncrementalGarbageCollector incrementalGarbageCollector = null;
+
 	public static FolderStore forUrl(@NonNull String url) {
 		if (!url.startsWith("file:///")) return null;
 		return new FolderStore(new File(url.substring(7)), true);
 	}
 
+	// Stores each object and each box entry in its own file.
 	public FolderStore(@NonNull File folder, boolean enforceCompleteness) {
+		this(folder, new LooseObjects(new File(folder, "objects")), enforceCompleteness);
+	}
+
+	public FolderStore(@NonNull File folder, @NonNull ObjectStorage objects, boolean enforceCompleteness) {
+		this(folder, objects, null, null, enforceCompleteness);
+	}
+
+	// If boxes is null, box entries are stored as files. If groupCommit is not null, writes are atomic and durable when
+	// reported done.
+	public FolderStore(@NonNull File folder, @NonNull ObjectStorage objects, BoxStorage boxes, GroupCommit groupCommit, boolean enforceCompleteness) {
 		super("file://" + folder);
 		this.objectsFolder = new File(folder, "objects");
 		this.accountsFolder = new File(folder, "accounts");
+		this.objects = objects;
+		this.boxes = boxes == null ? new LooseBoxes(accountsFolder) : boxes;
+		this.groupCommit = groupCommit;
 		this.enforceCompleteness = enforceCompleteness;
 	}
 
+	// Keeps the boxes of each account in a journal, and in memory once used. This is much faster for large boxes. Existing
+	// box entry files are moved into the journals. This must be the only JournaledBoxes instance accessing the folder.
+	public static JournaledBoxes journaledBoxes(@NonNull File folder) {
+		return new JournaledBoxes(new File(folder, "boxes"), new File(folder, "accounts"));
+	}
+
+	// Writes objects to temporary files, and moves them into place once their data has been synced. Objects and box
+	// entries written at about the same time share the syncs.
+	public static FolderStore durable(@NonNull File folder, boolean enforceCompleteness) {
+		return new FolderStore(folder, new LooseObjects(new File(folder, "objects")), null, new GroupCommit(new File(folder, "tmp")), enforceCompleteness);
+	}
+
+	// Keeps track of all objects in memory, so that existence checks and bookings of missing objects do not touch the file
+	// system. This must be the only FolderStore instance accessing the folder.
+	public static FolderStore withExistenceIndex(@NonNull File folder, boolean enforceCompleteness) {
+		return new FolderStore(folder, new LooseObjects(new File(folder, "objects"), new File(folder, "objects.index")), enforceCompleteness);
+	}
+
+	// Stores objects in large segment files, which is much faster for stores with many (small) objects.
+	public static FolderStore withSegments(@NonNull File folder, boolean enforceCompleteness) {
+		return new FolderStore(folder, new SegmentedObjects(new File(folder, "segments")), enforceCompleteness);
+	}
+
+	// Returns the key of the folder as shard of a ShardedStore, and creates one if necessary. The key is stored in the
+	// folder, so that the routing does not change if the folder moves. This blocks.
+	public static String shardKey(@NonNull File folder) throws IOException {
+		File file = new File(folder, "shard");
+		try {
+			return Bytes.from(file).asText();
+		} catch (FileNotFoundException ignored) {
+		}
+
+		String key = Condensation.randomBytes(16).asHex();
+		File newFile = new File(folder, "shard.new");
+		FileOutputStream stream = new FileOutputStream(newFile, false);
+		try {
+			Bytes.fromText(key).writeToStream(stream);
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+
+		if (!newFile.renameTo(file)) throw new IOException("Unable to create " + file + ".");
+		GroupCommit.forceFolder(folder);
+		return key;
+	}
+
+	// The file of an object in the default (loose) storage
 	public File objectFile(@NonNull Hash hash) {
 		String hashHex = hash.hex();
 		return new File(new File(objectsFolder, hashHex.substring(0, 2)), hashHex.substring(2));
@@ -65,11 +137,8 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
-			String hashHex = hash.hex();
-			File file = new File(new File(objectsFolder, hashHex.substring(0, 2)), hashHex.substring(2));
 			try {
-				object = CondensationObject.from(file);
-			} catch (FileNotFoundException ignored) {
+				object = objects.read(hash);
 			} catch (IOException e) {
 				fileSystemError = e.getMessage();
 			}
@@ -103,10 +172,13 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
+			GroupCommit.Ticket ticket = beginWrite();
 			try {
-				writeObject(hash, object);
+				writeObject(hash, object, ticket);
 			} catch (IOException e) {
 				fileSystemError = e.getMessage();
+			} finally {
+				fileSystemError = commit(ticket, fileSystemError);
 			}
 		}
 
@@ -117,14 +189,12 @@ public final class FolderStore extends Store {
 		}
 	}
 
-	boolean isComplete(Hash hash, CondensationObject object) {
+	boolean isComplete(Hash hash, CondensationObject object, GroupCommit.Ticket ticket) {
 		if (!enforceCompleteness) return true;
 
 		for (Hash childHash : object.hashes()) {
-			String hashHex = childHash.hex();
-			File folder = new File(objectsFolder, hashHex.substring(0, 2));
-			File file = new File(folder, hashHex.substring(2));
-			if (file.exists()) continue;
+			if (ticket != null && ticket.objects.contains(childHash)) continue;
+			if (objects.exists(childHash)) continue;
 
 			Condensation.log("Attempting to write " + hash.hex() + ", but " + childHash.hex() + " is missing.");
 		}
@@ -132,19 +202,38 @@ public final class FolderStore extends Store {
 		return true;
 	}
 
-	private void writeObject(Hash hash, CondensationObject object) throws IOException {
-		String hashHex = hash.hex();
-		File folder = new File(objectsFolder, hashHex.substring(0, 2));
-		File file = new File(folder, hashHex.substring(2));
-		if (file.exists()) return;
+	private void writeObject(Hash hash, CondensationObject object, GroupCommit.Ticket ticket) throws IOException {
+		shade(hash);
 
-		if (!isComplete(hash, object)) throw new IOException("Incomplete object.");
+		// An existing object may belong to a ticket which has not been committed yet. The storage then adds what is
+		// necessary to make it durable to this ticket.
+		if (objects.exists(hash)) {
+			if (ticket != null) objects.write(hash, object, System.currentTimeMillis(), ticket);
+			return;
+		}
+
+		if (!isComplete(hash, object, ticket)) throw new IOException("Incomplete object.");
+		objects.write(hash, object, System.currentTimeMillis(), ticket);
+		if (ticket != null) ticket.objects.add(hash);
+	}
+
+	// Returns a ticket collecting the changes of one write operation, or null if writes need not be durable.
+	private GroupCommit.Ticket beginWrite() {
+		return groupCommit == null ? null : groupCommit.begin();
+	}
 
-		folder.mkdir();
-		FileOutputStream stream = new FileOutputStream(file, false);
-		stream.write(object.header.buffer, object.header.byteOffset, object.header.byteLength);
-		stream.write(object.data.buffer, object.data.byteOffset, object.data.byteLength);
-		stream.close();
+	// Waits until the changes of the ticket are durable. Changes are committed even after an error, since objects and box
+	// entries written so far are valid. Returns the first error.
+	private String commit(GroupCommit.Ticket ticket, String fileSystemError) {
+		if (ticket == null) return fileSystemError;
+
+		try {
+			groupCommit.commit(ticket);
+		} catch (IOException e) {
+			if (fileSystemError == null) return "Failed to sync: " + e.getMessage();
+		}
+
+		return fileSystemError;
 	}
 
 	@Override
@@ -165,11 +254,7 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
-			String hashHex = hash.hex();
-			File folder = new File(objectsFolder, hashHex.substring(0, 2));
-			File file = new File(folder, hashHex.substring(2));
-			if (file.exists()) return;
-			success = file.setLastModified(System.currentTimeMillis());
+			success = bookObject(hash);
 		}
 
 		@Override
@@ -179,6 +264,211 @@ public final class FolderStore extends Store {
 		}
 	}
 
+	boolean bookObject(Hash hash) {
+		shade(hash);
+		return objects.book(hash);
+	}
+
+	// Tells the garbage collector that this object is being used.
+	private void shade(Hash hash) {
+		IncrementalGarbageCollector collector = incrementalGarbageCollector;
+		if (collector != null) collector.shade(hash);
+	}
+
+	// *** Asynchronous batch interface
+	// Each batch is processed in a single background task.
+
+	@Override
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		new GetMany(hashes, done);
+	}
+
+	class GetMany implements BackgroundTask {
+		final Collection<Hash> hashes;
+		final GetManyDone done;
+		final HashMap<Hash, CondensationObject> result = new HashMap<>();
+		String fileSystemError;
+
+		GetMany(Collection<Hash> hashes, GetManyDone done) {
+			this.hashes = new ArrayList<>(hashes);
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			for (Hash hash : hashes) {
+				try {
+					CondensationObject object = objects.read(hash);
+					if (object != null) result.put(hash, object);
+				} catch (IOException e) {
+					fileSystemError = e.getMessage();
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void after() {
+			if (fileSystemError != null) done.onGetManyStoreError("Failed to read the object file: " + fileSystemError);
+			else done.onGetManyDone(result);
+		}
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		new BookMany(hashes, done);
+	}
+
+	class BookMany implements BackgroundTask {
+		final Collection<Hash> hashes;
+		final BookManyDone done;
+		final ArrayList<Hash> notFound = new ArrayList<>();
+
+		BookMany(Collection<Hash> hashes, BookManyDone done) {
+			this.hashes = new ArrayList<>(hashes);
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			for (Hash hash : hashes)
+				if (!bookObject(hash)) notFound.add(hash);
+		}
+
+		@Override
+		public void after() {
+			done.onBookManyDone(notFound);
+		}
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		new PutMany(objects, done);
+	}
+
+	class PutMany implements BackgroundTask {
+		final Map<Hash, CondensationObject> objects;
+		final PutManyDone done;
+		String fileSystemError;
+
+		PutMany(Map<Hash, CondensationObject> objects, PutManyDone done) {
+			this.objects = new HashMap<>(objects);
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			GroupCommit.Ticket ticket = beginWrite();
+			try {
+				for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet())
+					writeObject(entry.getKey(), entry.getValue(), ticket);
+			} catch (IOException e) {
+				fileSystemError = e.getMessage();
+			} finally {
+				fileSystemError = commit(ticket, fileSystemError);
+			}
+		}
+
+		@Override
+		public void after() {
+			if (fileSystemError == null) done.onPutManyDone();
+			else done.onPutManyStoreError("Failed to write the object file: " + fileSystemError);
+		}
+	}
+
+	// *** Asynchronous pack interface
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		new PutPack(pack, done);
+	}
+
+	class PutPack implements BackgroundTask {
+		final ObjectPack pack;
+		final PutPackDone done;
+		String fileSystemError;
+
+		PutPack(ObjectPack pack, PutPackDone done) {
+			this.pack = pack;
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			// Objects are written in pack order, i.e. children first
+			GroupCommit.Ticket ticket = beginWrite();
+			try {
+				for (int i = 0; i < pack.count(); i++)
+					writeObject(pack.hashes[i], pack.objects[i], ticket);
+			} catch (IOException e) {
+				fileSystemError = e.getMessage();
+			} finally {
+				fileSystemError = commit(ticket, fileSystemError);
+			}
+		}
+
+		@Override
+		public void after() {
+			if (fileSystemError == null) done.onPutPackDone();
+			else done.onPutPackStoreError("Failed to write the object file: " + fileSystemError);
+		}
+	}
+
+	@Override
+	public void getPack(@NonNull Hash root, @NonNull KeyPair keyPair, @NonNull GetPackDone done) {
+		new GetPack(root, done);
+	}
+
+	class GetPack implements BackgroundTask {
+		final Hash root;
+		final GetPackDone done;
+		ObjectPack pack;
+		String fileSystemError;
+
+		GetPack(Hash root, GetPackDone done) {
+			this.root = root;
+			this.done = done;
+			Condensation.fileSystemExecutor.run(this);
+		}
+
+		@Override
+		public void background() {
+			HashMap<Hash, CondensationObject> tree = new HashMap<>();
+			HashSet<Hash> visited = new HashSet<>();
+			visited.add(root);
+			ArrayList<Hash> queue = new ArrayList<>();
+			queue.add(root);
+			for (int i = 0; i < queue.size(); i++) {
+				Hash hash = queue.get(i);
+				CondensationObject object;
+				try {
+					object = objects.read(hash);
+				} catch (IOException e) {
+					fileSystemError = e.getMessage();
+					return;
+				}
+
+				if (object == null) continue;
+				tree.put(hash, object);
+				for (Hash childHash : object.hashes())
+					if (visited.add(childHash)) queue.add(childHash);
+			}
+
+			if (!tree.isEmpty()) pack = ObjectPack.childrenFirst(tree);
+		}
+
+		@Override
+		public void after() {
+			if (fileSystemError != null) done.onGetPackStoreError("Failed to read the object file: " + fileSystemError);
+			else if (pack == null) done.onGetPackNotFound();
+			else done.onGetPackDone(pack);
+		}
+	}
+
 	@Override
 	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull final ListDone done) {
 		new List(accountHash, boxLabel, done);
@@ -188,7 +478,8 @@ public final class FolderStore extends Store {
 		final Hash accountHash;
 		final BoxLabel boxLabel;
 		final ListDone done;
-		ArrayList<Hash> result = new ArrayList<>();
+		ArrayList<Hash> result;
+		String fileSystemError;
 
 		List(Hash accountHash, BoxLabel boxLabel, ListDone done) {
 			this.accountHash = accountHash;
@@ -199,20 +490,17 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
-			File accountFolder = new File(accountsFolder, accountHash.hex());
-			File boxFolder = new File(accountFolder, boxLabel.asText);
-			String[] files = boxFolder.list();
-			if (files == null) return;
-			for (String filename : files) {
-				Hash hash = Hash.from(filename);
-				if (hash == null) continue;
-				result.add(hash);
+			try {
+				result = boxes.list(accountHash, boxLabel, null);
+			} catch (IOException e) {
+				fileSystemError = e.getMessage();
 			}
 		}
 
 		@Override
 		public void after() {
-			done.onListDone(result);
+			if (fileSystemError != null) done.onListStoreError("Failed to read the box: " + fileSystemError);
+			else done.onListDone(result);
 		}
 	}
 
@@ -236,34 +524,24 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
-			// Process additions
-			for (BoxAddition addition : additions) {
-				File accountFolder = new File(accountsFolder, addition.accountHash.hex());
-				accountFolder.mkdir();
-				File boxFolder = new File(accountFolder, addition.boxLabel.asText);
-				boxFolder.mkdir();
-				File file = new File(boxFolder, addition.hash.hex());
-
-				try {
-					if (addition.object != null) writeObject(addition.hash, addition.object);
-					Bytes.empty.writeToFile(file);
-				} catch (IOException e) {
-					fileSystemError = e.getMessage();
-					return;
+			GroupCommit.Ticket ticket = beginWrite();
+			try {
+				for (BoxAddition addition : additions) {
+					if (addition.object != null) writeObject(addition.hash, addition.object, ticket);
+					else shade(addition.hash);
 				}
-			}
 
-			// Process removals
-			for (BoxRemoval removal : removals) {
-				File accountFolder = new File(accountsFolder, removal.accountHash.hex());
-				File boxFolder = new File(accountFolder, removal.boxLabel.asText);
-				new File(boxFolder, removal.hash.hex()).delete();
+				boxes.modify(additions, removals, ticket);
+			} catch (IOException e) {
+				fileSystemError = e.getMessage();
+			} finally {
+				fileSystemError = commit(ticket, fileSystemError);
 			}
 		}
 
 		@Override
 		public void after() {
-			if (fileSystemError != null) done.onModifyStoreError("Failed to write the box entry file: " + fileSystemError);
+			if (fileSystemError != null) done.onModifyStoreError("Failed to write the box entry: " + fileSystemError);
 			else done.onModifyDone();
 		}
 	}
@@ -272,9 +550,15 @@ public final class FolderStore extends Store {
 
 	// Creates the store if it does not exist. The store folder itself must exist.
 	public boolean createIfNecessary() {
-		accountsFolder.mkdir();
-		objectsFolder.mkdir();
-		return accountsFolder.isDirectory() && objectsFolder.isDirectory();
+		if (groupCommit != null && !groupCommit.createIfNecessary()) return false;
+		return boxes.createIfNecessary() && objects.createIfNecessary();
+	}
+
+	// Writes pending state of the object and box storage, and releases memory and open files. This blocks, and should be
+	// called on a background thread (e.g. when shutting down). The store remains usable.
+	public void close() {
+		objects.close();
+		boxes.close();
 	}
 
 	// Removes an account. This is a best-effort operation, which fails silently.
@@ -292,20 +576,7 @@ public final class FolderStore extends Store {
 
 		@Override
 		public void background() {
-			File accountFolder = new File(accountsFolder, accountHash.hex());
-			deleteBox(accountFolder, BoxLabel.MESSAGES);
-			deleteBox(accountFolder, BoxLabel.PRIVATE);
-			deleteBox(accountFolder, BoxLabel.PUBLIC);
-			accountFolder.delete();
-		}
-
-		void deleteBox(File accountFolder, BoxLabel boxLabel) {
-			File boxFolder = new File(accountFolder, boxLabel.asText);
-			File[] files = boxFolder.listFiles();
-			if (files != null)
-				for (File file : files)
-					file.delete();
-			boxFolder.delete();
+			boxes.deleteAccount(accountHash);
 		}
 
 		@Override
@@ -1,10 +1,12 @@
 package condensation.stores.folder;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
 import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
 import condensation.tools.CondensationView;
 import condensation.tools.Drawer;
 import condensation.tools.Inspection;
@@ -13,7 +15,6 @@ class FolderStoreBoxInspection extends Inspection {
 	final FolderStore store;
 	final Hash accountHash;
 	final BoxLabel boxLabel;
-	final File boxFolder;
 
 	// State
 	boolean isOpen = false;
@@ -27,7 +28,6 @@ class FolderStoreBoxInspection extends Inspection {
 		this.boxLabel = boxLabel;
 		this.sortKey = boxLabel.asBytes;
 
-		boxFolder = new File(new File(store.accountsFolder, accountHash.hex()), boxLabel.asText);
 		update();
 	}
 
@@ -38,15 +38,8 @@ class FolderStoreBoxInspection extends Inspection {
 	@Override
 	public void update() {
 		hashes.clear();
-		String[] files = boxFolder.list();
-
-		if (files != null) {
-			for (String filename : files) {
-				Hash hash = Hash.from(filename);
-				if (hash == null) continue;
-				hashes.add(filename);
-			}
-		}
+		for (Hash hash : list())
+			hashes.add(hash.hex());
 
 		count = hashes.size();
 		setLines(1 + hashes.size());
@@ -55,8 +48,15 @@ class FolderStoreBoxInspection extends Inspection {
 
 	public void updateCount() {
 		if (isOpen) return;
-		String[] files = boxFolder.list();
-		count = files == null ? 0 : files.length;
+		count = list().size();
+	}
+
+	ArrayList<Hash> list() {
+		try {
+			return store.boxes.list(accountHash, boxLabel, null);
+		} catch (IOException e) {
+			return new ArrayList<>();
+		}
 	}
 
 	public void onClose() {
@@ -75,9 +75,15 @@ class FolderStoreBoxInspection extends Inspection {
 	@Override
 	public void onClick(float x, float y) {
 		if (hitTestOption(x, y, 0)) {
-			File[] files = boxFolder.listFiles();
-			if (files == null) return;
-			for (File file : files) file.delete();
+			ArrayList<BoxRemoval> removals = new ArrayList<>();
+			for (Hash hash : list())
+				removals.add(new BoxRemoval(accountHash, boxLabel, hash));
+
+			try {
+				store.boxes.modify(BoxAddition.none, removals, null);
+			} catch (IOException ignored) {
+			}
+
 			view.invalidate();
 			update();
 		}
@@ -6,7 +6,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 
-import condensation.serialization.Bytes;
 import condensation.serialization.Hash;
 import condensation.stores.MissingObject;
 import condensation.tasks.BackgroundTask;
@@ -68,12 +67,7 @@ public class FolderStoreInspection extends Inspection {
 		HashSet<Hash> toRemove = new HashSet<>(inspections.keySet());
 
 		// Add new items
-		String[] files = store.accountsFolder.list();
-		if (files == null) files = new String[0];
-		for (String filename : files) {
-			Hash hash = Hash.from(filename);
-			if (hash == null) continue;
-
+		for (Hash hash : store.boxes.accounts(null)) {
 			FolderStoreAccountInspection inspection = inspections.get(hash);
 			if (inspection == null) {
 				inspections.put(hash, new FolderStoreAccountInspection(view, store, hash));
@@ -121,31 +115,20 @@ public class FolderStoreInspection extends Inspection {
 
 		@Override
 		public void background() {
-			File baseFolder = store.objectsFolder;
-			String[] subFolders = baseFolder.list();
-			if (subFolders == null) subFolders = new String[0];
-
-			for (String subFolderName : subFolders) {
-				if (subFolderName.length() != 2) continue;
-				if (Bytes.fromHex(subFolderName) == null) continue;
-
-				File subFolder = new File(baseFolder, subFolderName);
-				String[] files = subFolder.list();
-				if (files == null) continue;
-
-				for (String filename : files) {
-					if (filename.equals(".") || filename.equals("..")) continue;
-					File file = new File(subFolder, filename);
-					Hash hash = Hash.from(subFolderName + filename);
-					if (hash == null) {
-						otherCount += 1;
-						otherSize += file.length();
-					} else {
-						objectsCount += 1;
-						objectsSize += file.length();
-					}
+			store.objects.forEach(new ObjectStorage.Visitor() {
+				@Override
+				public boolean onObject(Hash hash, long booked, long byteLength) {
+					objectsCount += 1;
+					objectsSize += byteLength;
+					return true;
 				}
-			}
+
+				@Override
+				public void onInvalidFile(File file) {
+					otherCount += 1;
+					otherSize += file.length();
+				}
+			});
 		}
 
 		@Override
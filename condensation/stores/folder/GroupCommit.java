@@ -0,0 +1,293 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import condensation.Condensation;
+import condensation.serialization.Hash;
+
+// Makes file system changes durable, while sharing the expensive syncs among all writes happening at the same time.
+//
+// Each write operation collects its changes in a ticket: files written to a temporary location, folders whose entries
+// changed, and channels that were appended to. When the operation commits its ticket, the first thread becomes the
+// leader, waits a short moment for writes in progress, and then syncs all tickets committed so far in one go: it syncs
+// the data of the temporary files, renames them to their final location, and syncs each changed folder once. Threads
+// committing meanwhile wait for the leader, and are part of the next round. An operation reports success only once its
+// ticket has been committed, so an acknowledged write survives a crash, and a crash never leaves truncated objects.
+public final class GroupCommit {
+	// The leader waits at most this long (in ms) for writes in progress to join the same sync
+	public static long window = 2L;
+
+	// Temporary files older than this are removed by createIfNecessary()
+	public static long staleTemporaryFileAge = Condensation.HOUR;
+
+	public final File temporaryFolder;
+	private final AtomicLong temporaryFileCounter = new AtomicLong();
+	// Several instances (possibly in different processes) may share the temporary folder
+	private final String temporaryFilePrefix = Long.toHexString(System.currentTimeMillis()) + "-" + Long.toHexString(Condensation.secureRandom.nextLong()) + "-";
+
+	// State, synchronized on this object
+	private int writing = 0;
+	private ArrayList<Ticket> queue = new ArrayList<>();
+	private boolean committing = false;
+
+	// Statistics
+	public long commits = 0L;
+	public long committedTickets = 0L;
+
+	public GroupCommit(File temporaryFolder) {
+		this.temporaryFolder = temporaryFolder;
+	}
+
+	// Creates the temporary folder, and removes files left over by a crash.
+	public boolean createIfNecessary() {
+		temporaryFolder.mkdir();
+		File[] files = temporaryFolder.listFiles();
+		if (files == null) return false;
+
+		long limit = System.currentTimeMillis() - staleTemporaryFileAge;
+		for (File file : files)
+			if (file.lastModified() < limit) file.delete();
+
+		return true;
+	}
+
+	public File temporaryFile() {
+		return new File(temporaryFolder, temporaryFilePrefix + temporaryFileCounter.incrementAndGet());
+	}
+
+	// *** Tickets
+
+	public synchronized Ticket begin() {
+		writing += 1;
+		return new Ticket();
+	}
+
+	public final class Ticket {
+		final ArrayList<File> temporaryFiles = new ArrayList<>();
+		final ArrayList<File> targetFiles = new ArrayList<>();
+		final LinkedHashSet<File> folders = new LinkedHashSet<>();
+		final ArrayList<File> lateTemporaryFiles = new ArrayList<>();
+		final ArrayList<File> lateTargetFiles = new ArrayList<>();
+		final LinkedHashSet<File> lateFolders = new LinkedHashSet<>();
+		final ArrayList<Action> lateActions = new ArrayList<>();
+		final LinkedHashSet<File> lateFiles = new LinkedHashSet<>();
+		final LinkedHashSet<FileChannel> channels = new LinkedHashSet<>();
+
+		// Objects written as part of this ticket, which may not be visible yet
+		public final HashSet<Hash> objects = new HashSet<>();
+
+		boolean submitted = false;
+		boolean done = false;
+		IOException error = null;
+
+		public GroupCommit groupCommit() {
+			return GroupCommit.this;
+		}
+
+		// Moves the temporary file to its target when committing.
+		public void rename(File temporaryFile, File target) {
+			temporaryFiles.add(temporaryFile);
+			targetFiles.add(target);
+			folders.add(target.getParentFile());
+		}
+
+		// Moves the temporary file to its target once all other changes of the round are durable. This is used for files
+		// referring to other files, such as box entries.
+		public void renameLast(File temporaryFile, File target) {
+			lateTemporaryFiles.add(temporaryFile);
+			lateTargetFiles.add(target);
+			lateFolders.add(target.getParentFile());
+		}
+
+		// Runs the action once all other changes of the round are durable, and syncs the file it modifies (if any) afterwards.
+		// This is used to append to journals referring to other files. The action is run by the committing thread.
+		public void runLast(Action action, File file) {
+			lateActions.add(action);
+			if (file != null) lateFiles.add(file);
+		}
+
+		// Syncs the folder entries (e.g. after creating or removing a file) when committing.
+		public void syncFolder(File folder) {
+			folders.add(folder);
+		}
+
+		// Syncs the folder entries after the late changes.
+		public void syncFolderLast(File folder) {
+			lateFolders.add(folder);
+		}
+
+		// Forces the data written to this channel when committing.
+		public void force(FileChannel channel) {
+			channels.add(channel);
+		}
+	}
+
+	public interface Action {
+		void run() throws IOException;
+	}
+
+	// Blocks until the changes of the ticket are durable.
+	public void commit(Ticket ticket) throws IOException {
+		boolean interrupted = false;
+		while (true) {
+			ArrayList<Ticket> batch;
+			synchronized (this) {
+				if (!ticket.submitted) {
+					ticket.submitted = true;
+					writing -= 1;
+					queue.add(ticket);
+					notifyAll();
+				}
+
+				// Wait for the current leader
+				while (committing && !ticket.done) interrupted |= waitFor(0L);
+				if (ticket.done) break;
+
+				// Become the leader, and let writes in progress join
+				committing = true;
+				long deadline = System.currentTimeMillis() + window;
+				while (writing > 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) break;
+					interrupted |= waitFor(remaining);
+				}
+
+				batch = queue;
+				queue = new ArrayList<>();
+			}
+
+			IOException error = sync(batch);
+
+			synchronized (this) {
+				for (Ticket committed : batch) {
+					committed.error = error;
+					committed.done = true;
+				}
+
+				commits += 1;
+				committedTickets += batch.size();
+				committing = false;
+				notifyAll();
+			}
+		}
+
+		if (interrupted) Thread.currentThread().interrupt();
+		if (ticket.error != null) throw ticket.error;
+	}
+
+	// Returns true if the thread was interrupted.
+	private boolean waitFor(long timeout) {
+		try {
+			wait(timeout);
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+
+	private static IOException sync(ArrayList<Ticket> batch) {
+		LinkedHashSet<FileChannel> channels = new LinkedHashSet<>();
+		LinkedHashSet<File> folders = new LinkedHashSet<>();
+		LinkedHashSet<File> lateFolders = new LinkedHashSet<>();
+		LinkedHashSet<File> lateFiles = new LinkedHashSet<>();
+		for (Ticket ticket : batch) {
+			channels.addAll(ticket.channels);
+			folders.addAll(ticket.folders);
+			lateFolders.addAll(ticket.lateFolders);
+			lateFiles.addAll(ticket.lateFiles);
+		}
+
+		try {
+			// Sync the data first, so that a renamed file is never incomplete
+			for (Ticket ticket : batch) {
+				for (File file : ticket.temporaryFiles) forceFile(file);
+				for (File file : ticket.lateTemporaryFiles) forceFile(file);
+			}
+
+			for (FileChannel channel : channels) {
+				try {
+					channel.force(false);
+				} catch (ClosedChannelException ignored) {
+					// Channels are forced before being closed
+				}
+			}
+
+			// Move the files into place
+			for (Ticket ticket : batch)
+				move(ticket.temporaryFiles, ticket.targetFiles);
+			for (File folder : folders)
+				forceFolder(folder);
+
+			// Add the files and records referring to them. Every action is run, even if another one fails, since actions may
+			// release state held for the ticket.
+			IOException error = null;
+			for (Ticket ticket : batch) {
+				try {
+					move(ticket.lateTemporaryFiles, ticket.lateTargetFiles);
+				} catch (IOException e) {
+					if (error == null) error = e;
+				}
+
+				for (Action action : ticket.lateActions) {
+					try {
+						action.run();
+					} catch (IOException | RuntimeException e) {
+						if (error == null) error = e instanceof IOException ? (IOException) e : new IOException(e);
+					}
+				}
+			}
+
+			for (File file : lateFiles)
+				forceFile(file);
+			for (File folder : lateFolders)
+				if (!folders.contains(folder)) forceFolder(folder);
+
+			return error;
+		} catch (IOException e) {
+			return e;
+		}
+	}
+
+	private static void move(ArrayList<File> temporaryFiles, ArrayList<File> targetFiles) throws IOException {
+		for (int i = 0; i < temporaryFiles.size(); i++) {
+			File temporaryFile = temporaryFiles.get(i);
+			File target = targetFiles.get(i);
+			if (temporaryFile.renameTo(target)) continue;
+			temporaryFile.delete();
+			if (!target.exists()) throw new IOException("Unable to move the file to " + target + ".");
+		}
+	}
+
+	static void forceFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	static void forceFolder(File folder) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+		} catch (IOException ignored) {
+			// Some platforms (e.g. Windows) do not allow opening folders, and persist folder entries with the file
+			return;
+		}
+
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
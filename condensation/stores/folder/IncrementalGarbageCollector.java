@@ -0,0 +1,552 @@
+package condensation.stores.folder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.CompactHashSet;
+import condensation.serialization.Hash;
+import condensation.stores.BoxLabel;
+import condensation.stores.MissingObject;
+import condensation.tasks.BackgroundTask;
+import condensation.tasks.BackgroundThread;
+
+// Collects garbage in small steps, while the store is being used. Unlike CollectGarbage, a cycle can be stopped at any
+// time, and resumes where it stopped upon the next run, even after a restart.
+//
+// A cycle first marks all objects reachable from the box entries (snapshot at the beginning), and then sweeps the
+// objects shard by shard (by the first byte of the hash). The mark state (marked hashes, and hashes whose children have
+// not been marked yet) is saved in a folder at regular intervals.
+//
+// While a cycle is active, the store reports every object it writes, books, or adds to a box (write barrier). These
+// objects are marked, so that objects which become reachable during the cycle are kept. Objects booked or written
+// within the grace interval before the cycle started are kept as well, since they may be part of a tree being uploaded.
+// Since box entries added while no collector was attached are not reported, the boxes are listed again whenever a cycle
+// starts or resumes, and the objects booked within the grace interval are marked, so that their children are kept too.
+//
+// The collector only uses a fraction of the time for I/O (ioShare), and sleeps otherwise. Only one collector must be
+// attached to a store.
+public final class IncrementalGarbageCollector {
+	static final int stateVersion = 2;
+	static final byte idle = 0;
+	static final byte marking = 1;
+	static final byte sweeping = 2;
+
+	// Number of objects marked in one step
+	public static int stepSize = 1000;
+
+	// The mark state is saved at least that often
+	public static long checkpointInterval = 10 * 1000L;
+
+	public final FolderStore folderStore;
+	public final File folder;
+	final File stateFile;
+	final File marksFile;
+
+	// Fraction of the time spent reading and deleting objects. The rest of the time, the collector sleeps.
+	public volatile double ioShare = 0.1;
+
+	// Persistent state
+	byte phase = idle;
+	long graceTime = 0L;
+	int nextShard = 0;
+	long savedMarks = 0L;
+	int deletedObjects = 0;
+	long queueGeneration = 0L;
+
+	// Mark state, loaded when running
+	private CompactHashSet marks = null;
+	private final ArrayDeque<Hash> queue = new ArrayDeque<>();
+	private final ArrayList<Hash> newMarks = new ArrayList<>();
+	private final ArrayList<Hash> shadedBeforeLoading = new ArrayList<>();
+
+	// Run state
+	private boolean running = false;
+	private volatile boolean stopRequested = false;
+
+	// Attaches the collector to the store. The state is kept in folder, which is created if necessary. This reads the
+	// state file, and should be called before the store is used.
+	public IncrementalGarbageCollector(FolderStore folderStore, File folder) {
+		this.folderStore = folderStore;
+		this.folder = folder;
+		this.stateFile = new File(folder, "state");
+		this.marksFile = new File(folder, "marks");
+
+		try {
+			readState();
+		} catch (IOException e) {
+			Condensation.logError("Failed to read the garbage collection state in " + folder + ". Starting a new cycle.", e);
+			phase = idle;
+		}
+
+		folderStore.incrementalGarbageCollector = this;
+	}
+
+	// *** Write barrier
+	// Called by the store before an object is written, booked, or added to a box.
+
+	synchronized void shade(Hash hash) {
+		if (phase == idle) return;
+		if (marks == null) shadedBeforeLoading.add(hash);
+		else if (marks.add(hash)) enqueue(hash);
+	}
+
+	// Must be called while synchronized.
+	private void enqueue(Hash hash) {
+		newMarks.add(hash);
+		queue.add(hash);
+	}
+
+	// Objects remain in the queue until their children have been marked, so that a saved state never contains a marked
+	// object whose children are neither marked nor queued.
+	private synchronized Hash nextInQueue() {
+		return queue.peek();
+	}
+
+	private synchronized void removeFromQueue(Hash hash) {
+		if (queue.peek() == hash) queue.poll();
+	}
+
+	// *** Running
+
+	// Starts or resumes a cycle on a background thread. Returns false if the collector is running already.
+	public synchronized boolean run(long graceInterval, Done done) {
+		Condensation.assertMainThread();
+		if (running) return false;
+		running = true;
+		stopRequested = false;
+		new BackgroundThread(new Run(graceInterval, done));
+		return true;
+	}
+
+	// Asks a running cycle to save its state and stop. The done handler is called once the collector has stopped.
+	public synchronized void stop() {
+		stopRequested = true;
+		notifyAll();
+	}
+
+	class Run implements BackgroundTask {
+		final long graceInterval;
+		final Done done;
+		long lastCheckpoint = System.currentTimeMillis();
+		int deletedInCycle = 0;
+		boolean success = false;
+		boolean completed = false;
+
+		Run(long graceInterval, Done done) {
+			this.graceInterval = graceInterval;
+			this.done = done;
+		}
+
+		@Override
+		public void background() {
+			try {
+				success = runCycle();
+			} catch (IOException e) {
+				Condensation.logError("Garbage collection in " + folderStore.objectsFolder + " failed", e);
+			}
+
+			// Save the state even after an error, since marks and deleted objects remain valid
+			if (phase != idle) {
+				deletedInCycle = deletedObjects;
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					Condensation.logError("Failed to save the garbage collection state in " + folder, e);
+					success = false;
+				}
+			}
+		}
+
+		boolean runCycle() throws IOException {
+			if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Unable to create " + folder + ".");
+			if (phase == idle) startCycle(graceInterval);
+			else loadMarks();
+
+			// Box entries may have been added, and objects written, while the collector was not running
+			if (!markRoots()) return false;
+			markRecentObjects();
+
+			while (phase == marking) {
+				if (stopRequested) return true;
+				long start = System.currentTimeMillis();
+				if (!markStep()) return false;
+				if (queueIsEmpty()) {
+					synchronized (IncrementalGarbageCollector.this) {
+						phase = sweeping;
+						nextShard = 0;
+					}
+					checkpoint();
+				}
+
+				pause(start);
+			}
+
+			while (nextShard < 256) {
+				if (stopRequested) return true;
+				long start = System.currentTimeMillis();
+				if (!sweep(nextShard)) return false;
+				nextShard += 1;
+				checkpoint();
+				pause(start);
+			}
+
+			completed = true;
+			deletedInCycle = deletedObjects;
+			finishCycle();
+			return true;
+		}
+
+		// Lists all box entries, and marks them.
+		boolean markRoots() {
+			try {
+				for (Hash accountHash : folderStore.boxes.accounts(null))
+					for (BoxLabel boxLabel : BoxLabel.all)
+						for (Hash hash : folderStore.boxes.list(accountHash, boxLabel, null))
+							shade(hash);
+				return true;
+			} catch (IOException e) {
+				Condensation.logError("Failed to list the boxes in " + folderStore.accountsFolder, e);
+				return false;
+			}
+		}
+
+		// Marks the objects booked within the grace interval. These are kept anyway, but their children must be kept too,
+		// since they may belong to a tree which is not referenced by any box yet.
+		void markRecentObjects() {
+			folderStore.objects.forEach(new ObjectStorage.Visitor() {
+				@Override
+				public boolean onObject(Hash hash, long booked, long byteLength) {
+					if (booked >= graceTime) shade(hash);
+					return true;
+				}
+
+				@Override
+				public void onInvalidFile(File file) {
+				}
+			});
+		}
+
+		// Marks the children of up to stepSize objects of the queue. Returns false if reading an object failed.
+		boolean markStep() throws IOException {
+			for (int i = 0; i < stepSize; i++) {
+				Hash hash = nextInQueue();
+				if (hash == null) return true;
+				if (!markChildren(hash)) return false;
+				removeFromQueue(hash);
+			}
+
+			return true;
+		}
+
+		boolean markChildren(Hash hash) {
+			Bytes header;
+			try {
+				header = folderStore.objects.readHeader(hash);
+			} catch (IOException e) {
+				Condensation.logError("Failed to read " + hash.hex() + " in " + folderStore.objectsFolder, e);
+				return false;
+			}
+
+			if (header == null) {
+				MissingObject missingObject = new MissingObject(hash, folderStore);
+				missingObject.context = "incremental garbage collection";
+				done.onIncrementalGarbageCollectionMissingObjectAsync(missingObject);
+				return true;
+			}
+
+			// Invalid objects have no children
+			if (header.byteLength == 0) return true;
+
+			int countHashes = header.getInteger32(0);
+			for (int i = 0; i < countHashes; i++)
+				shade(Hash.from(header.slice(4 + i * 32, 32)));
+			return true;
+		}
+
+		// Deletes the unmarked objects of a shard that are older than the grace time.
+		boolean sweep(int shard) throws IOException {
+			// Objects marked through the write barrier must be traced first, since their children may be in this shard
+			if (!drainQueue()) return false;
+
+			final ArrayList<Hash> candidates = new ArrayList<>();
+			folderStore.objects.forEach(shard, new ObjectStorage.Visitor() {
+				@Override
+				public boolean onObject(Hash hash, long booked, long byteLength) {
+					if (booked < graceTime && !marks.contains(hash)) candidates.add(hash);
+					return true;
+				}
+
+				@Override
+				public void onInvalidFile(File file) {
+				}
+			});
+
+			// Objects must not be marked between checking and deleting them
+			while (true) {
+				synchronized (IncrementalGarbageCollector.this) {
+					if (queue.isEmpty()) {
+						ArrayList<Hash> toDelete = new ArrayList<>();
+						for (Hash hash : candidates)
+							if (!marks.contains(hash)) toDelete.add(hash);
+
+						deletedObjects += toDelete.size();
+						return folderStore.objects.delete(toDelete);
+					}
+				}
+
+				if (!drainQueue()) return false;
+			}
+		}
+
+		boolean drainQueue() throws IOException {
+			while (!queueIsEmpty())
+				if (!markStep()) return false;
+			return true;
+		}
+
+		// Sleeps so that the time since start is only ioShare of the total time.
+		void pause(long start) {
+			double share = Math.max(0.01, Math.min(1.0, ioShare));
+			long duration = System.currentTimeMillis() - start;
+			long sleepTime = (long) (duration * (1.0 - share) / share);
+			if (sleepTime <= 0) return;
+
+			synchronized (IncrementalGarbageCollector.this) {
+				try {
+					if (!stopRequested) IncrementalGarbageCollector.this.wait(sleepTime);
+				} catch (InterruptedException ignored) {
+				}
+			}
+
+			if (System.currentTimeMillis() - lastCheckpoint < checkpointInterval) return;
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				Condensation.logError("Failed to save the garbage collection state in " + folder, e);
+			}
+		}
+
+		void checkpoint() throws IOException {
+			saveState();
+			lastCheckpoint = System.currentTimeMillis();
+		}
+
+		@Override
+		public void after() {
+			synchronized (IncrementalGarbageCollector.this) {
+				running = false;
+			}
+
+			done.onIncrementalGarbageCollectionDone(success, completed, deletedInCycle);
+		}
+	}
+
+	private synchronized boolean queueIsEmpty() {
+		return queue.isEmpty();
+	}
+
+	// *** State
+	// state: version (int32), phase (byte), grace time (int64), next shard (int32), saved marks (int64), deleted objects
+	// (int32), queue generation (int64)
+	// marks: marked hashes, 32 bytes each; only the first "saved marks" hashes are valid
+	// queue-GENERATION: hashes whose children have not been marked yet, 32 bytes each
+	// A new queue file is written with each state, so that the state and the queue are replaced together.
+
+	private File queueFile(long generation) {
+		return new File(folder, "queue-" + generation);
+	}
+
+	// Removes all queue files except the current one, e.g. those left over by a crash.
+	private void deleteOtherQueueFiles(long generation) {
+		File[] files = folder.listFiles();
+		if (files == null) return;
+		String current = queueFile(generation).getName();
+		for (File file : files)
+			if (file.getName().startsWith("queue") && !file.getName().equals(current)) file.delete();
+	}
+
+	private synchronized void startCycle(long graceInterval) throws IOException {
+		graceTime = System.currentTimeMillis() - graceInterval;
+		nextShard = 0;
+		savedMarks = 0L;
+		deletedObjects = 0;
+		queueGeneration = 0L;
+		marksFile.delete();
+		deleteOtherQueueFiles(-1L);
+		marks = new CompactHashSet();
+		queue.clear();
+		newMarks.clear();
+		phase = marking;
+		shadedBeforeLoading.clear();
+		saveState();
+	}
+
+	private synchronized void finishCycle() {
+		phase = idle;
+		marks = null;
+		queue.clear();
+		newMarks.clear();
+		stateFile.delete();
+		marksFile.delete();
+		deleteOtherQueueFiles(-1L);
+	}
+
+	private void readState() throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+		} catch (FileNotFoundException ignored) {
+			return;
+		}
+
+		try {
+			if (in.readInt() != stateVersion) throw new IOException("Unknown state version.");
+			phase = in.readByte();
+			graceTime = in.readLong();
+			nextShard = in.readInt();
+			savedMarks = in.readLong();
+			deletedObjects = in.readInt();
+			queueGeneration = in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+
+	// Loads the marks and the queue. Marks written after the last state was saved are cut off, since their children
+	// may not have been queued.
+	private void loadMarks() throws IOException {
+		CompactHashSet loadedMarks = new CompactHashSet();
+		RandomAccessFile marksAccess = new RandomAccessFile(marksFile, "rw");
+		try {
+			if (marksAccess.length() < savedMarks * 32) throw new EOFException(marksFile + " is truncated.");
+			marksAccess.setLength(savedMarks * 32);
+		} finally {
+			marksAccess.close();
+		}
+
+		readHashes(marksFile, loadedMarks, null);
+		ArrayList<Hash> loadedQueue = new ArrayList<>();
+		readHashes(queueFile(queueGeneration), null, loadedQueue);
+		deleteOtherQueueFiles(queueGeneration);
+
+		synchronized (this) {
+			marks = loadedMarks;
+			queue.clear();
+			queue.addAll(loadedQueue);
+			newMarks.clear();
+			for (Hash hash : shadedBeforeLoading) shade(hash);
+			shadedBeforeLoading.clear();
+		}
+	}
+
+	private static void readHashes(File file, CompactHashSet set, ArrayList<Hash> list) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		} catch (FileNotFoundException ignored) {
+			return;
+		}
+
+		try {
+			byte[] buffer = new byte[32];
+			while (true) {
+				try {
+					in.readFully(buffer);
+				} catch (EOFException ignored) {
+					return;
+				}
+
+				Hash hash = Hash.from(new Bytes(buffer.clone()));
+				if (set != null) set.add(hash);
+				if (list != null) list.add(hash);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Appends the new marks, writes a new queue file, and replaces the state. The marks and the queue are written first,
+	// and only become valid with the state.
+	private void saveState() throws IOException {
+		ArrayList<Hash> marksToAppend;
+		ArrayList<Hash> queueToWrite;
+		byte phaseToWrite;
+		synchronized (this) {
+			marksToAppend = new ArrayList<>(newMarks);
+			newMarks.clear();
+			queueToWrite = new ArrayList<>(queue);
+			phaseToWrite = phase;
+		}
+
+		if (!marksToAppend.isEmpty()) {
+			FileOutputStream stream = new FileOutputStream(marksFile, true);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+				writeHashes(out, marksToAppend);
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+		}
+
+		long newQueueGeneration = queueGeneration + 1;
+		File newQueueFile = queueFile(newQueueGeneration);
+		DataOutputStream queueOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newQueueFile), 65536));
+		try {
+			writeHashes(queueOut, queueToWrite);
+		} finally {
+			queueOut.close();
+		}
+
+		GroupCommit.forceFile(newQueueFile);
+		GroupCommit.forceFolder(folder);
+
+		File newStateFile = new File(folder, "state.new");
+		DataOutputStream stateOut = new DataOutputStream(new FileOutputStream(newStateFile));
+		try {
+			stateOut.writeInt(stateVersion);
+			stateOut.writeByte(phaseToWrite);
+			stateOut.writeLong(graceTime);
+			stateOut.writeInt(nextShard);
+			stateOut.writeLong(savedMarks + marksToAppend.size());
+			stateOut.writeInt(deletedObjects);
+			stateOut.writeLong(newQueueGeneration);
+		} finally {
+			stateOut.close();
+		}
+
+		GroupCommit.forceFile(newStateFile);
+		if (!newStateFile.renameTo(stateFile)) throw new IOException("Unable to replace " + stateFile + ".");
+		savedMarks += marksToAppend.size();
+		GroupCommit.forceFolder(folder);
+		queueFile(queueGeneration).delete();
+		queueGeneration = newQueueGeneration;
+	}
+
+	private static void writeHashes(DataOutputStream out, ArrayList<Hash> hashes) throws IOException {
+		for (Hash hash : hashes)
+			out.write(hash.bytes.buffer, hash.bytes.byteOffset, 32);
+	}
+
+	public interface Done {
+		void onIncrementalGarbageCollectionMissingObjectAsync(MissingObject missingObject);
+
+		// Completed is true if the cycle has been completed, and false if the collector was stopped before. In the latter
+		// case, the next run resumes the cycle. The deleted objects are counted since the start of the cycle.
+		void onIncrementalGarbageCollectionDone(boolean success, boolean completed, int deletedObjects);
+	}
+}
@@ -0,0 +1,351 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+
+// Keeps the boxes of each account in a journal file (boxes/<account hash>), and in memory once the account has been used.
+// Listing a box is therefore a memory operation, and a modification a single append to the journal.
+//
+// The journal is a sequence of 34 byte records: operation (1 = add, 2 = remove), box (0 = messages, 1 = private,
+// 2 = public), and the hash. Incomplete or invalid records at the end (e.g. after a crash) are cut off when loading. Once
+// the journal contains many more records than entries, it is replaced by a snapshot with one addition per entry.
+//
+// Since the boxes are kept in memory, this must be the only instance (in any process) accessing the folder.
+public final class JournaledBoxes implements BoxStorage {
+	static final int recordLength = 34;
+	static final byte addRecord = 1;
+	static final byte removeRecord = 2;
+
+	// Journals with at least that many records are rewritten when less than half of their records are entries
+	public static int snapshotThreshold = 1024;
+
+	public final File folder;
+	public final File legacyFolder;
+	private final ConcurrentHashMap<Hash, Account> accounts = new ConcurrentHashMap<>();
+
+	// Boxes stored as loose files in legacyFolder (if not null) are moved into the journal when an account is first used.
+	public JournaledBoxes(File folder, File legacyFolder) {
+		this.folder = folder;
+		this.legacyFolder = legacyFolder;
+	}
+
+	static int boxIndex(BoxLabel boxLabel) {
+		for (int i = 0; i < BoxLabel.all.length; i++)
+			if (BoxLabel.all[i].equals(boxLabel)) return i;
+		return -1;
+	}
+
+	class Account {
+		final Hash hash;
+		final File file;
+		final File newFile;
+		final ArrayList<LinkedHashSet<Hash>> boxes = new ArrayList<>();
+		int records = 0;
+		boolean loaded = false;
+
+		// Appends waiting for a group commit, and whether the account has been dropped from memory
+		int pendingAppends = 0;
+		boolean closed = false;
+
+		Account(Hash hash) {
+			this.hash = hash;
+			this.file = new File(folder, hash.hex());
+			this.newFile = new File(folder, hash.hex() + ".new");
+			for (int i = 0; i < BoxLabel.all.length; i++) boxes.add(new LinkedHashSet<Hash>());
+		}
+
+		int entries() {
+			int count = 0;
+			for (LinkedHashSet<Hash> box : boxes) count += box.size();
+			return count;
+		}
+
+		// Must be called while synchronized on the account.
+		void load() throws IOException {
+			if (loaded) return;
+
+			Bytes bytes = null;
+			try {
+				bytes = Bytes.from(file);
+			} catch (FileNotFoundException ignored) {
+			}
+
+			if (bytes == null) {
+				importLegacyBoxes();
+				loaded = true;
+				return;
+			}
+
+			int position = 0;
+			while (position + recordLength <= bytes.byteLength) {
+				if (!apply(bytes.getInteger8(position), bytes.getInteger8(position + 1), Hash.from(bytes.slice(position + 2, 32)))) break;
+				position += recordLength;
+			}
+
+			records = position / recordLength;
+			if (position < bytes.byteLength) {
+				Condensation.log("Cutting off an incomplete record at " + position + " in " + file);
+				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+				try {
+					randomAccessFile.setLength(position);
+				} finally {
+					randomAccessFile.close();
+				}
+			}
+
+			loaded = true;
+		}
+
+		// Returns true if the record is valid.
+		boolean apply(byte operation, byte box, Hash hash) {
+			if (box < 0 || box >= boxes.size()) return false;
+			if (operation == addRecord) boxes.get(box).add(hash);
+			else if (operation == removeRecord) boxes.get(box).remove(hash);
+			else return false;
+			return true;
+		}
+
+		void importLegacyBoxes() throws IOException {
+			if (legacyFolder == null) return;
+
+			LooseBoxes legacyBoxes = new LooseBoxes(legacyFolder);
+			for (int i = 0; i < BoxLabel.all.length; i++)
+				boxes.get(i).addAll(legacyBoxes.list(hash, BoxLabel.all[i], null));
+			if (entries() == 0) return;
+
+			// Write the journal before removing the files
+			writeSnapshot();
+			legacyBoxes.deleteAccount(hash);
+		}
+
+		// Appends the records, and applies them. Records without effect are skipped. Must be called while synchronized on
+		// the account.
+		void append(ArrayList<byte[]> newRecords) throws IOException {
+			Bytes bytes = new Bytes(newRecords.size() * recordLength);
+			int count = 0;
+			for (byte[] record : newRecords) {
+				LinkedHashSet<Hash> box = boxes.get(record[1]);
+				Hash hash = Hash.from(new Bytes(record, 2, 32));
+				boolean changes = record[0] == addRecord ? box.add(hash) : box.remove(hash);
+				if (!changes) continue;
+				System.arraycopy(record, 0, bytes.buffer, count * recordLength, recordLength);
+				count += 1;
+			}
+
+			if (count == 0) return;
+
+			FileOutputStream stream = new FileOutputStream(file, true);
+			try {
+				stream.write(bytes.buffer, 0, count * recordLength);
+			} finally {
+				stream.close();
+			}
+
+			records += count;
+			if (records >= snapshotThreshold && records > 2 * entries()) writeSnapshot();
+		}
+
+		// Replaces the journal by one addition per entry. Must be called while synchronized on the account.
+		void writeSnapshot() throws IOException {
+			Bytes bytes = new Bytes(entries() * recordLength);
+			int position = 0;
+			for (int i = 0; i < boxes.size(); i++) {
+				for (Hash hash : boxes.get(i)) {
+					bytes.buffer[position] = addRecord;
+					bytes.buffer[position + 1] = (byte) i;
+					bytes.set(position + 2, hash.bytes);
+					position += recordLength;
+				}
+			}
+
+			bytes.writeToFile(newFile);
+			GroupCommit.forceFile(newFile);
+			if (!newFile.renameTo(file)) throw new IOException("Unable to replace " + file + ".");
+
+			// The snapshot may be written while appending in a group commit, which only syncs the journal file itself
+			GroupCommit.forceFolder(folder);
+			records = position / recordLength;
+		}
+	}
+
+	// Returns the account, loaded. With pendingAppend, the account is kept in memory until appendLater is called.
+	private Account account(Hash accountHash, boolean pendingAppend) throws IOException {
+		while (true) {
+			Account account = accounts.get(accountHash);
+			if (account == null) {
+				Account newAccount = new Account(accountHash);
+				account = accounts.putIfAbsent(accountHash, newAccount);
+				if (account == null) account = newAccount;
+			}
+
+			synchronized (account) {
+				if (account.closed) continue;
+				account.load();
+				if (pendingAppend) account.pendingAppends += 1;
+				return account;
+			}
+		}
+	}
+
+	private Account account(Hash accountHash) throws IOException {
+		return account(accountHash, false);
+	}
+
+	// *** BoxStorage
+
+	@Override
+	public boolean createIfNecessary() {
+		folder.mkdir();
+		return folder.isDirectory();
+	}
+
+	@Override
+	public ArrayList<Hash> accounts(InvalidFileHandler invalidFileHandler) {
+		LinkedHashSet<Hash> accountHashes = new LinkedHashSet<>();
+		String[] files = folder.list();
+		if (files != null) {
+			for (String filename : files) {
+				if (filename.endsWith(".new")) continue;
+				Hash accountHash = Hash.from(filename);
+				if (accountHash != null) accountHashes.add(accountHash);
+				else if (invalidFileHandler != null) invalidFileHandler.onInvalidFile(new File(folder, filename));
+			}
+		}
+
+		if (legacyFolder != null) accountHashes.addAll(new LooseBoxes(legacyFolder).accounts(invalidFileHandler));
+		return new ArrayList<>(accountHashes);
+	}
+
+	@Override
+	public ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel, InvalidFileHandler invalidFileHandler) throws IOException {
+		int box = boxIndex(boxLabel);
+		if (box < 0) return new ArrayList<>();
+
+		Account account = account(accountHash);
+		synchronized (account) {
+			return new ArrayList<>(account.boxes.get(box));
+		}
+	}
+
+	@Override
+	public void modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals, GroupCommit.Ticket ticket) throws IOException {
+		// Prepare the records of each account
+		HashMap<Hash, ArrayList<byte[]>> recordsByAccount = new HashMap<>();
+		for (BoxAddition addition : additions)
+			addRecord(recordsByAccount, addition.accountHash, addRecord, addition.boxLabel, addition.hash);
+		for (BoxRemoval removal : removals)
+			addRecord(recordsByAccount, removal.accountHash, removeRecord, removal.boxLabel, removal.hash);
+
+		for (final Hash accountHash : recordsByAccount.keySet()) {
+			final ArrayList<byte[]> records = recordsByAccount.get(accountHash);
+
+			if (ticket == null) {
+				Account account = account(accountHash);
+				synchronized (account) {
+					account.append(records);
+				}
+
+				continue;
+			}
+
+			// Append once the objects are durable, so that an entry never refers to a missing object after a crash. Until
+			// then, close() keeps the account in memory, as the append would otherwise not be visible to a reloaded account.
+			final Account account = account(accountHash, true);
+			if (!account.file.exists()) ticket.syncFolderLast(folder);
+			ticket.runLast(new GroupCommit.Action() {
+				@Override
+				public void run() throws IOException {
+					synchronized (account) {
+						try {
+							account.append(records);
+						} finally {
+							account.pendingAppends -= 1;
+						}
+					}
+				}
+			}, account.file);
+		}
+	}
+
+	private static void addRecord(HashMap<Hash, ArrayList<byte[]>> recordsByAccount, Hash accountHash, byte operation, BoxLabel boxLabel, Hash hash) {
+		int box = boxIndex(boxLabel);
+		if (box < 0) return;
+
+		ArrayList<byte[]> records = recordsByAccount.get(accountHash);
+		if (records == null) {
+			records = new ArrayList<>();
+			recordsByAccount.put(accountHash, records);
+		}
+
+		byte[] record = new byte[recordLength];
+		record[0] = operation;
+		record[1] = (byte) box;
+		hash.bytes.copyToByteArray(record, 2);
+		records.add(record);
+	}
+
+	@Override
+	public void deleteAccount(Hash accountHash) {
+		Account account;
+		try {
+			account = account(accountHash);
+		} catch (IOException e) {
+			new File(folder, accountHash.hex()).delete();
+			return;
+		}
+
+		synchronized (account) {
+			for (LinkedHashSet<Hash> box : account.boxes) box.clear();
+			account.records = 0;
+			account.file.delete();
+		}
+	}
+
+	// Rewrites journals with obsolete records, and removes empty journals. Only loaded accounts are considered, since the
+	// journals of all other accounts have not changed since they were last loaded.
+	@Override
+	public void compact() {
+		for (Account account : accounts.values()) {
+			try {
+				synchronized (account) {
+					if (!account.loaded) continue;
+					if (account.entries() == 0) {
+						account.records = 0;
+						account.file.delete();
+					} else if (account.records > account.entries()) {
+						account.writeSnapshot();
+					}
+				}
+			} catch (IOException e) {
+				Condensation.logError("Failed to compact the boxes of " + account.hash.hex() + " in " + folder, e);
+			}
+		}
+	}
+
+	// Drops all accounts from memory, except those with appends waiting for a group commit.
+	@Override
+	public void close() {
+		for (Account account : accounts.values()) {
+			synchronized (account) {
+				if (account.pendingAppends > 0) continue;
+				account.closed = true;
+				accounts.remove(account.hash, account);
+			}
+		}
+	}
+}
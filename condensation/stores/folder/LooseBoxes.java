@@ -0,0 +1,130 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import condensation.serialization.Bytes;
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+
+// Stores each box entry as an empty file (accounts/<account hash>/<box label>/<hash>).
+// This is thread-safe, because no state is kept. All operations are indirectly synchronized through the file system.
+public final class LooseBoxes implements BoxStorage {
+	public final File folder;
+
+	public LooseBoxes(File folder) {
+		this.folder = folder;
+	}
+
+	public File accountFolder(Hash accountHash) {
+		return new File(folder, accountHash.hex());
+	}
+
+	public File boxFolder(Hash accountHash, BoxLabel boxLabel) {
+		return new File(accountFolder(accountHash), boxLabel.asText);
+	}
+
+	@Override
+	public boolean createIfNecessary() {
+		folder.mkdir();
+		return folder.isDirectory();
+	}
+
+	@Override
+	public ArrayList<Hash> accounts(InvalidFileHandler invalidFileHandler) {
+		ArrayList<Hash> accounts = new ArrayList<>();
+		String[] files = folder.list();
+		if (files == null) return accounts;
+
+		for (String filename : files) {
+			Hash accountHash = Hash.from(filename);
+			if (accountHash != null) accounts.add(accountHash);
+			else if (invalidFileHandler != null) invalidFileHandler.onInvalidFile(new File(folder, filename));
+		}
+
+		return accounts;
+	}
+
+	@Override
+	public ArrayList<Hash> list(Hash accountHash, BoxLabel boxLabel, InvalidFileHandler invalidFileHandler) {
+		ArrayList<Hash> hashes = new ArrayList<>();
+		File boxFolder = boxFolder(accountHash, boxLabel);
+		String[] files = boxFolder.list();
+		if (files == null) return hashes;
+
+		for (String filename : files) {
+			Hash hash = Hash.from(filename);
+			if (hash != null) hashes.add(hash);
+			else if (invalidFileHandler != null) invalidFileHandler.onInvalidFile(new File(boxFolder, filename));
+		}
+
+		return hashes;
+	}
+
+	@Override
+	public void modify(Collection<BoxAddition> additions, Collection<BoxRemoval> removals, GroupCommit.Ticket ticket) throws IOException {
+		// Process additions
+		for (BoxAddition addition : additions) {
+			File accountFolder = accountFolder(addition.accountHash);
+			if (accountFolder.mkdir() && ticket != null) ticket.syncFolder(folder);
+			File boxFolder = new File(accountFolder, addition.boxLabel.asText);
+			if (boxFolder.mkdir() && ticket != null) ticket.syncFolder(accountFolder);
+			File file = new File(boxFolder, addition.hash.hex());
+
+			// With a ticket, the box entry only appears once the object is durable, so that it never refers to a missing
+			// object after a crash
+			if (ticket == null) {
+				Bytes.empty.writeToFile(file);
+			} else {
+				File temporaryFile = ticket.groupCommit().temporaryFile();
+				Bytes.empty.writeToFile(temporaryFile);
+				ticket.renameLast(temporaryFile, file);
+			}
+		}
+
+		// Process removals
+		for (BoxRemoval removal : removals) {
+			File boxFolder = boxFolder(removal.accountHash, removal.boxLabel);
+			if (new File(boxFolder, removal.hash.hex()).delete() && ticket != null) ticket.syncFolder(boxFolder);
+		}
+	}
+
+	@Override
+	public void deleteAccount(Hash accountHash) {
+		File accountFolder = accountFolder(accountHash);
+		for (BoxLabel boxLabel : BoxLabel.all) {
+			File boxFolder = new File(accountFolder, boxLabel.asText);
+			File[] files = boxFolder.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			boxFolder.delete();
+		}
+
+		accountFolder.delete();
+	}
+
+	// Removes empty box and account folders.
+	@Override
+	public void compact() {
+		for (Hash accountHash : accounts(null)) {
+			File accountFolder = accountFolder(accountHash);
+			for (BoxLabel boxLabel : BoxLabel.all) {
+				File boxFolder = new File(accountFolder, boxLabel.asText);
+				String[] files = boxFolder.list();
+				if (files != null && files.length < 1) boxFolder.delete();
+			}
+
+			String[] files = accountFolder.list();
+			if (files != null && files.length < 1) accountFolder.delete();
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,288 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashSet;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+
+// Stores each object in its own file (objects/ab/cdef...), and uses the modification time as booking time.
+// This is thread-safe. All operations are indirectly synchronized through the file system.
+//
+// Optionally, an existence index keeps track of all objects in memory, so that existence checks and bookings of missing
+// objects do not need to touch the file system. The index is loaded from a snapshot saved upon close(), or built by
+// enumerating all objects on a separate thread. Until the index is ready, the file system is used. The index assumes
+// that objects are only added and removed through this instance.
+public final class LooseObjects implements ObjectStorage {
+	public final File folder;
+	public final File indexFile;
+
+	// Existence index state
+	private final ExistenceIndex index = new ExistenceIndex();
+	private volatile int indexGeneration = 0;
+	private boolean indexStarted = false;
+	private volatile boolean indexReady = false;
+	private HashSet<Hash> removedWhileBuildingIndex = null;
+
+	public LooseObjects(File folder) {
+		this(folder, null);
+	}
+
+	// If indexFile is not null, an existence index is used, and saved to that file.
+	public LooseObjects(File folder, File indexFile) {
+		this.folder = folder;
+		this.indexFile = indexFile;
+	}
+
+	public File file(Hash hash) {
+		String hashHex = hash.hex();
+		return new File(new File(folder, hashHex.substring(0, 2)), hashHex.substring(2));
+	}
+
+	@Override
+	public boolean createIfNecessary() {
+		folder.mkdir();
+		return folder.isDirectory();
+	}
+
+	@Override
+	public CondensationObject read(Hash hash) throws IOException {
+		try {
+			return CondensationObject.from(file(hash));
+		} catch (FileNotFoundException ignored) {
+			return null;
+		}
+	}
+
+	@Override
+	public Bytes readHeader(Hash hash) throws IOException {
+		FileInputStream stream;
+		try {
+			stream = new FileInputStream(file(hash));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			// Read the number of hashes, and calculate the header length
+			FileChannel channel = stream.getChannel();
+			Bytes count = Bytes.from(channel, 0L, 4);
+			if (count == null) return Bytes.empty;
+			int hashesLength = count.getInteger32(0) * 32;
+			if (hashesLength < 0) return Bytes.empty;
+
+			// Read the header only, even if the object is large
+			Bytes header = Bytes.from(channel, 0L, 4 + hashesLength);
+			return header == null ? Bytes.empty : header;
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		if (useIndex()) return index.contains(hash);
+		return file(hash).exists();
+	}
+
+	@Override
+	public void write(final Hash hash, CondensationObject object, long booked, GroupCommit.Ticket ticket) throws IOException {
+		File file = file(hash);
+		if (file.exists()) {
+			addToIndex(hash);
+			return;
+		}
+
+		File subFolder = file.getParentFile();
+		if (subFolder.mkdir() && ticket != null) ticket.syncFolder(folder);
+
+		// With a ticket, the object is written to a temporary file, and moved into place once its data has been synced
+		File target = ticket == null ? file : ticket.groupCommit().temporaryFile();
+		FileOutputStream stream = new FileOutputStream(target, false);
+		try {
+			stream.write(object.header.buffer, object.header.byteOffset, object.header.byteLength);
+			stream.write(object.data.buffer, object.data.byteOffset, object.data.byteLength);
+		} finally {
+			stream.close();
+		}
+
+		// The modification time is the booking time, and is kept when renaming. New files have the current time already.
+		if (booked < System.currentTimeMillis() - 1000L) target.setLastModified(booked);
+
+		if (ticket == null) {
+			addToIndex(hash);
+			return;
+		}
+
+		// The object only exists once the ticket has been committed
+		ticket.rename(target, file);
+		ticket.runLast(new GroupCommit.Action() {
+			@Override
+			public void run() {
+				addToIndex(hash);
+			}
+		}, null);
+	}
+
+	@Override
+	public boolean book(Hash hash) {
+		if (useIndex() && !index.contains(hash)) return false;
+		return file(hash).setLastModified(System.currentTimeMillis());
+	}
+
+	@Override
+	public boolean forEach(Visitor visitor) {
+		String[] subFolders = folder.list();
+		if (subFolders == null) return true;
+
+		for (String subFolderName : subFolders) {
+			File subFolder = new File(folder, subFolderName);
+			if (subFolderName.length() != 2 || Bytes.fromHex(subFolderName) == null) {
+				visitor.onInvalidFile(subFolder);
+				continue;
+			}
+
+			if (!forEach(subFolderName, visitor)) return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean forEach(int shard, Visitor visitor) {
+		return forEach(String.format("%02x", shard), visitor);
+	}
+
+	private boolean forEach(String subFolderName, Visitor visitor) {
+		File subFolder = new File(folder, subFolderName);
+		String[] files = subFolder.list();
+		if (files == null) return true;
+
+		for (String filename : files) {
+			File file = new File(subFolder, filename);
+			Hash hash = Hash.from(subFolderName + filename);
+			if (hash == null) {
+				visitor.onInvalidFile(file);
+				continue;
+			}
+
+			if (!visitor.onObject(hash, file.lastModified(), file.length())) return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean delete(Collection<Hash> hashes) {
+		boolean allOk = true;
+		for (Hash hash : hashes) {
+			removeFromIndex(hash);
+			allOk &= file(hash).delete();
+		}
+
+		return allOk;
+	}
+
+	// Saves the existence index, and releases its memory.
+	@Override
+	public void close() {
+		if (indexFile == null) return;
+
+		synchronized (this) {
+			if (!indexStarted) return;
+			if (indexReady) {
+				try {
+					index.save(indexFile);
+				} catch (IOException e) {
+					Condensation.logError("Failed to save the existence index " + indexFile, e);
+				}
+			}
+
+			// An index still being built is discarded, and rebuilt on the next start
+			index.clear();
+			indexGeneration += 1;
+			indexStarted = false;
+			indexReady = false;
+			removedWhileBuildingIndex = null;
+		}
+	}
+
+	// *** Existence index
+
+	// Returns true if the index is ready, and starts loading or building it if necessary.
+	private boolean useIndex() {
+		if (indexFile == null) return false;
+		if (indexReady) return true;
+		startIndex();
+		return indexReady;
+	}
+
+	private synchronized void startIndex() {
+		if (indexStarted) return;
+		indexStarted = true;
+
+		try {
+			if (index.load(indexFile)) {
+				indexReady = true;
+				return;
+			}
+		} catch (IOException e) {
+			Condensation.logError("Failed to load the existence index " + indexFile, e);
+		}
+
+		removedWhileBuildingIndex = new HashSet<>();
+		final int generation = indexGeneration;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				buildIndex(generation);
+			}
+		}, "Existence index " + folder);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void buildIndex(final int generation) {
+		boolean completed = forEach(new Visitor() {
+			@Override
+			public boolean onObject(Hash hash, long booked, long byteLength) {
+				if (generation != indexGeneration) return false;
+				index.add(hash);
+				return true;
+			}
+
+			@Override
+			public void onInvalidFile(File file) {
+			}
+		});
+
+		synchronized (this) {
+			if (!completed || generation != indexGeneration) return;
+
+			// The enumeration may have seen objects that were removed meanwhile
+			for (Hash hash : removedWhileBuildingIndex) index.remove(hash);
+			removedWhileBuildingIndex = null;
+			indexReady = true;
+		}
+	}
+
+	private synchronized void addToIndex(Hash hash) {
+		if (!indexStarted) return;
+		index.add(hash);
+		if (removedWhileBuildingIndex != null) removedWhileBuildingIndex.remove(hash);
+	}
+
+	private synchronized void removeFromIndex(Hash hash) {
+		if (!indexStarted) return;
+		index.remove(hash);
+		if (removedWhileBuildingIndex != null) removedWhileBuildingIndex.add(hash);
+	}
+}
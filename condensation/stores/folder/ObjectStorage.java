@@ -0,0 +1,53 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+
+// Where a FolderStore keeps its objects.
+// All methods are called on background threads, possibly on several of them at the same time, and may block.
+public interface ObjectStorage {
+	// Creates the storage if it does not exist. The store folder itself must exist.
+	boolean createIfNecessary();
+
+	// Returns the object, or null if it does not exist.
+	CondensationObject read(Hash hash) throws IOException;
+
+	// Returns the header (hashes count and hashes) of the object, null if the object does not exist, or an empty Bytes
+	// object if it is not a valid Condensation object.
+	Bytes readHeader(Hash hash) throws IOException;
+
+	boolean exists(Hash hash);
+
+	// Adds the object with the given booking time, unless it exists already. If a ticket is provided, the object must be
+	// durable (and may only become visible) once the ticket has been committed.
+	void write(Hash hash, CondensationObject object, long booked, GroupCommit.Ticket ticket) throws IOException;
+
+	// Sets the booking time to now. Returns false if the object does not exist.
+	boolean book(Hash hash);
+
+	// *** Garbage collection
+
+	// Enumerates all objects. Returns false if the visitor stopped the enumeration.
+	boolean forEach(Visitor visitor);
+
+	// Enumerates the objects whose hash starts with the byte shard (0 - 255). Invalid files need not be reported.
+	boolean forEach(int shard, Visitor visitor);
+
+	interface Visitor {
+		// Return false to stop.
+		boolean onObject(Hash hash, long booked, long byteLength);
+
+		void onInvalidFile(File file);
+	}
+
+	// Removes these objects, and reclaims their space. Returns false if some objects could not be removed.
+	boolean delete(Collection<Hash> hashes);
+
+	// Writes any pending state, and releases open files. The storage reopens itself on the next call.
+	void close();
+}
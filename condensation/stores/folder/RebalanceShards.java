@@ -0,0 +1,184 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import condensation.Condensation;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+import condensation.stores.ShardedStore;
+import condensation.stores.Store;
+import condensation.tasks.BackgroundTask;
+import condensation.tasks.BackgroundThread;
+
+// Moves the objects and accounts of a rebalancing sharded store to their current shard, and finishes rebalancing. All
+// shards must be FolderStores. The sharded store remains usable meanwhile, since it looks for objects and box entries
+// on the previous shards until rebalancing is finished.
+// Objects keep their booking time, and are only removed from the previous shard once their copies are durable.
+public final class RebalanceShards implements BackgroundTask {
+	// Number of objects copied before syncing the copies and removing the originals
+	public static int batchSize = 1000;
+
+	final ShardedStore shardedStore;
+	final Done done;
+
+	// State
+	int movedObjects = 0;
+	int movedAccounts = 0;
+	boolean success = false;
+
+	public RebalanceShards(ShardedStore shardedStore, Done done) {
+		this.shardedStore = shardedStore;
+		this.done = done;
+		Condensation.assertMainThread();
+		new BackgroundThread(this);
+	}
+
+	@Override
+	public void background() {
+		if (shardedStore.previousShards() == null) {
+			success = true;
+			return;
+		}
+
+		for (Store shard : shardedStore.shards()) {
+			if (shard instanceof FolderStore) continue;
+			Condensation.log("Rebalancing: the shard " + shard.id + " is not a FolderStore.");
+			return;
+		}
+
+		try {
+			for (Store shard : shardedStore.previousShards()) {
+				moveObjects((FolderStore) shard);
+				moveAccounts((FolderStore) shard);
+			}
+
+			success = true;
+		} catch (IOException e) {
+			Condensation.logError("Rebalancing " + shardedStore.id + " failed", e);
+		}
+	}
+
+	void moveObjects(final FolderStore source) throws IOException {
+		final HashMap<Hash, Long> toMove = new HashMap<>();
+		source.objects.forEach(new ObjectStorage.Visitor() {
+			@Override
+			public boolean onObject(Hash hash, long booked, long byteLength) {
+				if (shardedStore.shardFor(hash) != source) toMove.put(hash, booked);
+				return true;
+			}
+
+			@Override
+			public void onInvalidFile(File file) {
+			}
+		});
+
+		// Objects are removed from the previous shard once their copies are durable
+		ArrayList<Hash> batch = new ArrayList<>();
+		HashMap<FolderStore, GroupCommit.Ticket> tickets = new HashMap<>();
+		for (Map.Entry<Hash, Long> entry : toMove.entrySet()) {
+			Hash hash = entry.getKey();
+			CondensationObject object = source.objects.read(hash);
+			if (object == null) continue;
+			FolderStore target = (FolderStore) shardedStore.shardFor(hash);
+			target.objects.write(hash, object, entry.getValue(), ticket(target, tickets));
+			batch.add(hash);
+			if (batch.size() >= batchSize) moveBatch(source, batch, tickets);
+		}
+
+		moveBatch(source, batch, tickets);
+	}
+
+	private void moveBatch(FolderStore source, ArrayList<Hash> batch, HashMap<FolderStore, GroupCommit.Ticket> tickets) throws IOException {
+		commit(tickets);
+		if (!source.objects.delete(batch)) throw new IOException("Unable to remove moved objects from " + source.id + ".");
+		movedObjects += batch.size();
+		batch.clear();
+	}
+
+	// Returns the ticket of the target, or null if the target does not use group commit.
+	private static GroupCommit.Ticket ticket(FolderStore target, HashMap<FolderStore, GroupCommit.Ticket> tickets) {
+		if (target.groupCommit == null) return null;
+		GroupCommit.Ticket ticket = tickets.get(target);
+		if (ticket == null) {
+			ticket = target.groupCommit.begin();
+			tickets.put(target, ticket);
+		}
+
+		return ticket;
+	}
+
+	// Commits all tickets, even if one fails, since they have been begun.
+	private static void commit(HashMap<FolderStore, GroupCommit.Ticket> tickets) throws IOException {
+		IOException error = null;
+		for (GroupCommit.Ticket ticket : tickets.values()) {
+			try {
+				ticket.groupCommit().commit(ticket);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		tickets.clear();
+		if (error != null) throw error;
+	}
+
+	// Copies the box entries to the new shard, and removes the account from the previous shard. While rebalancing,
+	// ShardedStore sends removals to the previous shard first, and then to the current shard. Entries removed from the
+	// previous shard after listing it are therefore removed from the new shard again here, and entries removed later
+	// are removed on the new shard by the store itself.
+	void moveAccounts(FolderStore source) throws IOException {
+		for (Hash accountHash : source.boxes.accounts(null)) {
+			FolderStore target = (FolderStore) shardedStore.shardFor(accountHash);
+			if (target == source) continue;
+
+			HashMap<BoxLabel, ArrayList<Hash>> copied = new HashMap<>();
+			ArrayList<BoxAddition> additions = new ArrayList<>();
+			for (BoxLabel boxLabel : BoxLabel.all) {
+				ArrayList<Hash> hashes = source.boxes.list(accountHash, boxLabel, null);
+				copied.put(boxLabel, hashes);
+				for (Hash hash : hashes)
+					additions.add(new BoxAddition(accountHash, boxLabel, hash, null));
+			}
+
+			modify(target, additions, BoxRemoval.none);
+
+			ArrayList<BoxRemoval> removals = new ArrayList<>();
+			for (BoxLabel boxLabel : BoxLabel.all) {
+				HashSet<Hash> remaining = new HashSet<>(source.boxes.list(accountHash, boxLabel, null));
+				for (Hash hash : copied.get(boxLabel))
+					if (!remaining.contains(hash)) removals.add(new BoxRemoval(accountHash, boxLabel, hash));
+			}
+
+			if (!removals.isEmpty()) modify(target, BoxAddition.none, removals);
+			source.boxes.deleteAccount(accountHash);
+			movedAccounts += 1;
+		}
+	}
+
+	private static void modify(FolderStore target, ArrayList<BoxAddition> additions, ArrayList<BoxRemoval> removals) throws IOException {
+		GroupCommit.Ticket ticket = target.groupCommit == null ? null : target.groupCommit.begin();
+		try {
+			target.boxes.modify(additions, removals, ticket);
+		} finally {
+			if (ticket != null) target.groupCommit.commit(ticket);
+		}
+	}
+
+	@Override
+	public void after() {
+		if (success) shardedStore.finishRebalancing();
+		done.onRebalanceShardsDone(success, movedObjects, movedAccounts);
+	}
+
+	public interface Done {
+		void onRebalanceShardsDone(boolean success, int movedObjects, int movedAccounts);
+	}
+}
@@ -0,0 +1,530 @@
+package condensation.stores.folder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+
+// Appends objects to a few large segment files, and keeps an index hash -> (segment, offset, length, booking time) in
+// memory. This avoids creating one file per object, which is slow and wastes inodes when there are millions of objects.
+//
+// Each segment is a sequence of records, consisting of a 44 byte record header (length: uint32, hash: 32 bytes,
+// booking time: int64) followed by the object. Bookings are appended as records without object (length 0xffffffff).
+// The index is saved as a snapshot file from time to time (and when closing), and recovered by scanning the segments
+// beyond the snapshot. Objects removed during garbage collection leave holes in the segments, which are reclaimed by
+// copying the remaining objects of sparse segments to the end of the current segment (compaction).
+public final class SegmentedObjects implements ObjectStorage {
+	static final int recordHeaderLength = 44;
+	static final long bookingRecord = 0xffffffffL;
+	static final int indexVersion = 1;
+
+	// New segments are started once the current one exceeds this length
+	public static long maximumSegmentLength = 64L * 1024 * 1024;
+
+	// Segments with less live data than this fraction are compacted during garbage collection
+	public static double compactionThreshold = 0.5;
+
+	public final File folder;
+	final File indexFile;
+	final File newIndexFile;
+
+	// Readers hold the read lock, while compaction (which closes segments) holds the write lock. Writers are synchronized
+	// on this object.
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<Hash, Location> index = new ConcurrentHashMap<>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment currentSegment = null;
+	private volatile boolean opened = false;
+
+	public SegmentedObjects(File folder) {
+		this.folder = folder;
+		this.indexFile = new File(folder, "index");
+		this.newIndexFile = new File(folder, "index.new");
+	}
+
+	static final class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		long length;
+		long liveBytes = 0L;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.length = channel.size();
+		}
+	}
+
+	static final class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		volatile long booked;
+
+		Location(Segment segment, long offset, int length, long booked) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.booked = booked;
+		}
+
+		long recordLength() {
+			return recordHeaderLength + length;
+		}
+	}
+
+	// *** Opening
+
+	@Override
+	public boolean createIfNecessary() {
+		folder.mkdir();
+		return folder.isDirectory();
+	}
+
+	private void open() throws IOException {
+		if (opened) return;
+		synchronized (this) {
+			if (opened) return;
+
+			// Open all segments
+			String[] files = folder.list();
+			if (files == null) throw new FileNotFoundException(folder.getPath());
+			for (String filename : files) {
+				int id = segmentId(filename);
+				if (id < 0) continue;
+				segments.put(id, new Segment(id, new File(folder, filename)));
+			}
+
+			// Load the snapshot, and scan whatever has been appended since
+			HashMap<Integer, Long> indexedLengths = readIndex();
+			for (Segment segment : segments.values()) {
+				Long indexedLength = indexedLengths.get(segment.id);
+				scan(segment, indexedLength == null ? 0L : Math.min(indexedLength, segment.length));
+			}
+
+			for (Location location : index.values())
+				location.segment.liveBytes += location.recordLength();
+
+			if (!segments.isEmpty()) currentSegment = segments.lastEntry().getValue();
+			opened = true;
+		}
+	}
+
+	private static int segmentId(String filename) {
+		if (filename.length() != 8) return -1;
+		try {
+			return Integer.parseInt(filename, 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private HashMap<Integer, Long> readIndex() throws IOException {
+		HashMap<Integer, Long> indexedLengths = new HashMap<>();
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+		} catch (FileNotFoundException ignored) {
+			return indexedLengths;
+		}
+
+		try {
+			if (in.readInt() != indexVersion) return indexedLengths;
+
+			int segmentsCount = in.readInt();
+			for (int i = 0; i < segmentsCount; i++) {
+				int id = in.readInt();
+				long length = in.readLong();
+				if (segments.containsKey(id)) indexedLengths.put(id, length);
+			}
+
+			long entriesCount = in.readLong();
+			byte[] hashBytes = new byte[32];
+			for (long i = 0; i < entriesCount; i++) {
+				in.readFully(hashBytes);
+				int id = in.readInt();
+				long offset = in.readLong();
+				int length = in.readInt();
+				long booked = in.readLong();
+				Segment segment = segments.get(id);
+				Long indexedLength = indexedLengths.get(id);
+				if (segment == null || indexedLength == null || offset + length > indexedLength) continue;
+				index.put(Hash.from(new Bytes(hashBytes.clone())), new Location(segment, offset, length, booked));
+			}
+		} catch (EOFException e) {
+			// An incomplete snapshot is ignored, and everything is recovered by scanning the segments
+			index.clear();
+			indexedLengths.clear();
+		} finally {
+			in.close();
+		}
+
+		return indexedLengths;
+	}
+
+	// Adds all records from the given position to the index. An incomplete record at the end (e.g. after a crash) is cut off.
+	private void scan(Segment segment, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(recordHeaderLength);
+		while (position < segment.length) {
+			header.clear();
+			if (!readFully(segment.channel, header, position)) break;
+			header.flip();
+			long length = header.getInt() & 0xffffffffL;
+			Bytes hashBytes = new Bytes(32);
+			header.get(hashBytes.buffer);
+			long booked = header.getLong();
+			Hash hash = Hash.from(hashBytes);
+
+			if (length == bookingRecord) {
+				Location location = index.get(hash);
+				if (location != null) location.booked = Math.max(location.booked, booked);
+				position += recordHeaderLength;
+				continue;
+			}
+
+			if (position + recordHeaderLength + length > segment.length) break;
+			index.put(hash, new Location(segment, position + recordHeaderLength, (int) length, booked));
+			position += recordHeaderLength + length;
+		}
+
+		if (position < segment.length) {
+			Condensation.log("Cutting off an incomplete record at " + position + " in " + segment.file);
+			segment.channel.truncate(position);
+			segment.length = position;
+		}
+	}
+
+	// *** Reading
+
+	@Override
+	public CondensationObject read(Hash hash) throws IOException {
+		open();
+		lock.readLock().lock();
+		try {
+			Location location = index.get(hash);
+			if (location == null) return null;
+			Bytes bytes = Bytes.from(location.segment.channel, location.offset, location.length);
+			if (bytes == null) throw new EOFException("Segment " + location.segment.file + " is truncated.");
+			return CondensationObject.from(bytes);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Bytes readHeader(Hash hash) throws IOException {
+		open();
+		lock.readLock().lock();
+		try {
+			Location location = index.get(hash);
+			if (location == null) return null;
+			if (location.length < 4) return Bytes.empty;
+
+			Bytes count = Bytes.from(location.segment.channel, location.offset, 4);
+			if (count == null) return Bytes.empty;
+			int hashesLength = count.getInteger32(0) * 32;
+			if (hashesLength < 0 || 4 + hashesLength > location.length) return Bytes.empty;
+
+			Bytes header = Bytes.from(location.segment.channel, location.offset, 4 + hashesLength);
+			return header == null ? Bytes.empty : header;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		try {
+			open();
+		} catch (IOException e) {
+			return false;
+		}
+
+		return index.containsKey(hash);
+	}
+
+	static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) return false;
+			position += read;
+		}
+
+		return true;
+	}
+
+	// *** Writing
+
+	@Override
+	public synchronized void write(Hash hash, CondensationObject object, long booked, GroupCommit.Ticket ticket) throws IOException {
+		open();
+
+		// The record may have been appended by another ticket which has not been committed yet
+		Location existing = index.get(hash);
+		if (existing != null) {
+			if (ticket != null) ticket.force(existing.segment.channel);
+			return;
+		}
+
+		lock.readLock().lock();
+		try {
+			// The record is visible right away, but only durable once the ticket has been committed
+			Segment segmentBefore = currentSegment;
+			append(hash, object.byteLength(), booked, object.header, object.data);
+			if (ticket == null) return;
+			ticket.force(currentSegment.channel);
+			if (currentSegment != segmentBefore) ticket.syncFolder(folder);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public synchronized boolean book(Hash hash) {
+		Location location;
+		try {
+			open();
+			location = index.get(hash);
+			if (location == null) return false;
+		} catch (IOException e) {
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		lock.readLock().lock();
+		try {
+			appendRecord(bookingRecord, hash, now);
+			location.booked = now;
+			return true;
+		} catch (IOException e) {
+			Condensation.logError("Failed to book " + hash.hex() + " in " + folder, e);
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Appends an object record, and adds it to the index. Must be called while synchronized, and holding a lock.
+	private void append(Hash hash, int length, long booked, Bytes... chunks) throws IOException {
+		long position = appendRecord(length, hash, booked, chunks);
+		Location location = new Location(currentSegment, position + recordHeaderLength, length, booked);
+		currentSegment.liveBytes += location.recordLength();
+		Location previous = index.put(hash, location);
+		if (previous != null) previous.segment.liveBytes -= previous.recordLength();
+	}
+
+	// Returns the position of the record.
+	private long appendRecord(long length, Hash hash, long booked, Bytes... chunks) throws IOException {
+		if (currentSegment == null || currentSegment.length >= maximumSegmentLength) startSegment();
+
+		ByteBuffer[] buffers = new ByteBuffer[chunks.length + 1];
+		ByteBuffer header = ByteBuffer.allocate(recordHeaderLength);
+		header.putInt((int) length);
+		header.put(hash.bytes.buffer, hash.bytes.byteOffset, 32);
+		header.putLong(booked);
+		header.flip();
+		buffers[0] = header;
+		for (int i = 0; i < chunks.length; i++)
+			buffers[i + 1] = chunks[i].createByteBuffer();
+
+		// Only writers move the channel position, while readers use positional reads
+		Segment segment = currentSegment;
+		long position = segment.length;
+		segment.channel.position(position);
+		long written = 0L;
+		long total = 0L;
+		for (ByteBuffer buffer : buffers) total += buffer.remaining();
+		while (written < total) written += segment.channel.write(buffers);
+		segment.length = position + total;
+		return position;
+	}
+
+	private void startSegment() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(folder, String.format("%08x", id)));
+		segments.put(id, segment);
+		currentSegment = segment;
+	}
+
+	// *** Garbage collection
+
+	@Override
+	public boolean forEach(Visitor visitor) {
+		try {
+			open();
+		} catch (IOException e) {
+			Condensation.logError("Failed to open " + folder, e);
+			return false;
+		}
+
+		for (Map.Entry<Hash, Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			if (!visitor.onObject(entry.getKey(), location.booked, location.length)) return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean forEach(int shard, Visitor visitor) {
+		try {
+			open();
+		} catch (IOException e) {
+			Condensation.logError("Failed to open " + folder, e);
+			return false;
+		}
+
+		for (Map.Entry<Hash, Location> entry : index.entrySet()) {
+			if ((entry.getKey().bytes.getInteger8(0) & 0xff) != shard) continue;
+			Location location = entry.getValue();
+			if (!visitor.onObject(entry.getKey(), location.booked, location.length)) return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public synchronized boolean delete(Collection<Hash> hashes) {
+		try {
+			open();
+		} catch (IOException e) {
+			return false;
+		}
+
+		for (Hash hash : hashes) {
+			Location location = index.remove(hash);
+			if (location != null) location.segment.liveBytes -= location.recordLength();
+		}
+
+		try {
+			compact();
+			writeIndex();
+			return true;
+		} catch (IOException e) {
+			Condensation.logError("Failed to compact " + folder, e);
+			return false;
+		}
+	}
+
+	// Copies the objects of sparse segments to the current segment, and removes the sparse segments.
+	private void compact() throws IOException {
+		ArrayList<Segment> sparseSegments = new ArrayList<>();
+		for (Segment segment : segments.values())
+			if (segment != currentSegment && segment.liveBytes < segment.length * compactionThreshold) sparseSegments.add(segment);
+		if (sparseSegments.isEmpty()) return;
+
+		lock.writeLock().lock();
+		try {
+			// The copies may fill several segments
+			LinkedHashSet<Segment> writtenSegments = new LinkedHashSet<>();
+			for (Map.Entry<Hash, Location> entry : index.entrySet()) {
+				Location location = entry.getValue();
+				if (!sparseSegments.contains(location.segment)) continue;
+
+				Bytes bytes = Bytes.from(location.segment.channel, location.offset, location.length);
+				if (bytes == null) throw new EOFException("Segment " + location.segment.file + " is truncated.");
+				append(entry.getKey(), location.length, location.booked, bytes);
+				writtenSegments.add(currentSegment);
+			}
+
+			// The copies (including the folder entries of new segments) must be durable, and the snapshot must not refer to
+			// the sparse segments any more before they are removed
+			for (Segment segment : writtenSegments)
+				segment.channel.force(false);
+			GroupCommit.forceFolder(folder);
+			writeIndex();
+			for (Segment segment : sparseSegments) {
+				segments.remove(segment.id);
+				segment.channel.close();
+				segment.file.delete();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// *** Index snapshot
+
+	// Writes a snapshot of the index, so that the segments do not need to be scanned upon the next start.
+	public synchronized void writeIndex() throws IOException {
+		if (!opened) return;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newIndexFile), 65536));
+		try {
+			out.writeInt(indexVersion);
+			out.writeInt(segments.size());
+			for (Segment segment : segments.values()) {
+				out.writeInt(segment.id);
+				out.writeLong(segment.length);
+			}
+
+			// Entries written concurrently are not part of the snapshot, but will be found when scanning the segments
+			ArrayList<Map.Entry<Hash, Location>> entries = new ArrayList<>(index.entrySet());
+			out.writeLong(entries.size());
+			for (Map.Entry<Hash, Location> entry : entries) {
+				Bytes hashBytes = entry.getKey().bytes;
+				Location location = entry.getValue();
+				out.write(hashBytes.buffer, hashBytes.byteOffset, 32);
+				out.writeInt(location.segment.id);
+				out.writeLong(location.offset);
+				out.writeInt(location.length);
+				out.writeLong(location.booked);
+			}
+		} finally {
+			out.close();
+		}
+
+		GroupCommit.forceFile(newIndexFile);
+		if (!newIndexFile.renameTo(indexFile)) throw new IOException("Unable to replace " + indexFile);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!opened) return;
+
+		lock.writeLock().lock();
+		try {
+			writeIndex();
+		} catch (IOException e) {
+			Condensation.logError("Failed to write the index of " + folder, e);
+		}
+
+		try {
+			for (Segment segment : segments.values()) {
+				segment.channel.force(false);
+				segment.channel.close();
+			}
+		} catch (IOException ignored) {
+		}
+
+		segments.clear();
+		index.clear();
+		currentSegment = null;
+		opened = false;
+		lock.writeLock().unlock();
+	}
+}
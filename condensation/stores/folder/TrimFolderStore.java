@@ -0,0 +1,106 @@
+package condensation.stores.folder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+
+import condensation.Condensation;
+import condensation.serialization.Hash;
+import condensation.tasks.BackgroundTask;
+
+// Evicts objects from a FolderStore used as a cache tier: first those which have not been booked (written or accessed)
+// within maximumAge, and then the least recently booked ones until the objects fit into byteBudget. Box entries are not
+// considered, so this must only be used on stores which hold copies of objects stored elsewhere.
+public final class TrimFolderStore implements BackgroundTask {
+	final FolderStore folderStore;
+	final long maximumAge;
+	final long byteBudget;
+	final Set<Hash> keep;
+	final Done done;
+
+	// State
+	long keptBytes = 0L;
+	int evictedObjects = 0;
+	long evictedBytes = 0L;
+	boolean success = false;
+
+	// maximumAge and byteBudget may be Long.MAX_VALUE to disable that criterion. Objects in keep are never evicted.
+	public TrimFolderStore(FolderStore folderStore, long maximumAge, long byteBudget, Set<Hash> keep, Done done) {
+		this.folderStore = folderStore;
+		this.maximumAge = maximumAge;
+		this.byteBudget = byteBudget;
+		this.keep = keep;
+		this.done = done;
+		Condensation.assertMainThread();
+		Condensation.fileSystemExecutor.run(this);
+	}
+
+	static class Entry {
+		final Hash hash;
+		final long booked;
+		final long byteLength;
+
+		Entry(Hash hash, long booked, long byteLength) {
+			this.hash = hash;
+			this.booked = booked;
+			this.byteLength = byteLength;
+		}
+	}
+
+	@Override
+	public void background() {
+		final long oldest = maximumAge == Long.MAX_VALUE ? Long.MIN_VALUE : System.currentTimeMillis() - maximumAge;
+		final ArrayList<Hash> toEvict = new ArrayList<>();
+		final ArrayList<Entry> candidates = new ArrayList<>();
+		folderStore.objects.forEach(new ObjectStorage.Visitor() {
+			@Override
+			public boolean onObject(Hash hash, long booked, long byteLength) {
+				if (keep.contains(hash)) {
+					keptBytes += byteLength;
+				} else if (booked < oldest) {
+					toEvict.add(hash);
+					evictedBytes += byteLength;
+				} else {
+					candidates.add(new Entry(hash, booked, byteLength));
+					keptBytes += byteLength;
+				}
+				return true;
+			}
+
+			@Override
+			public void onInvalidFile(File file) {
+			}
+		});
+
+		// Evict the least recently booked objects until we are within the budget
+		if (keptBytes > byteBudget) {
+			Collections.sort(candidates, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry a, Entry b) {
+					return Long.compare(a.booked, b.booked);
+				}
+			});
+
+			for (Entry entry : candidates) {
+				if (keptBytes <= byteBudget) break;
+				toEvict.add(entry.hash);
+				keptBytes -= entry.byteLength;
+				evictedBytes += entry.byteLength;
+			}
+		}
+
+		evictedObjects = toEvict.size();
+		success = folderStore.objects.delete(toEvict);
+	}
+
+	@Override
+	public void after() {
+		done.onTrimFolderStoreDone(success, evictedObjects, evictedBytes, keptBytes);
+	}
+
+	public interface Done {
+		void onTrimFolderStoreDone(boolean success, int evictedObjects, long evictedBytes, long keptBytes);
+	}
+}
@@ -1,52 +1,60 @@
 package condensation.stores.http;
 
-import java.io.OutputStream;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
-import condensation.Condensation;
 import condensation.ImmutableList;
 import condensation.actors.KeyPair;
 import condensation.serialization.Bytes;
 import condensation.serialization.CondensationObject;
 import condensation.serialization.Hash;
+import condensation.serialization.ObjectPack;
 import condensation.serialization.Record;
 import condensation.stores.BC;
 import condensation.stores.BoxAddition;
 import condensation.stores.BoxLabel;
 import condensation.stores.BoxRemoval;
 import condensation.stores.Store;
+import condensation.tasks.AwaitCounter;
 
 public class HTTPStore extends Store {
 	public static HTTPStore forUrl(@NonNull String url) {
-		if (url.startsWith("http://") || url.startsWith("https://")) return new HTTPStore(url);
+		return forUrl(url, HTTPStoreManager.defaultTransport);
+	}
+
+	public static HTTPStore forUrl(@NonNull String url, @NonNull Transport transport) {
+		if (url.startsWith("http://") || url.startsWith("https://")) return new HTTPStore(url, transport);
 		return null;
 	}
 
+	public final Transport transport;
+
 	public HTTPStore(String url) {
+		this(url, HTTPStoreManager.defaultTransport);
+	}
+
+	public HTTPStore(String url, Transport transport) {
 		super(url);
+		this.transport = transport;
 	}
 
 	@Override
 	public void get(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull GetDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new Get(storeState.getQueue, hash, done);
+		new Get(transport, storeState.getQueue, hash, done);
 	}
 
 	class Get extends Request {
 		final Hash hash;
 		final GetDone done;
 		CondensationObject object;
-		String error = null;
 
-		Get(RequestQueue queue, Hash hash, GetDone done) {
-			super(queue, "GET", hash.shortHex());
+		Get(Transport transport, RequestQueue queue, Hash hash, GetDone done) {
+			super(transport, queue, "GET", hash.shortHex());
 			this.hash = hash;
 			this.done = done;
 			ready();
@@ -63,29 +71,20 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(id + "/objects/" + hash.hex());
-				connection.setRequestMethod("GET");
-				connection.setDoInput(true);
-
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode != 200 && responseCode != 204) {
-					if (responseCode != 404) error = "The server replied with a " + responseCode + " HTTP response code.";
-					return;
-				}
+		protected void prepare() {
+			method = "GET";
+			url = id + "/objects/" + hash.hex();
+		}
 
-				// Read the returned object
-				Bytes bytes = readStream(connection.getInputStream());
-				object = CondensationObject.from(bytes);
-			} catch (UnknownHostException | ConnectException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in GET " + id + " " + hash.shortHex(), e);
-				error = e.toString();
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode != 200 && responseCode != 204) {
+				if (responseCode != 404) error = unexpectedResponse(responseCode);
+				return;
 			}
+
+			// Read the returned object
+			object = CondensationObject.from(content);
 		}
 
 		@Override
@@ -104,7 +103,7 @@ public class HTTPStore extends Store {
 		// Schedule small objects and large objects on different threads
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
 		RequestQueue queue = object.byteLength() < 50000 ? storeState.putSmallQueue : storeState.putLargeQueue;
-		new Put(queue, hash, object, keyPair, done);
+		new Put(transport, queue, hash, object, keyPair, done);
 	}
 
 	class Put extends Request {
@@ -112,10 +111,9 @@ public class HTTPStore extends Store {
 		final CondensationObject object;
 		final KeyPair keyPair;
 		final PutDone done;
-		String error = null;
 
-		Put(RequestQueue queue, Hash hash, CondensationObject object, KeyPair keyPair, PutDone done) {
-			super(queue, "PUT", hash.shortHex() + " " + object.byteLength() + " bytes");
+		Put(Transport transport, RequestQueue queue, Hash hash, CondensationObject object, KeyPair keyPair, PutDone done) {
+			super(transport, queue, "PUT", hash.shortHex() + " " + object.byteLength() + " bytes");
 			this.hash = hash;
 			this.object = object;
 			this.keyPair = keyPair;
@@ -140,30 +138,16 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(id + "/objects/" + hash.hex());
-				connection.setRequestProperty("Content-Type", "application/condensation-object");
-				connection.setRequestMethod("PUT");
-				connection.setDoOutput(true);
-				// TODO: add signature
-
-				// Send the data
-				OutputStream out = connection.getOutputStream();
-				out.write(object.header.buffer, object.header.byteOffset, object.header.byteLength);
-				out.write(object.data.buffer, object.data.byteOffset, object.data.byteLength);
-				out.close();
+		protected void prepare() {
+			method = "PUT";
+			url = id + "/objects/" + hash.hex();
+			setContent("application/condensation-object", object.header, object.data);
+			// TODO: add signature
+		}
 
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode != 200 && responseCode != 204) error = "The server replied with a " + responseCode + " HTTP response code.";
-			} catch (UnknownHostException | ConnectException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in PUT " + id + " " + hash.shortHex(), e);
-				error = e.toString();
-			}
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
 		}
 
 		@Override
@@ -178,7 +162,7 @@ public class HTTPStore extends Store {
 	@Override
 	public void book(@NonNull Hash hash, @NonNull KeyPair keyPair, @NonNull BookDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new Book(storeState.putSmallQueue, hash, keyPair, done);
+		new Book(transport, storeState.putSmallQueue, hash, keyPair, done);
 	}
 
 	class Book extends Request {
@@ -186,10 +170,9 @@ public class HTTPStore extends Store {
 		final KeyPair keyPair;
 		final BookDone done;
 		boolean booked = false;
-		String error = null;
 
-		Book(RequestQueue queue, Hash hash, KeyPair keyPair, BookDone done) {
-			super(queue, "BOOK", hash.shortHex());
+		Book(Transport transport, RequestQueue queue, Hash hash, KeyPair keyPair, BookDone done) {
+			super(transport, queue, "BOOK", hash.shortHex());
 			this.hash = hash;
 			this.keyPair = keyPair;
 			this.done = done;
@@ -213,24 +196,17 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(id + "/objects/" + hash.hex());
-				connection.setRequestMethod("POST");
-				// TODO: add signature
+		protected void prepare() {
+			method = "POST";
+			url = id + "/objects/" + hash.hex();
+			// TODO: add signature
+		}
 
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode == 200 || responseCode == 204) booked = true;
-				else if (responseCode == 404) booked = false;
-				else error = "The server replied with a " + responseCode + " HTTP response code.";
-			} catch (UnknownHostException | ConnectException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in BOOK " + id + " " + hash.shortHex(), e);
-				error = e.toString();
-			}
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode == 200 || responseCode == 204) booked = true;
+			else if (responseCode == 404) booked = false;
+			else error = unexpectedResponse(responseCode);
 		}
 
 		@Override
@@ -243,15 +219,546 @@ public class HTTPStore extends Store {
 		}
 	}
 
+	// *** Batch requests
+	// A batch is sent as a few multi-object requests (POST /objects/get, /objects/put, /objects/book). If the server does not support
+	// them, the store falls back to single-object requests.
+
+	@Override
+	public void getMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull GetManyDone done) {
+		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
+		if (!storeState.supportsBatchRequests()) super.getMany(hashes, keyPair, done);
+		else new GetMany(storeState, hashes, keyPair, done);
+	}
+
+	class GetMany implements AwaitCounter.Done {
+		final KeyPair keyPair;
+		final GetManyDone done;
+		final AwaitCounter awaitCounter = new AwaitCounter();
+		final HashMap<Hash, CondensationObject> objects = new HashMap<>();
+		String error = null;
+
+		GetMany(HTTPStoreState storeState, Collection<Hash> hashes, KeyPair keyPair, GetManyDone done) {
+			this.keyPair = keyPair;
+			this.done = done;
+
+			ArrayList<Hash> batch = new ArrayList<>();
+			for (Hash hash : hashes) {
+				batch.add(hash);
+				if (batch.size() < HTTPStoreManager.maximumBatchSize) continue;
+				new GetBatch(transport, storeState.getQueue, batch);
+				batch = new ArrayList<>();
+			}
+
+			if (!batch.isEmpty()) new GetBatch(transport, storeState.getQueue, batch);
+			awaitCounter.then(this);
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onGetManyStoreError(error);
+			else done.onGetManyDone(objects);
+		}
+
+		class GetBatch extends Request implements GetManyDone {
+			final ArrayList<Hash> hashes;
+			HashMap<Hash, CondensationObject> receivedObjects;
+			boolean unsupported = false;
+
+			GetBatch(Transport transport, RequestQueue queue, ArrayList<Hash> hashes) {
+				super(transport, queue, "GET", hashes.size() + " objects");
+				this.hashes = hashes;
+				awaitCounter.await();
+				ready();
+			}
+
+			@Override
+			protected void storeDisabled() {
+				onGetManyStoreError("Store disabled.");
+			}
+
+			@Override
+			protected boolean before() {
+				return true;
+			}
+
+			@Override
+			protected void prepare() {
+				method = "POST";
+				url = id + "/objects/get";
+				setContent("application/condensation-hashes", hashesToBytes(hashes));
+			}
+
+			@Override
+			protected void received(int responseCode, Bytes content) {
+				if (responseCode == 200 || responseCode == 204) receivedObjects = objectsFromBytes(content);
+				else if (isUnsupported(responseCode)) unsupported = true;
+				else error = unexpectedResponse(responseCode);
+			}
+
+			@Override
+			protected void after() {
+				if (unsupported) {
+					queue.storeState.setBatchRequestsUnsupported();
+					HTTPStore.super.getMany(hashes, keyPair, this);
+					return;
+				}
+
+				queue.storeState.updateReachability(error);
+				if (error != null) onGetManyStoreError(error);
+				else onGetManyDone(receivedObjects);
+			}
+
+			@Override
+			public void onGetManyDone(@NonNull HashMap<Hash, CondensationObject> objects) {
+				GetMany.this.objects.putAll(objects);
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onGetManyStoreError(@NonNull String error) {
+				GetMany.this.error = error;
+				awaitCounter.done();
+			}
+		}
+	}
+
+	@Override
+	public void putMany(@NonNull Map<Hash, CondensationObject> objects, @NonNull KeyPair keyPair, @NonNull PutManyDone done) {
+		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
+		if (!storeState.supportsBatchRequests()) super.putMany(objects, keyPair, done);
+		else new PutMany(storeState, objects, keyPair, done);
+	}
+
+	class PutMany implements AwaitCounter.Done {
+		final HTTPStoreState storeState;
+		final KeyPair keyPair;
+		final PutManyDone done;
+		final AwaitCounter awaitCounter = new AwaitCounter();
+		String error = null;
+
+		PutMany(HTTPStoreState storeState, Map<Hash, CondensationObject> objects, KeyPair keyPair, PutManyDone done) {
+			this.storeState = storeState;
+			this.keyPair = keyPair;
+			this.done = done;
+
+			// Objects booked recently do not need to be sent again
+			HashMap<Hash, CondensationObject> batch = new HashMap<>();
+			int batchBytes = 0;
+			for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+				if (storeState.isBooked(entry.getKey())) continue;
+				batch.put(entry.getKey(), entry.getValue());
+				batchBytes += entry.getValue().byteLength();
+				if (batch.size() < HTTPStoreManager.maximumBatchSize && batchBytes < HTTPStoreManager.maximumBatchBytes) continue;
+				addBatch(batch, batchBytes);
+				batch = new HashMap<>();
+				batchBytes = 0;
+			}
+
+			if (!batch.isEmpty()) addBatch(batch, batchBytes);
+			awaitCounter.then(this);
+		}
+
+		void addBatch(HashMap<Hash, CondensationObject> batch, int batchBytes) {
+			RequestQueue queue = batchBytes < 50000 ? storeState.putSmallQueue : storeState.putLargeQueue;
+			new PutBatch(transport, queue, batch, batchBytes);
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onPutManyStoreError(error);
+			else done.onPutManyDone();
+		}
+
+		class PutBatch extends Request implements PutManyDone {
+			final HashMap<Hash, CondensationObject> objects;
+			boolean unsupported = false;
+
+			PutBatch(Transport transport, RequestQueue queue, HashMap<Hash, CondensationObject> objects, int byteLength) {
+				super(transport, queue, "PUT", objects.size() + " objects, " + byteLength + " bytes");
+				this.objects = objects;
+				awaitCounter.await();
+				ready();
+			}
+
+			@Override
+			protected void storeDisabled() {
+				onPutManyStoreError("Store disabled.");
+			}
+
+			@Override
+			protected boolean before() {
+				return true;
+			}
+
+			@Override
+			protected void prepare() {
+				method = "POST";
+				url = id + "/objects/put";
+				Bytes[] chunks = objectsToBytes(objects);
+				setContent("application/condensation-objects", chunks);
+				addSignature(keyPair, "POST", url, chunks);
+			}
+
+			@Override
+			protected void received(int responseCode, Bytes content) {
+				if (isUnsupported(responseCode)) unsupported = true;
+				else if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
+			}
+
+			@Override
+			protected void after() {
+				if (unsupported) {
+					queue.storeState.setBatchRequestsUnsupported();
+					HTTPStore.super.putMany(objects, keyPair, this);
+					return;
+				}
+
+				queue.storeState.updateReachability(error);
+				if (error != null) {
+					onPutManyStoreError(error);
+					return;
+				}
+
+				for (Hash hash : objects.keySet()) queue.storeState.setBooked(hash);
+				onPutManyDone();
+			}
+
+			@Override
+			public void onPutManyDone() {
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onPutManyStoreError(@NonNull String error) {
+				PutMany.this.error = error;
+				awaitCounter.done();
+			}
+		}
+	}
+
+	@Override
+	public void bookMany(@NonNull Collection<Hash> hashes, @NonNull KeyPair keyPair, @NonNull BookManyDone done) {
+		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
+		if (!storeState.supportsBatchRequests()) super.bookMany(hashes, keyPair, done);
+		else new BookMany(storeState, hashes, keyPair, done);
+	}
+
+	// The server books the objects it has, and returns the (concatenated) hashes of those it does not have.
+	class BookMany implements AwaitCounter.Done {
+		final KeyPair keyPair;
+		final BookManyDone done;
+		final AwaitCounter awaitCounter = new AwaitCounter();
+		final ArrayList<Hash> notFound = new ArrayList<>();
+		String error = null;
+
+		BookMany(HTTPStoreState storeState, Collection<Hash> hashes, KeyPair keyPair, BookManyDone done) {
+			this.keyPair = keyPair;
+			this.done = done;
+
+			// Objects booked recently do not need to be booked again
+			ArrayList<Hash> batch = new ArrayList<>();
+			for (Hash hash : hashes) {
+				if (storeState.isBooked(hash)) continue;
+				batch.add(hash);
+				if (batch.size() < HTTPStoreManager.maximumBookBatchSize) continue;
+				new BookBatch(transport, storeState.putSmallQueue, batch);
+				batch = new ArrayList<>();
+			}
+
+			if (!batch.isEmpty()) new BookBatch(transport, storeState.putSmallQueue, batch);
+			awaitCounter.then(this);
+		}
+
+		@Override
+		public void onAwaitCounterDone() {
+			if (error != null) done.onBookManyStoreError(error);
+			else done.onBookManyDone(notFound);
+		}
+
+		class BookBatch extends Request implements BookManyDone {
+			final ArrayList<Hash> hashes;
+			final HashSet<Hash> missing = new HashSet<>();
+			boolean unsupported = false;
+
+			BookBatch(Transport transport, RequestQueue queue, ArrayList<Hash> hashes) {
+				super(transport, queue, "BOOK", hashes.size() + " objects");
+				this.hashes = hashes;
+				awaitCounter.await();
+				ready();
+			}
+
+			@Override
+			protected void storeDisabled() {
+				onBookManyStoreError("Store disabled.");
+			}
+
+			@Override
+			protected boolean before() {
+				return true;
+			}
+
+			@Override
+			protected void prepare() {
+				method = "POST";
+				url = id + "/objects/book";
+				Bytes bytes = hashesToBytes(hashes);
+				setContent("application/condensation-hashes", bytes);
+				addSignature(keyPair, "POST", url, bytes);
+			}
+
+			@Override
+			protected void received(int responseCode, Bytes content) {
+				if (isUnsupported(responseCode)) {
+					unsupported = true;
+					return;
+				}
+
+				if (responseCode != 200 && responseCode != 204) {
+					error = unexpectedResponse(responseCode);
+					return;
+				}
+
+				if (content == null) return;
+				for (int i = 0; i < content.byteLength - 31; i += 32)
+					missing.add(Hash.from(content.slice(i, 32)));
+			}
+
+			@Override
+			protected void after() {
+				if (unsupported) {
+					queue.storeState.setBatchRequestsUnsupported();
+					HTTPStore.super.bookMany(hashes, keyPair, this);
+					return;
+				}
+
+				queue.storeState.updateReachability(error);
+				if (error != null) {
+					onBookManyStoreError(error);
+					return;
+				}
+
+				ArrayList<Hash> notFound = new ArrayList<>();
+				for (Hash hash : hashes) {
+					if (missing.contains(hash)) notFound.add(hash);
+					else queue.storeState.setBooked(hash);
+				}
+
+				onBookManyDone(notFound);
+			}
+
+			@Override
+			public void onBookManyDone(@NonNull ArrayList<Hash> notFound) {
+				BookMany.this.notFound.addAll(notFound);
+				awaitCounter.done();
+			}
+
+			@Override
+			public void onBookManyStoreError(@NonNull String error) {
+				BookMany.this.error = error;
+				awaitCounter.done();
+			}
+		}
+	}
+
+	// *** Packs
+	// Packs are sent with POST /packs, and trees retrieved with GET /packs/ROOT-HASH.
+
+	@Override
+	public void putPack(@NonNull ObjectPack pack, @NonNull KeyPair keyPair, @NonNull PutPackDone done) {
+		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
+		if (!storeState.supportsPackRequests()) {
+			super.putPack(pack, keyPair, done);
+			return;
+		}
+
+		long byteLength = pack.byteLength();
+		RequestQueue queue = byteLength < 50000 ? storeState.putSmallQueue : storeState.putLargeQueue;
+		new PutPack(transport, queue, pack, byteLength, keyPair, done);
+	}
+
+	class PutPack extends Request {
+		final ObjectPack pack;
+		final KeyPair keyPair;
+		final PutPackDone done;
+		boolean unsupported = false;
+
+		PutPack(Transport transport, RequestQueue queue, ObjectPack pack, long byteLength, KeyPair keyPair, PutPackDone done) {
+			super(transport, queue, "PUT", pack.count() + " objects, " + byteLength + " bytes");
+			this.pack = pack;
+			this.keyPair = keyPair;
+			this.done = done;
+			ready();
+		}
+
+		@Override
+		protected void storeDisabled() {
+			done.onPutPackStoreError("Store disabled.");
+		}
+
+		@Override
+		protected boolean before() {
+			return true;
+		}
+
+		@Override
+		protected void prepare() {
+			// The objects are streamed as they are, without copying them into a single buffer
+			method = "POST";
+			url = id + "/packs";
+			Bytes[] chunks = pack.toChunks();
+			setContent("application/condensation-pack", chunks);
+			addSignature(keyPair, "POST", url, chunks);
+		}
+
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (isUnsupported(responseCode)) unsupported = true;
+			else if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
+		}
+
+		@Override
+		protected void after() {
+			if (unsupported) {
+				queue.storeState.setPackRequestsUnsupported();
+				HTTPStore.super.putPack(pack, keyPair, done);
+				return;
+			}
+
+			queue.storeState.updateReachability(error);
+			if (error != null) {
+				done.onPutPackStoreError(error);
+				return;
+			}
+
+			for (Hash hash : pack.hashes) queue.storeState.setBooked(hash);
+			done.onPutPackDone();
+		}
+	}
+
+	@Override
+	public void getPack(@NonNull Hash root, @NonNull KeyPair keyPair, @NonNull GetPackDone done) {
+		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
+		if (!storeState.supportsPackRequests()) super.getPack(root, keyPair, done);
+		else new GetPack(transport, storeState.getQueue, root, keyPair, done);
+	}
+
+	class GetPack extends Request {
+		final Hash root;
+		final KeyPair keyPair;
+		final GetPackDone done;
+		ObjectPack pack;
+		boolean unsupported = false;
+		boolean notFound = false;
+
+		GetPack(Transport transport, RequestQueue queue, Hash root, KeyPair keyPair, GetPackDone done) {
+			super(transport, queue, "GET", "pack " + root.shortHex());
+			this.root = root;
+			this.keyPair = keyPair;
+			this.done = done;
+			ready();
+		}
+
+		@Override
+		protected void storeDisabled() {
+			done.onGetPackStoreError("Store disabled.");
+		}
+
+		@Override
+		protected boolean before() {
+			return true;
+		}
+
+		@Override
+		protected void prepare() {
+			method = "GET";
+			url = id + "/packs/" + root.hex();
+		}
+
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode == 404) notFound = true;
+			else if (isUnsupported(responseCode)) unsupported = true;
+			else if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
+			else if ((pack = ObjectPack.from(content)) == null) error = "Invalid pack.";
+		}
+
+		@Override
+		protected void after() {
+			if (unsupported) queue.storeState.setPackRequestsUnsupported();
+
+			// A server without pack support replies with 404 as well. We therefore let getMany find out if the root is missing.
+			if (unsupported || notFound) {
+				HTTPStore.super.getPack(root, keyPair, done);
+				return;
+			}
+
+			queue.storeState.updateReachability(error);
+			if (error != null) done.onGetPackStoreError(error);
+			else done.onGetPackDone(pack);
+		}
+	}
+
+	// Servers without batch or pack support reply with one of these
+	static boolean isUnsupported(int responseCode) {
+		return responseCode == 404 || responseCode == 405 || responseCode == 501;
+	}
+
+	// Concatenated 32-byte hashes
+	static Bytes hashesToBytes(Collection<Hash> hashes) {
+		Bytes bytes = new Bytes(hashes.size() * 32);
+		int offset = 0;
+		for (Hash hash : hashes) {
+			bytes.set(offset, hash.bytes);
+			offset += 32;
+		}
+
+		return bytes;
+	}
+
+	// A sequence of objects, each one preceded by its hash (32 bytes) and its length (uint32)
+	static Bytes[] objectsToBytes(Map<Hash, CondensationObject> objects) {
+		Bytes[] chunks = new Bytes[objects.size() * 3];
+		int i = 0;
+		for (Map.Entry<Hash, CondensationObject> entry : objects.entrySet()) {
+			CondensationObject object = entry.getValue();
+			Bytes prefix = new Bytes(36);
+			prefix.set(0, entry.getKey().bytes);
+			prefix.setUnsigned32(32, object.byteLength());
+			chunks[i++] = prefix;
+			chunks[i++] = object.header;
+			chunks[i++] = object.data;
+		}
+
+		return chunks;
+	}
+
+	static HashMap<Hash, CondensationObject> objectsFromBytes(Bytes bytes) {
+		HashMap<Hash, CondensationObject> objects = new HashMap<>();
+		if (bytes == null) return objects;
+
+		int offset = 0;
+		while (offset + 36 <= bytes.byteLength) {
+			Hash hash = Hash.from(bytes.slice(offset, 32));
+			long length = bytes.getUnsigned32(offset + 32);
+			offset += 36;
+			if (length > bytes.byteLength - offset) break;
+			CondensationObject object = CondensationObject.from(bytes.slice(offset, (int) length));
+			offset += (int) length;
+			if (object != null) objects.put(hash, object);
+		}
+
+		return objects;
+	}
+
 	@Override
 	public void list(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long timeout, @NonNull KeyPair keyPair, @NonNull ListDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new List(storeState.getQueue, accountHash, boxLabel, 0, keyPair, done);
+		new List(transport, storeState.getQueue, accountHash, boxLabel, 0, keyPair, done);
 	}
 
 	public void watch(@NonNull Hash accountHash, @NonNull BoxLabel boxLabel, long watch, @NonNull KeyPair keyPair, @NonNull ListDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new List(storeState.getQueue, accountHash, boxLabel, watch, keyPair, done);
+		new List(transport, storeState.getQueue, accountHash, boxLabel, watch, keyPair, done);
 	}
 
 	class List extends Request {
@@ -261,10 +768,9 @@ public class HTTPStore extends Store {
 		final KeyPair keyPair;
 		final ListDone done;
 		ArrayList<Hash> hashes = new ArrayList<>();
-		String error = null;
 
-		List(RequestQueue queue, Hash accountHash, BoxLabel boxLabel, long watch, KeyPair keyPair, ListDone done) {
-			super(queue, "LIST", accountHash.shortHex() + "/" + boxLabel.asText);
+		List(Transport transport, RequestQueue queue, Hash accountHash, BoxLabel boxLabel, long watch, KeyPair keyPair, ListDone done) {
+			super(transport, queue, "LIST", accountHash.shortHex() + "/" + boxLabel.asText);
 			this.accountHash = accountHash;
 			this.boxLabel = boxLabel;
 			this.watch = watch;
@@ -284,31 +790,25 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(id + "/accounts/" + accountHash.hex() + "/" + boxLabel.asText);
-				connection.setRequestMethod("GET");
-				if (watch > 0) connection.setRequestProperty("Condensation-Watch", watch + " ms");
-				connection.setDoInput(true);
-
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode != 200 && responseCode != 204) {
-					error = "The server replied with a " + responseCode + " HTTP response code.";
-					return;
-				}
+		protected void prepare() {
+			method = "GET";
+			url = id + "/accounts/" + accountHash.hex() + "/" + boxLabel.asText;
+			if (watch > 0) {
+				headers.put("Condensation-Watch", watch + " ms");
+				timeout = HTTPStoreManager.readTimeout + watch;
+			}
+		}
 
-				// Read the hashes
-				Bytes bytes = readStream(connection.getInputStream());
-				for (int i = 0; i < bytes.byteLength - 31; i += 32)
-					hashes.add(Hash.from(bytes.slice(i, 32)));
-			} catch (UnknownHostException | ConnectException | SocketTimeoutException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in LIST " + id + " " + accountHash.shortHex() + " " + boxLabel.asText, e);
-				error = e.toString();
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode != 200 && responseCode != 204) {
+				error = unexpectedResponse(responseCode);
+				return;
 			}
+
+			// Read the hashes
+			for (int i = 0; i < content.byteLength - 31; i += 32)
+				hashes.add(Hash.from(content.slice(i, 32)));
 		}
 
 		@Override
@@ -322,7 +822,7 @@ public class HTTPStore extends Store {
 	@Override
 	public void modify(@NonNull Collection<BoxAddition> additions, @NonNull Collection<BoxRemoval> removals, @NonNull KeyPair keyPair, @NonNull ModifyDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new Modify(storeState.putSmallQueue, additions, removals, keyPair, done);
+		new Modify(transport, storeState.putSmallQueue, additions, removals, keyPair, done);
 	}
 
 	class Modify extends Request {
@@ -330,10 +830,9 @@ public class HTTPStore extends Store {
 		final ImmutableList<BoxRemoval> removals;
 		final KeyPair keyPair;
 		final ModifyDone done;
-		String error = null;
 
-		Modify(RequestQueue queue, Collection<BoxAddition> additions, Collection<BoxRemoval> removals, KeyPair keyPair, ModifyDone done) {
-			super(queue, "MODIFY", additions.size() + "+ | " + removals.size() + "-");
+		Modify(Transport transport, RequestQueue queue, Collection<BoxAddition> additions, Collection<BoxRemoval> removals, KeyPair keyPair, ModifyDone done) {
+			super(transport, queue, "MODIFY", additions.size() + "+ | " + removals.size() + "-");
 			this.additions = ImmutableList.sorted(additions);
 			this.removals = ImmutableList.sorted(removals);
 			this.keyPair = keyPair;
@@ -352,32 +851,12 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			String url = id + "/accounts";
+		protected void prepare() {
+			method = "POST";
+			url = id + "/accounts";
 			Bytes bytes = recordFromBoxOperations(additions, removals).toObject().toBytes();
-
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(url);
-				connection.setRequestProperty("Content-Type", "application/condensation-box-modification");
-				connection.setRequestMethod("POST");
-				connection.setDoOutput(true);
-				if (needSignature()) addSignature(connection, keyPair, "POST", url, bytes);
-
-				// Send the message
-				OutputStream out = connection.getOutputStream();
-				out.write(bytes.buffer, bytes.byteOffset, bytes.byteLength);
-				out.close();
-
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode != 200 && responseCode != 204) error = "The server replied with a " + responseCode + " HTTP response code.";
-			} catch (UnknownHostException | ConnectException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in MODIFY " + id, e);
-				error = e.toString();
-			}
+			setContent("application/condensation-box-modification", bytes);
+			if (needSignature()) addSignature(keyPair, "POST", url, bytes);
 		}
 
 		boolean needSignature() {
@@ -392,6 +871,11 @@ public class HTTPStore extends Store {
 			return false;
 		}
 
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
+		}
+
 		@Override
 		protected void after() {
 			queue.storeState.updateReachability(error);
@@ -449,17 +933,16 @@ public class HTTPStore extends Store {
 	// This is a non-standard extension to delete accounts.
 	public void delete(Hash accountHash, KeyPair keyPair, DeleteDone done) {
 		HTTPStoreState storeState = HTTPStoreManager.getOrCreate(id);
-		new Delete(storeState.putSmallQueue, accountHash, keyPair, done);
+		new Delete(transport, storeState.putSmallQueue, accountHash, keyPair, done);
 	}
 
 	public class Delete extends Request {
 		final Hash accountHash;
 		final KeyPair keyPair;
 		final DeleteDone done;
-		String error = null;
 
-		public Delete(RequestQueue queue, Hash accountHash, KeyPair keyPair, DeleteDone done) {
-			super(queue, "DELETE", accountHash.shortHex());
+		public Delete(Transport transport, RequestQueue queue, Hash accountHash, KeyPair keyPair, DeleteDone done) {
+			super(transport, queue, "DELETE", accountHash.shortHex());
 			this.accountHash = accountHash;
 			this.keyPair = keyPair;
 			this.done = done;
@@ -477,22 +960,15 @@ public class HTTPStore extends Store {
 		}
 
 		@Override
-		protected void background() {
-			try {
-				// Prepare the request
-				HttpURLConnection connection = openConnection(id + "/accounts/" + accountHash.hex());
-				connection.setRequestMethod("DELETE");
-				// TODO: add signature
+		protected void prepare() {
+			method = "DELETE";
+			url = id + "/accounts/" + accountHash.hex();
+			// TODO: add signature
+		}
 
-				// Check the response code
-				responseCode = connection.getResponseCode();
-				if (responseCode != 200 && responseCode != 204) error = "The server replied with a " + responseCode + " HTTP response code.";
-			} catch (UnknownHostException | ConnectException e) {
-				error = e.toString();
-			} catch (Exception e) {
-				Condensation.logError("HTTPStore exception in DELETE " + id + " " + accountHash.shortHex(), e);
-				error = e.toString();
-			}
+		@Override
+		protected void received(int responseCode, Bytes content) {
+			if (responseCode != 200 && responseCode != 204) error = unexpectedResponse(responseCode);
 		}
 
 		@Override
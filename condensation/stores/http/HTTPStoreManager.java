@@ -9,11 +9,30 @@ public class HTTPStoreManager {
 	// Module configuration
 	public static final int connectTimeout = (int) Condensation.SECOND * 10;
 	public static final int readTimeout = (int) Condensation.SECOND * 30;
+	public static Transport defaultTransport = URLConnectionTransport.instance;
+	static int parallelRequestsPerQueue = 4;
+	static int maximumConnectionsPerStore = 6;
+
+	// Batches (getMany, putMany, bookMany) are split into requests of at most this many objects or bytes
+	public static int maximumBatchSize = 256;
+	public static int maximumBatchBytes = 1024 * 1024;
+	public static int maximumBookBatchSize = 4096;
+
+	// Sets the number of requests executed in parallel per queue (GET, small PUT, large PUT), and in total per store.
+	// This only affects stores used for the first time after this call, and should therefore be called before any other HTTPStore function.
+	public static void configureConnections(int parallelRequestsPerQueue, int maximumConnectionsPerStore) {
+		HTTPStoreManager.parallelRequestsPerQueue = parallelRequestsPerQueue;
+		HTTPStoreManager.maximumConnectionsPerStore = maximumConnectionsPerStore;
+
+		// Keep enough idle connections alive to reuse them for subsequent requests
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(maximumConnectionsPerStore));
+	}
 
 	static final HashMap<String, HTTPStoreState> byStoreUrl = new HashMap<>();
 	static int maintenanceCounter = 0;
 
-	public static HTTPStoreState getOrCreate(String storeUrl) {
+	public static synchronized HTTPStoreState getOrCreate(String storeUrl) {
 		HTTPStoreState storeState = byStoreUrl.get(storeUrl);
 		if (storeState != null) {
 			storeState.lastUsed = System.currentTimeMillis();
@@ -21,14 +40,14 @@ public class HTTPStoreManager {
 			return storeState;
 		}
 
-		HTTPStoreState newStoreState = new HTTPStoreState(storeUrl);
+		HTTPStoreState newStoreState = new HTTPStoreState(storeUrl, parallelRequestsPerQueue, maximumConnectionsPerStore);
 		newStoreState.lastUsed = System.currentTimeMillis();
 		byStoreUrl.put(storeUrl, newStoreState);
 		maintenance();
 		return newStoreState;
 	}
 
-	public static HTTPStoreState get(String storeUrl) {
+	public static synchronized HTTPStoreState get(String storeUrl) {
 		return byStoreUrl.get(storeUrl);
 	}
 
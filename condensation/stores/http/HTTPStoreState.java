@@ -1,21 +1,81 @@
 package condensation.stores.http;
 
 import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import condensation.Condensation;
 import condensation.serialization.Hash;
 
+// The state may be shared by actors on different event loops, and is therefore synchronized.
 public class HTTPStoreState {
 	public final String storeUrl;
-	public final RequestQueue getQueue = new RequestQueue(this);
-	public final RequestQueue putSmallQueue = new RequestQueue(this);
-	public final RequestQueue putLargeQueue = new RequestQueue(this);
+	public final RequestQueue getQueue;
+	public final RequestQueue putSmallQueue;
+	public final RequestQueue putLargeQueue;
+	private final RequestQueue[] queues;
+
+	// Requests are executed on a shared pool, and at most maximumConnections of them run at the same time
+	public final int maximumConnections;
+	final ExecutorService executor = Executors.newCachedThreadPool();
+	private int executingRequests = 0;
+	private int nextQueue = 0;
 
 	// This is used by HttpStoreManager to remove entries not in use any more
 	long lastUsed = 0L;
 
-	HTTPStoreState(String storeUrl) {
+	HTTPStoreState(String storeUrl, int parallelRequestsPerQueue, int maximumConnections) {
 		this.storeUrl = storeUrl;
+		this.maximumConnections = maximumConnections;
+		getQueue = new RequestQueue(this, parallelRequestsPerQueue);
+		putSmallQueue = new RequestQueue(this, parallelRequestsPerQueue);
+		putLargeQueue = new RequestQueue(this, parallelRequestsPerQueue);
+		queues = new RequestQueue[]{getQueue, putSmallQueue, putLargeQueue};
+	}
+
+	// *** Scheduling
+
+	// Sends as many requests as the limits permit. The queues take turns, so that a long queue (e.g. many GETs during a sync) does not starve the others.
+	void schedule() {
+		while (true) {
+			final Request request = takeNext();
+			if (request == null) return;
+
+			// Requests of other event loops are sent from their own loop
+			if (request.eventLoop.thread() != Thread.currentThread()) {
+				request.eventLoop.post(new Runnable() {
+					@Override
+					public void run() {
+						if (request.send()) return;
+						release(request);
+						schedule();
+					}
+				});
+				continue;
+			}
+
+			if (request.send()) continue;
+			release(request);
+		}
+	}
+
+	private synchronized Request takeNext() {
+		if (executingRequests >= maximumConnections) return null;
+		for (int i = 0; i < queues.length; i++) {
+			int index = (nextQueue + i) % queues.length;
+			Request request = queues[index].takeNext();
+			if (request == null) continue;
+			nextQueue = (index + 1) % queues.length;
+			executingRequests += 1;
+			return request;
+		}
+
+		return null;
+	}
+
+	synchronized void release(Request request) {
+		executingRequests -= 1;
+		request.queue.release(request);
 	}
 
 	// *** Reachability estimate and statistics
@@ -25,7 +85,7 @@ public class HTTPStoreState {
 	int requestsDone = 0;
 	String lastError = null;
 
-	public void updateReachability(String error) {
+	public synchronized void updateReachability(String error) {
 		Condensation.assertMainThread();
 		requestsDone += 1;
 		long now = System.currentTimeMillis();
@@ -38,7 +98,7 @@ public class HTTPStoreState {
 		}
 	}
 
-	public int isReachable() {
+	public synchronized int isReachable() {
 		long now = System.currentTimeMillis();
 		if (now - lastReached < 5 * Condensation.SECOND) return 1;
 		if (lastReached > lastNotReached && lastReached > now - 120 * Condensation.SECOND) return 1;
@@ -46,12 +106,37 @@ public class HTTPStoreState {
 		return 0;
 	}
 
-	public boolean isDisabled() {
+	public synchronized boolean isDisabled() {
 		if (lastReached > lastNotReached) return false;
 		long now = System.currentTimeMillis();
 		return lastNotReached > now - 1;
 	}
 
+	// *** Batch requests
+
+	// Set once the server replied to a batch request with 404, 405 or 501. Batches are then sent object by object.
+	private boolean batchRequestsUnsupported = false;
+
+	public synchronized boolean supportsBatchRequests() {
+		return !batchRequestsUnsupported;
+	}
+
+	synchronized void setBatchRequestsUnsupported() {
+		batchRequestsUnsupported = true;
+	}
+
+	// Set once the server replied to a pack request with 404, 405 or 501. Packs are then sent as batches, and retrieved
+	// level by level. This is independent of batch support, since servers may implement one without the other.
+	private boolean packRequestsUnsupported = false;
+
+	public synchronized boolean supportsPackRequests() {
+		return !packRequestsUnsupported;
+	}
+
+	synchronized void setPackRequestsUnsupported() {
+		packRequestsUnsupported = true;
+	}
+
 	// *** Object booking
 
 	// Objects we booked within the last 10 - 20 minutes
@@ -60,12 +145,12 @@ public class HTTPStoreState {
 	HashSet<Hash> previouslyBooked = new HashSet<>();
 	long previouslyBookedAge = 0L;
 
-	public boolean isBooked(Hash hash) {
+	public synchronized boolean isBooked(Hash hash) {
 		rotateBooked();
 		return booked.contains(hash) || previouslyBooked.contains(hash);
 	}
 
-	public void setBooked(Hash hash) {
+	public synchronized void setBooked(Hash hash) {
 		rotateBooked();
 		booked.add(hash);
 	}
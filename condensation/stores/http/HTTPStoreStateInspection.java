@@ -32,8 +32,8 @@ public class HTTPStoreStateInspection extends Inspection {
 
 	@Override
 	public void update() {
-		executingRequests = (state.getQueue.executingRequest == null ? 0 : 1) + (state.putSmallQueue.executingRequest == null ? 0 : 1) + (state.putLargeQueue.executingRequest == null ? 0 : 1);
-		waitingRequests = state.getQueue.requests.size() + state.putSmallQueue.requests.size() + state.putLargeQueue.requests.size();
+		executingRequests = state.getQueue.executingCount() + state.putSmallQueue.executingCount() + state.putLargeQueue.executingCount();
+		waitingRequests = state.getQueue.waitingCount() + state.putSmallQueue.waitingCount() + state.putLargeQueue.waitingCount();
 		error = (state.lastNotReached > state.lastReached || state.lastNotReached > view.now - Condensation.MINUTE) && state.lastError != null ? state.lastError : null;
 		setLines(error == null ? 3 : 4);
 		view.itemsChanged();
@@ -0,0 +1,118 @@
+package condensation.stores.http;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+import condensation.serialization.Bytes;
+
+// Asynchronous transport based on java.net.http.HttpClient (Java 11 or newer, not available on Android).
+// Requests to the same server share HTTP/2 connections, and no thread is blocked while a request is on the wire.
+// Use it with HTTPStore.forUrl(url, new HttpClientTransport()), or set HTTPStoreManager.defaultTransport. Since requests do
+// not cost a thread any more, the limits of HTTPStoreManager.configureConnections() can be raised considerably.
+public final class HttpClientTransport implements Transport {
+	public final HttpClient client;
+
+	// Prepares requests (e.g. signatures) and processes responses
+	final ExecutorService executor;
+
+	public HttpClientTransport() {
+		this(Executors.newCachedThreadPool());
+	}
+
+	public HttpClientTransport(ExecutorService executor) {
+		this.executor = executor;
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(HTTPStoreManager.connectTimeout))
+				.executor(executor)
+				.build();
+	}
+
+	@Override
+	public void send(final Request request) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				HttpRequest httpRequest;
+				try {
+					request.prepare();
+					httpRequest = build(request);
+				} catch (Exception e) {
+					request.failed(e);
+					request.completed();
+					return;
+				}
+
+				client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray()).whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+					@Override
+					public void accept(HttpResponse<byte[]> response, Throwable throwable) {
+						if (throwable == null) received(request, response);
+						else request.failed(asException(throwable));
+						request.completed();
+					}
+				});
+			}
+		});
+	}
+
+	static HttpRequest build(Request request) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.url))
+				.timeout(Duration.ofMillis(request.timeout))
+				.method(request.method, bodyPublisher(request.content));
+		for (Map.Entry<String, String> header : request.headers.entrySet())
+			builder.header(header.getKey(), header.getValue());
+		return builder.build();
+	}
+
+	static HttpRequest.BodyPublisher bodyPublisher(final Bytes[] content) {
+		if (content == null) return HttpRequest.BodyPublishers.noBody();
+		if (content.length == 1) return HttpRequest.BodyPublishers.ofByteArray(content[0].buffer, content[0].byteOffset, content[0].byteLength);
+
+		// Stream the chunks one by one (e.g. the objects of a pack), rather than concatenating them first
+		return HttpRequest.BodyPublishers.ofByteArrays(new Iterable<byte[]>() {
+			@Override
+			public Iterator<byte[]> iterator() {
+				return new Iterator<byte[]>() {
+					int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < content.length;
+					}
+
+					@Override
+					public byte[] next() {
+						Bytes chunk = content[index];
+						index += 1;
+						return chunk.byteOffset == 0 && chunk.byteLength == chunk.buffer.length ? chunk.buffer : chunk.toByteArray();
+					}
+				};
+			}
+		});
+	}
+
+	static void received(Request request, HttpResponse<byte[]> response) {
+		int responseCode = response.statusCode();
+		request.responseCode = responseCode;
+		try {
+			boolean success = responseCode >= 200 && responseCode < 300;
+			request.received(responseCode, success ? new Bytes(response.body()) : null);
+		} catch (Exception e) {
+			request.failed(e);
+		}
+	}
+
+	static Exception asException(Throwable throwable) {
+		Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+		return cause instanceof Exception ? (Exception) cause : new Exception(cause);
+	}
+}
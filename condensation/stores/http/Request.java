@@ -2,19 +2,27 @@ package condensation.stores.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.TimeZone;
 
 import androidx.annotation.NonNull;
 import condensation.Condensation;
 import condensation.actors.KeyPair;
+import condensation.crypto.SHA256;
 import condensation.serialization.Bytes;
 import condensation.serialization.Hash;
+import condensation.tasks.EventLoop;
 
-public abstract class Request implements Runnable, Comparable<Request> {
+public abstract class Request implements Comparable<Request> {
+	protected final Transport transport;
 	protected final RequestQueue queue;
 
 	// For inspection purposes only
@@ -25,51 +33,91 @@ public abstract class Request implements Runnable, Comparable<Request> {
 	long received = 0L;
 	int responseCode = 0;
 
-	public Request(RequestQueue queue, String function, String parameter) {
+	// The HTTP request, as set up by prepare()
+	String method = "GET";
+	String url = null;
+	final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+	Bytes[] content = null;
+	long timeout = HTTPStoreManager.readTimeout;
+
+	// Set when the request failed (no response, or an unexpected response)
+	protected String error = null;
+
+	public Request(Transport transport, RequestQueue queue, String function, String parameter) {
+		this.transport = transport;
 		this.queue = queue;
 		this.function = function;
 		this.parameter = parameter;
 	}
 
+	// The event loop on which the request was created, and on which all callbacks are executed
+	final EventLoop eventLoop = Condensation.currentLoop();
+
 	protected void ready() {
 		enqueued = System.currentTimeMillis();
-		queue.requests.add(this);
-		Condensation.mainThread.post(queue);
+		queue.add(this);
+		eventLoop.post(queue);
 	}
 
-	@Override
-	public void run() {
-		try {
-			long start = System.currentTimeMillis();
-			background();
-			final long duration = System.currentTimeMillis() - start;
-
-			Condensation.mainThread.post(new Runnable() {
-				@Override
-				public void run() {
-					if (duration > 2000) Condensation.log(function + " request took " + duration + " ms, " + queue.storeState.storeUrl);
-
-					try {
-						after();
-					} catch (Throwable th) {
-						Condensation.logError("HTTPStoreQueue.Request", th);
-					}
-
-					received = System.currentTimeMillis();
-					queue.executingRequest = null;
-					queue.run();
-				}
-			});
-		} catch (Throwable th) {
-			Condensation.logError("HTTPStoreQueue.Request", th);
+	// Called on the event loop of the request when it is its turn. Returns false if the request completed without being sent.
+	boolean send() {
+		if (queue.storeState.isDisabled()) {
+			storeDisabled();
+			return false;
 		}
+
+		if (!before()) return false;
+		sent = System.currentTimeMillis();
+		transport.send(this);
+		return true;
+	}
+
+	// Called by the transport (on any thread) once the response has been processed.
+	void completed() {
+		final long duration = System.currentTimeMillis() - sent;
+		eventLoop.post(new Runnable() {
+			@Override
+			public void run() {
+				if (duration > 2000) Condensation.log(function + " request took " + duration + " ms, " + queue.storeState.storeUrl);
+
+				try {
+					after();
+				} catch (Throwable th) {
+					Condensation.logError("HTTPStoreQueue.Request", th);
+				}
+
+				received = System.currentTimeMillis();
+				queue.storeState.release(Request.this);
+				queue.storeState.schedule();
+			}
+		});
+	}
+
+	// Called by the transport (on any thread) if no response was received.
+	void failed(Exception e) {
+		if (!(e instanceof UnknownHostException || e instanceof ConnectException || e instanceof SocketTimeoutException))
+			Condensation.logError("HTTPStore exception in " + function + " " + queue.storeState.storeUrl + " " + parameter, e);
+		error = e.toString();
+	}
+
+	protected void setContent(String contentType, Bytes... content) {
+		headers.put("Content-Type", contentType);
+		this.content = content;
+	}
+
+	protected String unexpectedResponse(int responseCode) {
+		return "The server replied with a " + responseCode + " HTTP response code.";
 	}
 
 	protected abstract void storeDisabled();
 
 	protected abstract boolean before();
 
-	protected abstract void background();
+	// Sets up method, url, headers and content. This is called on a background thread, and may therefore do some work (e.g. signing).
+	protected abstract void prepare();
+
+	// Processes the response. This is called on a background thread. The content is null unless the response code is 2xx.
+	protected abstract void received(int responseCode, Bytes content);
 
 	protected abstract void after();
 
@@ -86,6 +134,18 @@ public abstract class Request implements Runnable, Comparable<Request> {
 		return connection;
 	}
 
+	// Reads and discards the response body, so that the connection can be reused (keep-alive).
+	public static void discardResponse(HttpURLConnection connection) {
+		try {
+			InputStream stream = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (stream == null) return;
+			byte[] buffer = new byte[4096];
+			while (stream.read(buffer) >= 0) ;
+			stream.close();
+		} catch (IOException ignored) {
+		}
+	}
+
 	// Reads an input stream completely into memory.
 	public static Bytes readStream(InputStream inputStream) throws IOException {
 		// Read all chunks
@@ -113,7 +173,13 @@ public abstract class Request implements Runnable, Comparable<Request> {
 		return Bytes.concatenate(chunks);
 	}
 
-	protected void addSignature(HttpURLConnection connection, KeyPair keyPair, String method, String url, Bytes content) {
+	protected void addSignature(KeyPair keyPair, String method, String url, Bytes content) {
+		addSignature(keyPair, method, url, content == null ? null : new Bytes[]{content});
+	}
+
+	// Signs content sent as chunks (e.g. a streamed pack). The chunks are hashed one after the other, which yields the same
+	// signature as the concatenated content, but without copying it.
+	protected void addSignature(KeyPair keyPair, String method, String url, Bytes[] content) {
 		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
 		cal.setTimeInMillis(System.currentTimeMillis());
 		Bytes dateBytes = new Bytes(24);
@@ -137,15 +203,24 @@ public abstract class Request implements Runnable, Comparable<Request> {
 		Bytes nullByte = new Bytes(0);
 		String urlStart = url.substring(0, 8).toLowerCase();
 		String host = urlStart.startsWith("http://") ? url.substring(7) : urlStart.equals("https://") ? url.substring(8) : url;
-		Bytes bytesToSign = content == null ?
-				Bytes.concatenate(dateBytes, nullByte, Bytes.fromText(method), nullByte, Bytes.fromText(host)) :
-				Bytes.concatenate(dateBytes, nullByte, Bytes.fromText(method), nullByte, Bytes.fromText(host), nullByte, content);
-		Hash hashToSign = Hash.calculateFor(bytesToSign);
+		MessageDigest sha256 = SHA256.createInstance();
+		update(sha256, dateBytes, nullByte, Bytes.fromText(method), nullByte, Bytes.fromText(host));
+		if (content != null) {
+			update(sha256, nullByte);
+			update(sha256, content);
+		}
+
+		Hash hashToSign = Hash.from(sha256.digest());
 		Bytes signature = keyPair.sign(hashToSign);
 
-		connection.setRequestProperty("Condensation-Date", dateBytes.asText());
-		connection.setRequestProperty("Condensation-Actor", keyPair.publicKey.hash.hex());
-		connection.setRequestProperty("Condensation-Signature", signature.asHex());
+		headers.put("Condensation-Date", dateBytes.asText());
+		headers.put("Condensation-Actor", keyPair.publicKey.hash.hex());
+		headers.put("Condensation-Signature", signature.asHex());
+	}
+
+	private static void update(MessageDigest sha256, Bytes... chunks) {
+		for (Bytes chunk : chunks)
+			sha256.update(chunk.buffer, chunk.byteOffset, chunk.byteLength);
 	}
 
 	private void setDigits2(Bytes bytes, int offset, int value) {
@@ -1,37 +1,49 @@
 package condensation.stores.http;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+// Requests may be enqueued from several event loops. Each request is sent from, and completed on, the loop it was created on.
+// The queue runs up to maximumParallelRequests at the same time, while the store state schedules requests fairly among its queues.
 public class RequestQueue implements Runnable {
 	public final HTTPStoreState storeState;
-	ExecutorService executor = Executors.newSingleThreadExecutor();
+	public final int maximumParallelRequests;
 	ArrayList<Request> requests = new ArrayList<>();
-	Request executingRequest = null;
+	final ArrayList<Request> executingRequests = new ArrayList<>();
 
 	// For inspection purposes only
 	Request currentOrLastRequest = null;
 
-	RequestQueue(HTTPStoreState storeState) {
+	RequestQueue(HTTPStoreState storeState, int maximumParallelRequests) {
 		this.storeState = storeState;
+		this.maximumParallelRequests = maximumParallelRequests;
+	}
+
+	synchronized void add(Request request) {
+		requests.add(request);
+	}
+
+	synchronized Request takeNext() {
+		if (executingRequests.size() >= maximumParallelRequests || requests.isEmpty()) return null;
+		Request request = requests.remove(0);
+		executingRequests.add(request);
+		currentOrLastRequest = request;
+		return request;
+	}
+
+	synchronized void release(Request request) {
+		executingRequests.remove(request);
+	}
+
+	public synchronized int executingCount() {
+		return executingRequests.size();
+	}
+
+	public synchronized int waitingCount() {
+		return requests.size();
 	}
 
 	@Override
 	public void run() {
-		if (executingRequest != null) return;
-		while (!requests.isEmpty()) {
-			Request request = requests.remove(0);
-			if (storeState.isDisabled()) {
-				request.storeDisabled();
-				continue;
-			}
-
-			if (!request.before()) continue;
-			executingRequest = request;
-			currentOrLastRequest = request;
-			request.sent = System.currentTimeMillis();
-			executor.execute(request);
-		}
+		storeState.schedule();
 	}
 }
@@ -0,0 +1,7 @@
+package condensation.stores.http;
+
+// Sends HTTP requests for HTTPStore. A transport calls request.prepare() and request.received() (or request.failed())
+// on a background thread, and request.completed() when done.
+public interface Transport {
+	void send(Request request);
+}
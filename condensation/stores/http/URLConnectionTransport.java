@@ -0,0 +1,60 @@
+package condensation.stores.http;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import condensation.serialization.Bytes;
+
+// Blocking transport based on HttpURLConnection. Each running request occupies one thread of the store's executor.
+public final class URLConnectionTransport implements Transport {
+	public static final URLConnectionTransport instance = new URLConnectionTransport();
+
+	@Override
+	public void send(final Request request) {
+		request.queue.storeState.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				exchange(request);
+				request.completed();
+			}
+		});
+	}
+
+	static void exchange(Request request) {
+		try {
+			request.prepare();
+
+			// Prepare the request
+			HttpURLConnection connection = Request.openConnection(request.url);
+			connection.setRequestMethod(request.method);
+			if (request.timeout > HTTPStoreManager.readTimeout) connection.setReadTimeout((int) request.timeout);
+			for (Map.Entry<String, String> header : request.headers.entrySet())
+				connection.setRequestProperty(header.getKey(), header.getValue());
+
+			// Send the content
+			if (request.content != null) {
+				long contentLength = 0;
+				for (Bytes bytes : request.content) contentLength += bytes.byteLength;
+				connection.setFixedLengthStreamingMode(contentLength);
+				connection.setDoOutput(true);
+				OutputStream out = connection.getOutputStream();
+				for (Bytes bytes : request.content)
+					out.write(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+				out.close();
+			}
+
+			// Read the response
+			int responseCode = connection.getResponseCode();
+			request.responseCode = responseCode;
+			if (responseCode >= 200 && responseCode < 300) {
+				request.received(responseCode, Request.readStream(connection.getInputStream()));
+			} else {
+				Request.discardResponse(connection);
+				request.received(responseCode, null);
+			}
+		} catch (Exception e) {
+			request.failed(e);
+		}
+	}
+}
@@ -1,14 +1,61 @@
 package condensation.tasks;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import condensation.Condensation;
 
 public class BackgroundExecutor {
+	// *** Static ***
+
+	// One thread executing one task after the other.
+	public static BackgroundExecutor singleThread() {
+		return new BackgroundExecutor(Executors.newSingleThreadExecutor());
+	}
+
+	// A work-stealing pool for CPU-bound tasks (decryption, hashing, serialization), typically sized to the number of cores.
+	public static BackgroundExecutor workStealing(int parallelism) {
+		return new BackgroundExecutor(new ForkJoinPool(parallelism));
+	}
+
+	// A pool for blocking I/O (file access) running at most maximumConcurrentTasks at the same time. If virtualThreads is
+	// true and the JVM supports them (Java 21+), each task runs on its own virtual thread. Otherwise, the pool uses a fixed
+	// number of platform threads.
+	public static BackgroundExecutor io(int maximumConcurrentTasks, boolean virtualThreads) {
+		if (virtualThreads) {
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor != null) return new BackgroundExecutor(executor, new Semaphore(maximumConcurrentTasks));
+		}
+
+		return new BackgroundExecutor(Executors.newFixedThreadPool(maximumConcurrentTasks));
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception ignored) {
+			return null;
+		}
+	}
+
+	// *** Object ***
+
 	public final ExecutorService executor;
+	private final Semaphore concurrencyLimit;
 
 	public BackgroundExecutor(ExecutorService executor) {
+		this(executor, null);
+	}
+
+	public BackgroundExecutor(ExecutorService executor, Semaphore concurrencyLimit) {
 		this.executor = executor;
+		this.concurrencyLimit = concurrencyLimit;
 	}
 
 	public void run(BackgroundTask task) {
@@ -17,19 +64,33 @@ public class BackgroundExecutor {
 
 	class Execution implements Runnable {
 		final BackgroundTask task;
+		final EventLoop eventLoop = Condensation.currentLoop();
+		final long submitted = System.nanoTime();
 
 		Execution(BackgroundTask task) {
 			this.task = task;
+			waitingTasks.incrementAndGet();
 			executor.execute(this);
 		}
 
 		@Override
 		public void run() {
+			if (concurrencyLimit != null) concurrencyLimit.acquireUninterruptibly();
+			long started = System.nanoTime();
+			waitingTasks.decrementAndGet();
+			runningTasks.incrementAndGet();
+			addTime(queueTime, maximumQueueTime, started - submitted);
+
 			try {
 				task.background();
-				Condensation.mainThread.post(runAfter);
+				eventLoop.post(runAfter);
 			} catch (Throwable th) {
 				Condensation.logError("BackgroundExecutor exception", th);
+			} finally {
+				runningTasks.decrementAndGet();
+				completedTasks.incrementAndGet();
+				addTime(executionTime, maximumExecutionTime, System.nanoTime() - started);
+				if (concurrencyLimit != null) concurrencyLimit.release();
 			}
 		}
 
@@ -40,4 +101,67 @@ public class BackgroundExecutor {
 			}
 		};
 	}
+
+	// *** Statistics
+
+	private final AtomicInteger waitingTasks = new AtomicInteger();
+	private final AtomicInteger runningTasks = new AtomicInteger();
+	private final AtomicLong completedTasks = new AtomicLong();
+	private final AtomicLong queueTime = new AtomicLong();
+	private final AtomicLong maximumQueueTime = new AtomicLong();
+	private final AtomicLong executionTime = new AtomicLong();
+	private final AtomicLong maximumExecutionTime = new AtomicLong();
+
+	private static void addTime(AtomicLong total, AtomicLong maximum, long nanoseconds) {
+		total.addAndGet(nanoseconds);
+		while (true) {
+			long current = maximum.get();
+			if (nanoseconds <= current || maximum.compareAndSet(current, nanoseconds)) return;
+		}
+	}
+
+	// Number of tasks waiting for a thread.
+	public int queueDepth() {
+		return waitingTasks.get();
+	}
+
+	public int runningTasks() {
+		return runningTasks.get();
+	}
+
+	public long completedTasks() {
+		return completedTasks.get();
+	}
+
+	// Average time (in ms) a task waited before it started.
+	public double averageQueueTime() {
+		long completed = completedTasks.get();
+		return completed == 0 ? 0 : queueTime.get() / 1e6 / completed;
+	}
+
+	// Average time (in ms) background() took.
+	public double averageExecutionTime() {
+		long completed = completedTasks.get();
+		return completed == 0 ? 0 : executionTime.get() / 1e6 / completed;
+	}
+
+	public double maximumQueueTime() {
+		return maximumQueueTime.get() / 1e6;
+	}
+
+	public double maximumExecutionTime() {
+		return maximumExecutionTime.get() / 1e6;
+	}
+
+	public void resetStatistics() {
+		queueTime.set(0L);
+		maximumQueueTime.set(0L);
+		executionTime.set(0L);
+		maximumExecutionTime.set(0L);
+		completedTasks.set(0L);
+	}
+
+	public String statistics() {
+		return queueDepth() + " waiting, " + runningTasks() + " running, " + completedTasks() + " done, " + String.format("%1.2f", averageQueueTime()) + " ms avg. wait (max " + String.format("%1.0f", maximumQueueTime()) + " ms), " + String.format("%1.2f", averageExecutionTime()) + " ms avg. execution (max " + String.format("%1.0f", maximumExecutionTime()) + " ms)";
+	}
 }
@@ -4,6 +4,7 @@ import condensation.Condensation;
 
 public class BackgroundThread extends Thread {
 	final BackgroundTask task;
+	final EventLoop eventLoop = Condensation.currentLoop();
 
 	public BackgroundThread(BackgroundTask task) {
 		this.task = task;
@@ -14,7 +15,7 @@ public class BackgroundThread extends Thread {
 	public void run() {
 		try {
 			task.background();
-			Condensation.mainThread.post(runAfter);
+			eventLoop.post(runAfter);
 		} catch (Throwable th) {
 			Condensation.logError("BackgroundThread exception", th);
 		}
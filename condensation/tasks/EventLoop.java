@@ -0,0 +1,17 @@
+package condensation.tasks;
+
+import androidx.annotation.NonNull;
+
+// Executes tasks one after the other on a single thread, the "main thread" of Condensation.
+// Store callbacks, BackgroundTask.after(), and lazy actions all run on the event loop.
+// post() and postDelayed() may be called from any thread.
+public interface EventLoop {
+	// Runs the task on the event loop thread, after all tasks posted before.
+	void post(@NonNull Runnable task);
+
+	// Runs the task on the event loop thread in (approximately) delay milliseconds.
+	void postDelayed(@NonNull Runnable task, long delay);
+
+	// The thread on which tasks are executed.
+	Thread thread();
+}
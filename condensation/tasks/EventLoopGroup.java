@@ -0,0 +1,32 @@
+package condensation.tasks;
+
+import androidx.annotation.NonNull;
+
+import condensation.serialization.Hash;
+
+// A fixed set of JVM event loops. Each actor is pinned to one loop (chosen by its hash), so that independent actors run in
+// parallel, while everything belonging to one actor (PrivateRoot, MessagingStore, DataTrees) stays on a single thread.
+public final class EventLoopGroup {
+	public final JVMEventLoop[] loops;
+
+	public EventLoopGroup(String name, int count) {
+		loops = new JVMEventLoop[count];
+		for (int i = 0; i < count; i++)
+			loops[i] = new JVMEventLoop(name + " " + i);
+	}
+
+	// Returns the loop on which the actor with this hash lives.
+	public EventLoop loopFor(@NonNull Hash actorHash) {
+		int value = actorHash.bytes.getInteger32(0) & 0x7fffffff;
+		return loops[value % loops.length];
+	}
+
+	// Runs the task on the loop of the actor. Use this to create the actor and its data structures.
+	public void post(@NonNull Hash actorHash, @NonNull Runnable task) {
+		loopFor(actorHash).post(task);
+	}
+
+	public void stop() {
+		for (JVMEventLoop loop : loops) loop.stop();
+	}
+}
@@ -0,0 +1,34 @@
+package condensation.tasks;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+
+// Event loop on top of an Android handler, usually the handler of the UI thread.
+public final class HandlerEventLoop implements EventLoop {
+	// Creates an event loop for the looper of the current thread.
+	public static HandlerEventLoop forCurrentThread() {
+		return new HandlerEventLoop(new Handler());
+	}
+
+	public final Handler handler;
+
+	public HandlerEventLoop(Handler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void post(@NonNull Runnable task) {
+		handler.post(task);
+	}
+
+	@Override
+	public void postDelayed(@NonNull Runnable task, long delay) {
+		handler.postDelayed(task, delay);
+	}
+
+	@Override
+	public Thread thread() {
+		return handler.getLooper().getThread();
+	}
+}
@@ -0,0 +1,144 @@
+package condensation.tasks;
+
+import androidx.annotation.NonNull;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import condensation.Condensation;
+
+// Event loop for a plain JVM (servers, benchmarks), running on its own thread.
+// Tasks are posted to a lock-free multi-producer, single-consumer queue, and drained in batches. Delayed tasks are kept in
+// a timer heap, which is only accessed from the loop thread.
+public final class JVMEventLoop implements EventLoop, Runnable {
+	// Maximum number of tasks executed before checking the timers again
+	public final int batchSize;
+
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<DelayedTask> newDelayedTasks = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<DelayedTask> delayedTasks = new PriorityQueue<>();
+	private long delayedTasksCounter = 0L;
+	private volatile boolean sleeping = false;
+	private volatile boolean running = true;
+
+	// Statistics (only written on the loop thread)
+	public volatile long executedTasks = 0L;
+
+	public JVMEventLoop(String threadName) {
+		this(threadName, 256);
+	}
+
+	public JVMEventLoop(String threadName, int batchSize) {
+		this.batchSize = batchSize;
+		thread = new Thread(this, threadName);
+		thread.start();
+	}
+
+	@Override
+	public void post(@NonNull Runnable task) {
+		tasks.add(task);
+		if (sleeping) LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void postDelayed(@NonNull Runnable task, long delay) {
+		newDelayedTasks.add(new DelayedTask(task, System.nanoTime() + Math.max(delay, 0L) * 1000000L));
+		if (sleeping) LockSupport.unpark(thread);
+	}
+
+	@Override
+	public Thread thread() {
+		return thread;
+	}
+
+	// Stops the loop after the current batch. Tasks that have not been executed yet are dropped.
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	public int queueLength() {
+		return tasks.size();
+	}
+
+	@Override
+	public void run() {
+		Condensation.attachEventLoop(this);
+		while (running) {
+			// Run all timers that are due, and then a batch of tasks
+			long nextDue = runDueTasks();
+			if (runTasks() > 0) continue;
+
+			// Sleep until a task is posted, or the next timer is due
+			sleeping = true;
+			if (tasks.isEmpty() && newDelayedTasks.isEmpty() && running) {
+				if (nextDue == Long.MAX_VALUE) LockSupport.park(this);
+				else LockSupport.parkNanos(this, nextDue - System.nanoTime());
+			}
+			sleeping = false;
+		}
+	}
+
+	private int runTasks() {
+		int count = 0;
+		while (count < batchSize) {
+			Runnable task = tasks.poll();
+			if (task == null) break;
+			execute(task);
+			count += 1;
+		}
+
+		return count;
+	}
+
+	// Returns the time (System.nanoTime()) at which the next timer is due, or Long.MAX_VALUE if there is none.
+	private long runDueTasks() {
+		while (true) {
+			DelayedTask newTask = newDelayedTasks.poll();
+			if (newTask == null) break;
+			delayedTasksCounter += 1;
+			newTask.order = delayedTasksCounter;
+			delayedTasks.add(newTask);
+		}
+
+		long now = System.nanoTime();
+		while (true) {
+			DelayedTask head = delayedTasks.peek();
+			if (head == null) return Long.MAX_VALUE;
+			if (head.due - now > 0) return head.due;
+			delayedTasks.poll();
+			execute(head.task);
+		}
+	}
+
+	private void execute(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable th) {
+			Condensation.logError("JVMEventLoop task exception", th);
+		}
+
+		executedTasks += 1;
+	}
+
+	static class DelayedTask implements Comparable<DelayedTask> {
+		final Runnable task;
+		final long due;
+		long order = 0L;
+
+		DelayedTask(Runnable task, long due) {
+			this.task = task;
+			this.due = due;
+		}
+
+		@Override
+		public int compareTo(@NonNull DelayedTask that) {
+			// Timers due at the same time run in the order they were posted
+			long difference = due - that.due;
+			if (difference != 0) return difference < 0 ? -1 : 1;
+			return Condensation.longCompare(order, that.order);
+		}
+	}
+}
@@ -14,7 +14,7 @@ public abstract class LazyAction {
 		Condensation.assertMainThread();
 		if (scheduled != null) return;
 		scheduled = new Run();
-		Condensation.mainThread.postDelayed(scheduled, delay);
+		Condensation.currentLoop().postDelayed(scheduled, delay);
 	}
 
 	public void runNow() {
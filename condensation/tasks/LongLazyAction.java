@@ -16,7 +16,7 @@ public abstract class LongLazyAction implements Runnable {
 		if (isScheduled) return;
 		isScheduled = true;
 		if (isRunning) return;
-		Condensation.mainThread.postDelayed(this, delay);
+		Condensation.currentLoop().postDelayed(this, delay);
 	}
 
 	@Override
@@ -34,7 +34,7 @@ public abstract class LongLazyAction implements Runnable {
 		}
 
 		isRunning = false;
-		if (isScheduled) Condensation.mainThread.postDelayed(this, delay);
+		if (isScheduled) Condensation.currentLoop().postDelayed(this, delay);
 	}
 
 	protected abstract void action();
@@ -21,7 +21,7 @@ public abstract class LongLazyActionWithExponentialBackoff {
 		shouldRunAgain = true;
 		if (currentAction != null) return;
 		currentAction = new Action();
-		Condensation.mainThread.postDelayed(currentAction, delay);
+		Condensation.currentLoop().postDelayed(currentAction, delay);
 	}
 
 	public void reschedule() {
@@ -39,7 +39,7 @@ public abstract class LongLazyActionWithExponentialBackoff {
 		}
 
 		currentAction = new Action();
-		Condensation.mainThread.postDelayed(currentAction, delay);
+		Condensation.currentLoop().postDelayed(currentAction, delay);
 	}
 
 	protected abstract void action(Action action);
@@ -64,7 +64,7 @@ public abstract class LongLazyActionWithExponentialBackoff {
 
 			isRunning = false;
 			delay = LongLazyActionWithExponentialBackoff.this.delay;
-			if (shouldRunAgain) Condensation.mainThread.postDelayed(this, delay);
+			if (shouldRunAgain) Condensation.currentLoop().postDelayed(this, delay);
 			else currentAction = null;
 		}
 
@@ -77,7 +77,7 @@ public abstract class LongLazyActionWithExponentialBackoff {
 			isRunning = false;
 			delay *= multiplier;
 			if (delay > maximumDelay) delay = maximumDelay;
-			Condensation.mainThread.postDelayed(this, delay);
+			Condensation.currentLoop().postDelayed(this, delay);
 		}
 	}
 }
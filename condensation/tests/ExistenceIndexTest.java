@@ -0,0 +1,124 @@
+package condensation.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.Hash;
+import condensation.stores.folder.ExistenceIndex;
+
+// Runs on any background thread. The folder is removed and recreated.
+public final class ExistenceIndexTest {
+	// Slots of a new (empty) index
+	static final int slots = 1024;
+
+	final File folder;
+
+	public ExistenceIndexTest(File folder) {
+		this.folder = folder;
+	}
+
+	public void run() {
+		Condensation.log("tests.ExistenceIndex cluster " + testCluster(10));
+		Condensation.log("tests.ExistenceIndex cluster wrapping around " + testCluster(slots - 3));
+		Condensation.log("tests.ExistenceIndex random " + testRandom());
+		try {
+			Condensation.log("tests.ExistenceIndex snapshot " + testSnapshot());
+		} catch (IOException e) {
+			Condensation.logError("tests.ExistenceIndex failed", e);
+		}
+
+		Condensation.log("tests.ExistenceIndex done");
+	}
+
+	// Slot offsets of the keys of a cluster. Keys in their own slot (3, 7) are followed by displaced keys, which removals
+	// must move past them.
+	static final int[] clusterOffsets = {0, 0, 0, 3, 0, 0, 7, 1, 1};
+
+	// Builds a cluster of keys with the same or neighbouring slots, and removes each key in turn. All other keys must still
+	// be found, i.e. removals must move the subsequent keys of the cluster back into the hole, where appropriate.
+	String testCluster(int slot) {
+		ArrayList<Hash> hashes = new ArrayList<>();
+		for (int offset : clusterOffsets) hashes.add(hashWithSlot((slot + offset) % slots, hashes.size()));
+
+		for (Hash removed : hashes) {
+			ExistenceIndex index = new ExistenceIndex();
+			for (Hash hash : hashes) index.add(hash);
+			index.remove(removed);
+			String error = check(index, hashes, removed);
+			if (error != null) return "removing " + removed.shortHex() + ": " + error;
+		}
+
+		// Remove all of them, one after the other
+		ExistenceIndex index = new ExistenceIndex();
+		for (Hash hash : hashes) index.add(hash);
+		for (int i = 0; i < hashes.size(); i++) {
+			index.remove(hashes.get(i));
+			if (index.size() != hashes.size() - i - 1) return "size " + index.size() + " after " + (i + 1) + " removals";
+			for (int k = 0; k < hashes.size(); k++)
+				if (index.contains(hashes.get(k)) != k > i) return "wrong result for " + k + " after " + (i + 1) + " removals";
+		}
+
+		return "OK";
+	}
+
+	// Adds random hashes (growing the table several times), and removes half of them.
+	String testRandom() {
+		ExistenceIndex index = new ExistenceIndex();
+		ArrayList<Hash> hashes = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			Hash hash = Hash.from(Condensation.randomBytes(32));
+			hashes.add(hash);
+			index.add(hash);
+		}
+
+		for (int i = 0; i < hashes.size(); i += 2)
+			index.remove(hashes.get(i));
+
+		if (index.size() != hashes.size() / 2) return "size " + index.size();
+		for (int i = 0; i < hashes.size(); i++)
+			if (index.contains(hashes.get(i)) != (i % 2 == 1)) return "wrong result for " + i;
+		return "OK";
+	}
+
+	// A saved snapshot is loaded once, and marked as dirty.
+	String testSnapshot() throws IOException {
+		TestFiles.emptyFolder(folder);
+		File file = new File(folder, "index");
+		ExistenceIndex index = new ExistenceIndex();
+		ArrayList<Hash> hashes = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			Hash hash = Hash.from(Condensation.randomBytes(32));
+			hashes.add(hash);
+			index.add(hash);
+		}
+
+		index.save(file);
+		ExistenceIndex loaded = new ExistenceIndex();
+		if (!loaded.load(file)) return "snapshot not loaded";
+		String error = check(loaded, hashes, null);
+		if (error != null) return error;
+		if (new ExistenceIndex().load(file)) return "dirty snapshot loaded";
+		return "OK";
+	}
+
+	static String check(ExistenceIndex index, ArrayList<Hash> hashes, Hash removed) {
+		if (removed != null && index.contains(removed)) return "removed key found";
+		int expectedSize = removed == null ? hashes.size() : hashes.size() - 1;
+		if (index.size() != expectedSize) return "size " + index.size() + " instead of " + expectedSize;
+		for (Hash hash : hashes)
+			if (hash != removed && !index.contains(hash)) return "key " + hash.shortHex() + " lost";
+		return null;
+	}
+
+	// The index uses the first 8 bytes of the hash, and the slot is given by its lowest bits.
+	static Hash hashWithSlot(int slot, int variant) {
+		Bytes bytes = Condensation.randomBytes(32);
+		bytes.buffer[0] = (byte) (variant + 1);
+		bytes.buffer[6] = (byte) ((bytes.buffer[6] & 0xfc) | (slot >> 8));
+		bytes.buffer[7] = (byte) slot;
+		return Hash.from(bytes);
+	}
+}
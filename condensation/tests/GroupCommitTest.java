@@ -0,0 +1,140 @@
+package condensation.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.stores.folder.GroupCommit;
+
+// Runs on any background thread. The folder is removed and recreated.
+public final class GroupCommitTest {
+	static final int writers = 16;
+
+	final File folder;
+
+	public GroupCommitTest(File folder) {
+		this.folder = folder;
+	}
+
+	public void run() {
+		long window = GroupCommit.window;
+		GroupCommit.window = 10 * Condensation.SECOND;
+		try {
+			Condensation.log("tests.GroupCommit grouping " + testGrouping());
+			Condensation.log("tests.GroupCommit ordering " + testOrdering());
+		} catch (IOException | InterruptedException e) {
+			Condensation.logError("tests.GroupCommit failed", e);
+		} finally {
+			GroupCommit.window = window;
+		}
+
+		Condensation.log("tests.GroupCommit done");
+	}
+
+	// Tickets committed while others are being written share a single sync.
+	String testGrouping() throws IOException, InterruptedException {
+		TestFiles.emptyFolder(folder);
+		final GroupCommit groupCommit = new GroupCommit(new File(folder, "tmp"));
+		groupCommit.createIfNecessary();
+
+		final CountDownLatch begun = new CountDownLatch(writers);
+		final ArrayList<Writer> threads = new ArrayList<>();
+		for (int i = 0; i < writers; i++) threads.add(new Writer(groupCommit, begun, new File(folder, "file-" + i)));
+		for (Writer thread : threads) thread.start();
+		for (Writer thread : threads) thread.join();
+
+		for (Writer thread : threads) {
+			if (thread.error != null) return thread.error;
+			if (!thread.target.exists()) return thread.target + " missing";
+		}
+
+		String[] temporaryFiles = groupCommit.temporaryFolder.list();
+		if (temporaryFiles == null || temporaryFiles.length > 0) return "temporary files left";
+		if (groupCommit.committedTickets != writers) return groupCommit.committedTickets + " tickets committed instead of " + writers;
+		if (groupCommit.commits != 1) return groupCommit.commits + " syncs instead of 1";
+		return "OK";
+	}
+
+	static class Writer extends Thread {
+		final GroupCommit groupCommit;
+		final CountDownLatch begun;
+		final File target;
+		String error = null;
+
+		Writer(GroupCommit groupCommit, CountDownLatch begun, File target) {
+			this.groupCommit = groupCommit;
+			this.begun = begun;
+			this.target = target;
+		}
+
+		@Override
+		public void run() {
+			// All tickets are begun before the first one is committed
+			GroupCommit.Ticket ticket = groupCommit.begin();
+			begun.countDown();
+			try {
+				begun.await();
+				File temporaryFile = groupCommit.temporaryFile();
+				Condensation.randomBytes(100).writeToFile(temporaryFile);
+				ticket.rename(temporaryFile, target);
+				groupCommit.commit(ticket);
+			} catch (IOException | InterruptedException e) {
+				error = e.toString();
+			}
+		}
+	}
+
+	// Late changes of a round (e.g. journal appends referring to objects) happen only once all files of the round are in
+	// place, including those of other tickets.
+	String testOrdering() throws IOException, InterruptedException {
+		TestFiles.emptyFolder(folder);
+		final GroupCommit groupCommit = new GroupCommit(new File(folder, "tmp"));
+		groupCommit.createIfNecessary();
+
+		final File object = new File(folder, "object");
+		final File entry = new File(folder, "entry");
+		final File journal = new File(folder, "journal");
+		final String[] result = {"late action not run"};
+
+		// The first ticket appends to the journal, and the second one writes the object it refers to
+		final GroupCommit.Ticket first = groupCommit.begin();
+		final GroupCommit.Ticket second = groupCommit.begin();
+
+		File entryFile = groupCommit.temporaryFile();
+		new Bytes(0).writeToFile(entryFile);
+		first.renameLast(entryFile, entry);
+		first.runLast(new GroupCommit.Action() {
+			@Override
+			public void run() throws IOException {
+				if (!object.exists()) result[0] = "late action ran before the object was in place";
+				else if (!entry.exists()) result[0] = "late action ran before the late rename";
+				else result[0] = "OK";
+				new Bytes(1).writeToFile(journal);
+			}
+		}, journal);
+
+		Thread committer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					groupCommit.commit(first);
+				} catch (IOException e) {
+					result[0] = e.toString();
+				}
+			}
+		};
+		committer.start();
+
+		File objectFile = groupCommit.temporaryFile();
+		Condensation.randomBytes(100).writeToFile(objectFile);
+		second.rename(objectFile, object);
+		groupCommit.commit(second);
+		committer.join();
+
+		if (groupCommit.commits != 1) return "the tickets were not committed together";
+		return result[0];
+	}
+}
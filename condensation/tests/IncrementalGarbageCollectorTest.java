@@ -0,0 +1,152 @@
+package condensation.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+import condensation.stores.MissingObject;
+import condensation.stores.folder.FolderStore;
+import condensation.stores.folder.IncrementalGarbageCollector;
+
+// Runs a garbage collection cycle which is stopped and resumed several times, each time with a new collector (as after a
+// restart). Call run() on the main thread, after Condensation.initialize(). The folder is removed and recreated.
+public final class IncrementalGarbageCollectorTest implements IncrementalGarbageCollector.Done {
+	static final long oldBookingTime = 1000L;
+
+	final File folder;
+	final File gcFolder;
+	final Hash accountHash = Hash.from(Condensation.randomBytes(32));
+	FolderStore store;
+	final ArrayList<Hash> chain = new ArrayList<>();
+	final ArrayList<Hash> garbage = new ArrayList<>();
+	Hash recentObject;
+	Hash childOfRecentObject;
+
+	// State
+	int stepSize;
+	int runs = 0;
+	long stopDelay = 50L;
+
+	public IncrementalGarbageCollectorTest(File folder) {
+		this.folder = folder;
+		this.gcFolder = new File(folder, "gc");
+	}
+
+	public void run() {
+		try {
+			setUp();
+		} catch (IOException e) {
+			Condensation.logError("tests.IncrementalGarbageCollector failed", e);
+			return;
+		}
+
+		stepSize = IncrementalGarbageCollector.stepSize;
+		IncrementalGarbageCollector.stepSize = 100;
+
+		// The first run stops right after starting the cycle
+		IncrementalGarbageCollector collector = new IncrementalGarbageCollector(store, gcFolder);
+		collector.run(Condensation.HOUR, this);
+		collector.stop();
+	}
+
+	// A chain of old objects referenced by a box entry, old garbage, and a recent object with an old child.
+	void setUp() throws IOException {
+		TestFiles.emptyFolder(folder);
+		store = new FolderStore(folder, false);
+		store.createIfNecessary();
+
+		Hash previous = null;
+		for (int i = 0; i < 2000; i++) {
+			previous = write(previous, oldBookingTime);
+			chain.add(previous);
+		}
+
+		store.boxes.modify(Collections.singletonList(new BoxAddition(accountHash, BoxLabel.PUBLIC, previous, null)), BoxRemoval.none, null);
+
+		for (int i = 0; i < 200; i++)
+			garbage.add(write(null, oldBookingTime));
+
+		childOfRecentObject = write(null, oldBookingTime);
+		recentObject = write(childOfRecentObject, System.currentTimeMillis());
+	}
+
+	Hash write(Hash child, long booked) throws IOException {
+		Bytes header = child == null ? new Bytes(4) : Bytes.concatenate(Bytes.integer32(1), child.bytes);
+		CondensationObject object = CondensationObject.create(header, Condensation.randomBytes(16));
+		Hash hash = object.calculateHash();
+		store.objects.write(hash, object, booked, null);
+		return hash;
+	}
+
+	@Override
+	public void onIncrementalGarbageCollectionMissingObjectAsync(MissingObject missingObject) {
+		Condensation.logError("tests.IncrementalGarbageCollector missing object " + missingObject.hash.hex());
+	}
+
+	@Override
+	public void onIncrementalGarbageCollectionDone(boolean success, boolean completed, int deletedObjects) {
+		runs += 1;
+		if (!success) {
+			finish("run " + runs + " failed");
+			return;
+		}
+
+		if (completed) {
+			finish(check(deletedObjects));
+			return;
+		}
+
+		if (runs > 20) {
+			finish("not completed after " + runs + " runs");
+			return;
+		}
+
+		// Add a box entry while no collector is attached, so that only listing the boxes upon resuming can find it
+		if (runs == 1) {
+			try {
+				store.boxes.modify(Collections.singletonList(new BoxAddition(accountHash, BoxLabel.PRIVATE, garbage.get(0), null)), BoxRemoval.none, null);
+			} catch (IOException e) {
+				finish(e.toString());
+				return;
+			}
+		}
+
+		// Resume with a new collector, and stop it again a little later each time
+		final IncrementalGarbageCollector collector = new IncrementalGarbageCollector(store, gcFolder);
+		collector.run(Condensation.HOUR, this);
+		Condensation.currentLoop().postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				collector.stop();
+			}
+		}, stopDelay);
+		stopDelay *= 2;
+	}
+
+	String check(int deletedObjects) {
+		if (runs < 2) return "completed without resuming";
+		for (int i = 0; i < chain.size(); i++)
+			if (!store.objects.exists(chain.get(i))) return "referenced object " + i + " deleted";
+		if (!store.objects.exists(garbage.get(0))) return "object referenced while stopped deleted";
+		if (!store.objects.exists(recentObject)) return "recent object deleted";
+		if (!store.objects.exists(childOfRecentObject)) return "child of a recent object deleted";
+		for (int i = 1; i < garbage.size(); i++)
+			if (store.objects.exists(garbage.get(i))) return "garbage object " + i + " kept";
+		if (deletedObjects != garbage.size() - 1) return deletedObjects + " objects deleted instead of " + (garbage.size() - 1);
+		return "OK";
+	}
+
+	void finish(String result) {
+		IncrementalGarbageCollector.stepSize = stepSize;
+		Condensation.log("tests.IncrementalGarbageCollector stop and resume " + result + " (" + runs + " runs)");
+		Condensation.log("tests.IncrementalGarbageCollector done");
+	}
+}
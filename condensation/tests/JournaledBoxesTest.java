@@ -0,0 +1,115 @@
+package condensation.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+
+import condensation.Condensation;
+import condensation.serialization.Hash;
+import condensation.stores.BoxAddition;
+import condensation.stores.BoxLabel;
+import condensation.stores.BoxRemoval;
+import condensation.stores.folder.JournaledBoxes;
+
+// Runs on any background thread. The folder is removed and recreated.
+public final class JournaledBoxesTest {
+	static final int recordLength = 34;
+
+	final File folder;
+	final Hash accountHash = Hash.from(Condensation.randomBytes(32));
+
+	public JournaledBoxesTest(File folder) {
+		this.folder = folder;
+	}
+
+	public void run() {
+		int snapshotThreshold = JournaledBoxes.snapshotThreshold;
+		JournaledBoxes.snapshotThreshold = 64;
+		try {
+			Condensation.log("tests.JournaledBoxes torn record " + testTornRecord());
+			Condensation.log("tests.JournaledBoxes snapshot " + testSnapshot());
+		} catch (IOException e) {
+			Condensation.logError("tests.JournaledBoxes failed", e);
+		} finally {
+			JournaledBoxes.snapshotThreshold = snapshotThreshold;
+		}
+
+		Condensation.log("tests.JournaledBoxes done");
+	}
+
+	// An incomplete record at the end of the journal (e.g. after a crash) is cut off, and the entries before it are kept.
+	String testTornRecord() throws IOException {
+		TestFiles.emptyFolder(folder);
+		JournaledBoxes boxes = new JournaledBoxes(folder, null);
+		ArrayList<Hash> messages = randomHashes(10);
+		Hash removed = messages.remove(0);
+		for (Hash hash : messages) add(boxes, BoxLabel.MESSAGES, hash);
+		add(boxes, BoxLabel.MESSAGES, removed);
+		boxes.modify(BoxAddition.none, Collections.singletonList(new BoxRemoval(accountHash, BoxLabel.MESSAGES, removed)), null);
+		add(boxes, BoxLabel.PUBLIC, removed);
+		boxes.close();
+
+		File journal = new File(folder, accountHash.hex());
+		long length = journal.length();
+		FileOutputStream stream = new FileOutputStream(journal, true);
+		try {
+			stream.write(new byte[]{1, 0, 5, 6, 7});
+		} finally {
+			stream.close();
+		}
+
+		boxes = new JournaledBoxes(folder, null);
+		if (!new HashSet<>(boxes.list(accountHash, BoxLabel.MESSAGES, null)).equals(new HashSet<>(messages))) return "message box differs";
+		if (!boxes.list(accountHash, BoxLabel.PUBLIC, null).equals(Collections.singletonList(removed))) return "public box differs";
+		if (journal.length() != length) return "journal is " + journal.length() + " bytes instead of " + length;
+
+		// Appending after the cut must work
+		Hash hash = randomHashes(1).get(0);
+		add(boxes, BoxLabel.PRIVATE, hash);
+		boxes.close();
+		boxes = new JournaledBoxes(folder, null);
+		if (!boxes.list(accountHash, BoxLabel.PRIVATE, null).equals(Collections.singletonList(hash))) return "entry appended after the cut missing";
+		return "OK";
+	}
+
+	// A journal with many obsolete records is replaced by a snapshot with one record per entry.
+	String testSnapshot() throws IOException {
+		TestFiles.emptyFolder(folder);
+		JournaledBoxes boxes = new JournaledBoxes(folder, null);
+		ArrayList<Hash> kept = randomHashes(5);
+		for (Hash hash : kept) add(boxes, BoxLabel.PRIVATE, hash);
+
+		// Add and remove entries until the journal must have been rewritten
+		for (Hash hash : randomHashes(JournaledBoxes.snapshotThreshold)) {
+			add(boxes, BoxLabel.MESSAGES, hash);
+			boxes.modify(BoxAddition.none, Collections.singletonList(new BoxRemoval(accountHash, BoxLabel.MESSAGES, hash)), null);
+		}
+
+		File journal = new File(folder, accountHash.hex());
+		if (journal.length() >= 2L * JournaledBoxes.snapshotThreshold * recordLength) return "journal not rewritten (" + journal.length() + " bytes)";
+		if (new File(folder, accountHash.hex() + ".new").exists()) return "temporary snapshot left";
+
+		boxes.close();
+		boxes = new JournaledBoxes(folder, null);
+		if (!boxes.list(accountHash, BoxLabel.PRIVATE, null).equals(kept)) return "private box differs after the rewrite";
+		if (!boxes.list(accountHash, BoxLabel.MESSAGES, null).isEmpty()) return "message box not empty after the rewrite";
+
+		// Compacting leaves exactly one record per entry
+		boxes.compact();
+		if (journal.length() != kept.size() * recordLength) return "journal is " + journal.length() + " bytes after compacting";
+		return "OK";
+	}
+
+	void add(JournaledBoxes boxes, BoxLabel boxLabel, Hash hash) throws IOException {
+		boxes.modify(Collections.singletonList(new BoxAddition(accountHash, boxLabel, hash, null)), BoxRemoval.none, null);
+	}
+
+	static ArrayList<Hash> randomHashes(int count) {
+		ArrayList<Hash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) hashes.add(Hash.from(Condensation.randomBytes(32)));
+		return hashes;
+	}
+}
@@ -0,0 +1,154 @@
+package condensation.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import condensation.Condensation;
+import condensation.serialization.Bytes;
+import condensation.serialization.CondensationObject;
+import condensation.serialization.Hash;
+import condensation.stores.folder.ObjectStorage;
+import condensation.stores.folder.SegmentedObjects;
+
+// Runs on the file system executor, or any other background thread. The folder is removed and recreated.
+public final class SegmentedObjectsTest {
+	final File folder;
+
+	public SegmentedObjectsTest(File folder) {
+		this.folder = folder;
+	}
+
+	public void run() {
+		long maximumSegmentLength = SegmentedObjects.maximumSegmentLength;
+		SegmentedObjects.maximumSegmentLength = 4000;
+		try {
+			Condensation.log("tests.SegmentedObjects scan after snapshot " + testScanAfterSnapshot());
+			Condensation.log("tests.SegmentedObjects compaction " + testCompaction());
+		} catch (IOException e) {
+			Condensation.logError("tests.SegmentedObjects failed", e);
+		} finally {
+			SegmentedObjects.maximumSegmentLength = maximumSegmentLength;
+		}
+
+		Condensation.log("tests.SegmentedObjects done");
+	}
+
+	// Objects written after the last snapshot are recovered by scanning the segments, and a torn record at the end is cut off.
+	String testScanAfterSnapshot() throws IOException {
+		TestFiles.emptyFolder(folder);
+		SegmentedObjects objects = new SegmentedObjects(folder);
+		objects.createIfNecessary();
+		ArrayList<Hash> hashes = writeChain(objects, 100);
+		objects.writeIndex();
+		hashes.addAll(writeChain(objects, 100));
+		objects.book(hashes.get(0));
+
+		// Simulate a crash: the instance is abandoned without writing the index, and the last record is torn
+		appendToLastSegment(new byte[]{0, 0, 0, 50, 1, 2, 3});
+
+		objects = new SegmentedObjects(folder);
+		for (int i = 0; i < hashes.size(); i++) {
+			CondensationObject object = objects.read(hashes.get(i));
+			if (object == null) return "object " + i + " missing";
+			if (!object.calculateHash().equals(hashes.get(i))) return "object " + i + " corrupt";
+		}
+
+		if (countObjects(objects) != hashes.size()) return countObjects(objects) + " objects instead of " + hashes.size();
+
+		// Appending after the cut must work
+		ArrayList<Hash> more = writeChain(objects, 10);
+		objects.close();
+		objects = new SegmentedObjects(folder);
+		for (Hash hash : more)
+			if (!objects.exists(hash)) return "object appended after the cut missing";
+
+		objects.close();
+		return "OK";
+	}
+
+	// Deleting most objects compacts the sparse segments, and keeps the remaining objects.
+	String testCompaction() throws IOException {
+		TestFiles.emptyFolder(folder);
+		SegmentedObjects objects = new SegmentedObjects(folder);
+		objects.createIfNecessary();
+		ArrayList<Hash> hashes = writeChain(objects, 200);
+		int segmentsBefore = countSegments();
+
+		if (!objects.delete(hashes.subList(0, 150))) return "delete failed";
+		for (int i = 0; i < 150; i++)
+			if (objects.exists(hashes.get(i))) return "deleted object " + i + " exists";
+		for (int i = 150; i < 200; i++) {
+			CondensationObject object = objects.read(hashes.get(i));
+			if (object == null || !object.calculateHash().equals(hashes.get(i))) return "object " + i + " lost";
+		}
+
+		int segmentsAfter = countSegments();
+		if (segmentsAfter >= segmentsBefore) return "not compacted (" + segmentsBefore + " -> " + segmentsAfter + " segments)";
+
+		objects.close();
+		objects = new SegmentedObjects(folder);
+		if (countObjects(objects) != 50) return countObjects(objects) + " objects after reopening instead of 50";
+		objects.close();
+		return "OK";
+	}
+
+	// Writes a chain of objects, each one referencing the previous one.
+	static ArrayList<Hash> writeChain(SegmentedObjects objects, int count) throws IOException {
+		ArrayList<Hash> hashes = new ArrayList<>();
+		Hash previous = null;
+		for (int i = 0; i < count; i++) {
+			Bytes header = previous == null ? new Bytes(4) : Bytes.concatenate(Bytes.integer32(1), previous.bytes);
+			CondensationObject object = CondensationObject.create(header, Condensation.randomBytes(16));
+			Hash hash = object.calculateHash();
+			objects.write(hash, object, System.currentTimeMillis(), null);
+			hashes.add(hash);
+			previous = hash;
+		}
+
+		return hashes;
+	}
+
+	static int countObjects(SegmentedObjects objects) {
+		final int[] count = {0};
+		objects.forEach(new ObjectStorage.Visitor() {
+			@Override
+			public boolean onObject(Hash hash, long booked, long byteLength) {
+				count[0] += 1;
+				return true;
+			}
+
+			@Override
+			public void onInvalidFile(File file) {
+			}
+		});
+
+		return count[0];
+	}
+
+	int countSegments() {
+		int count = 0;
+		String[] files = folder.list();
+		if (files != null)
+			for (String file : files)
+				if (!file.startsWith("index")) count += 1;
+		return count;
+	}
+
+	void appendToLastSegment(byte[] bytes) throws IOException {
+		File last = null;
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (!file.getName().startsWith("index") && (last == null || file.getName().compareTo(last.getName()) > 0)) last = file;
+		if (last == null) throw new IOException("No segment in " + folder);
+
+		FileOutputStream stream = new FileOutputStream(last, true);
+		try {
+			stream.write(bytes);
+		} finally {
+			stream.close();
+		}
+	}
+}
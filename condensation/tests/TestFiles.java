@@ -0,0 +1,19 @@
+package condensation.tests;
+
+import java.io.File;
+
+final class TestFiles {
+	// Removes the folder and everything in it, and creates it again empty.
+	static File emptyFolder(File folder) {
+		deleteRecursively(folder);
+		folder.mkdirs();
+		return folder;
+	}
+
+	static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files) deleteRecursively(child);
+		file.delete();
+	}
+}
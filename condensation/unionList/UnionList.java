@@ -213,7 +213,7 @@ public abstract class UnionList<I extends Item> implements MergeableData {
 
 	public void save(final SaveDone done) {
 		if (unsaved.isSaving()) {
-			Condensation.mainThread.post(new Runnable() {
+			Condensation.currentLoop().post(new Runnable() {
 				@Override
 				public void run() {
 					done.onUnionListSaveFailed();